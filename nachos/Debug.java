@@ -179,8 +179,8 @@ public static class AssertException extends RuntimeException {
    * @param text The message.
    */
   public static void print(char flag, String text) {
-      String info = getInfo(flag);
       if (isEnabled(flag)) {
+	  String info = getInfo(flag);
 	  synchronized(Debug.class) {
 	  	System.out.print(info + text);
 	  }
@@ -195,8 +195,8 @@ public static class AssertException extends RuntimeException {
    * @param text The message.
    */
   public static void println(char flag, String text) {
-      String info = getInfo(flag);
       if (isEnabled(flag)) {
+	  String info = getInfo(flag);
 	  synchronized(Debug.class) {
 	      System.out.println(info + text);
 	  }
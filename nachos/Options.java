@@ -11,6 +11,33 @@
 //         Re-execution with the same seed should produce the same results.
 //    -tl <time limit> halt the machine if totalTicks exceeds <time limit>
 //    -z prints the copyright message
+//    -sb runs the scheduler run queue benchmark
+//    -sm prints scheduler metrics when the simulation stops
+//    -sp <policy> selects the scheduling policy: mlfq (the default), rr,
+//         stride or lottery
+//    -bw <percent> sets the weight of the latest CPU burst in the MLFQ average
+//    -bt <t0,t1,...> sets the MLFQ per-level burst thresholds, in ticks
+//    -ag <ticks> sets the MLFQ aging interval (0 disables aging)
+//    -ru <percent> sets the share of each CPU that real-time threads may reserve
+//    -gs co-schedules the threads of processes related by fork
+//    -ti stops the timers of idle CPUs that have no sleeping threads
+//    -it <threads> sets the run queue imbalance tolerated to keep threads
+//         on the CPU they last ran on
+//    -lb <ticks> sets the load balancing interval (0 disables balancing)
+//    -ls <ticks> makes locks spin for up to <ticks> while the owner runs
+//    -lh makes locks hand off directly to the longest waiter on release
+//    -lk runs the lock contention benchmark
+//    -sl <kind> selects the kind of spin lock: tas (the default), ticket
+//         or mcs
+//    -bo makes spin locks back off exponentially while they wait
+//    -sk runs the spin lock contention benchmark
+//    -bb runs the cyclic barrier phase-completion benchmark
+//    -fj runs the fork-join parallel recursion benchmark
+//    -qb runs the queue offer/poll throughput benchmark
+//    -lp profiles contention on locks, semaphores and spin locks, and
+//         prints the most contended when the simulation stops
+//    -tn <threads> sets the number of parked kernel thread pool workers
+//    -tx <threads> sets the maximum number of kernel thread pool workers
 //
 //  USER_PROGRAM (set USER_PROGRAM=true below before using these options!)
 //    -s causes user programs to be executed in single-step mode
@@ -148,6 +175,58 @@ public class Options {
     
     /** Should the time-slicing timers be randomized? */
     public boolean RANDOM_YIELD = false;
+
+    /**
+     * Percentage of each CPU that may be reserved by real-time threads.
+     * EDF meets every deadline as long as this does not exceed 100.
+     */
+    public int RT_UTILIZATION_LIMIT = 100;
+
+    /**
+     * Should the threads of processes related by fork be gang scheduled,
+     * that is, run together on different CPUs in the same time slice?
+     */
+    public boolean GANG_SCHEDULING = false;
+
+    /**
+     * Should the timer of an idle CPU be stopped, if no thread is asleep
+     * on it, and restarted when a thread is dispatched on it?
+     */
+    public boolean TICKLESS_IDLE = false;
+
+    /**
+     * Number of threads by which the run queue of the CPU a thread last ran
+     * on may exceed another run queue before the scheduler moves the thread,
+     * both when it is made ready and when the load is balanced.
+     */
+    public int IMBALANCE_TOLERANCE = 1;
+
+    /**
+     * Interval, in ticks, at which each busy CPU balances the load by pulling
+     * threads from the busiest run queue, or zero to disable balancing.
+     */
+    public int LOAD_BALANCE_TICKS = 1000;
+
+    /**
+     * Maximum time, in ticks, that a thread acquiring a lock spins while the
+     * owner is running on another CPU before it blocks, or zero to block at once.
+     */
+    public int LOCK_SPIN_TICKS = 0;
+
+    /**
+     * Should a released lock be handed directly to the longest waiter,
+     * rather than made free for any thread to take?
+     */
+    public boolean LOCK_HANDOFF = false;
+
+    /**
+     * The kind of spin lock: "tas" for test-and-set, "ticket" for ticket
+     * locks or "mcs" for queue locks in which each waiter spins on its own node.
+     */
+    public String SPINLOCK_KIND = "tas";
+
+    /** Should spin locks back off exponentially while they wait? */
+    public boolean SPINLOCK_BACKOFF = false;
     
     /** Should we use the stub filesystem, rather than the Nachos filesystem? **/
     public boolean FILESYS_STUB = false;
@@ -166,6 +245,62 @@ public class Options {
     /** Should we run the multiprocessor scheduling test? */
     public boolean SMP_TEST = false;
 
+    /** Should we run the scheduler run queue benchmark? */
+    public boolean SCHED_BENCH = false;
+
+    /** Should we run the lock contention benchmark? */
+    public boolean LOCK_BENCH = false;
+
+    /** Should we run the spin lock contention benchmark? */
+    public boolean SPINLOCK_BENCH = false;
+
+    /** Should we run the cyclic barrier benchmark? */
+    public boolean BARRIER_BENCH = false;
+
+    /** Should we run the fork-join benchmark? */
+    public boolean FORKJOIN_BENCH = false;
+
+    /** Should we run the queue benchmark? */
+    public boolean QUEUE_BENCH = false;
+
+    /**
+     * Should contention on locks, semaphores and spin locks be recorded,
+     * and printed when the simulation stops?
+     */
+    public boolean LOCK_PROFILE = false;
+
+    /** Should the scheduler print its metrics when the simulation stops? */
+    public boolean SCHED_METRICS = false;
+
+    /**
+     * The scheduling policy: "mlfq" for multilevel feedback queues, "rr" for
+     * round-robin, "stride" for stride scheduling or "lottery" for lottery
+     * scheduling.
+     */
+    public String SCHED_POLICY = "mlfq";
+
+    /** Weight, in percent, of the latest CPU burst in the MLFQ burst average. */
+    public int MLFQ_BURST_WEIGHT = 40;
+
+    /**
+     * Comma-separated MLFQ per-level burst thresholds, in ticks, or null to
+     * use half of each level's quantum.
+     */
+    public String MLFQ_THRESHOLDS = null;
+
+    /**
+     * Time, in ticks, that a thread may wait in an MLFQ run queue before it is
+     * promoted one level.  Zero disables aging; if negative, eight times the
+     * base quantum is used.
+     */
+    public int MLFQ_AGING_TICKS = -1;
+
+    /** Number of kernel thread pool workers kept parked when there is no work. */
+    public int POOL_MIN_THREADS = 1;
+
+    /** Maximum number of kernel thread pool workers. */
+    public int POOL_MAX_THREADS = 4;
+
     /** Should we run the user program test? */
     public boolean PROG_TEST = false;
     
@@ -239,6 +374,70 @@ public class Options {
 				PROG_TEST = true;
 			    }
 			 }),
+		new Spec("-sm",  // print scheduler metrics at shutdown
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				SCHED_METRICS = true;
+			    }
+			 }),
+		new Spec("-sb",  // enable scheduler run queue benchmark
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				SCHED_BENCH = true;
+			    }
+			 }),
+		new Spec("-lk",  // enable lock contention benchmark
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				LOCK_BENCH = true;
+			    }
+			 }),
+		new Spec("-lp",  // enable lock contention profiling
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				LOCK_PROFILE = true;
+			    }
+			 }),
+		new Spec("-sk",  // enable spin lock contention benchmark
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				SPINLOCK_BENCH = true;
+			    }
+			 }),
+		new Spec("-bb",  // enable cyclic barrier benchmark
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				BARRIER_BENCH = true;
+			    }
+			 }),
+		new Spec("-fj",  // enable fork-join benchmark
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				FORKJOIN_BENCH = true;
+			    }
+			 }),
+		new Spec("-qb",  // enable queue benchmark
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				QUEUE_BENCH = true;
+			    }
+			 }),
 		new Spec("-nt",  // enable network test
 			 new Class[] { },
 			 null,
@@ -295,6 +494,126 @@ public class Options {
 				NUM_CONSOLES = (Integer)params[0];
 			    }
 			 }),
+		new Spec("-sp",  // set the scheduling policy
+			 new Class[] {String.class},
+			 "Usage: -sp <mlfq|rr|stride|lottery>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				SCHED_POLICY = (String)params[0];
+			    }
+			 }),
+		new Spec("-bw",  // set the MLFQ burst average weight
+			 new Class[] {Integer.class},
+			 "Usage: -bw <percent>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				MLFQ_BURST_WEIGHT = (Integer)params[0];
+			    }
+			 }),
+		new Spec("-bt",  // set the MLFQ burst thresholds
+			 new Class[] {String.class},
+			 "Usage: -bt <t0,t1,...>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				MLFQ_THRESHOLDS = (String)params[0];
+			    }
+			 }),
+		new Spec("-ag",  // set the MLFQ aging interval
+			 new Class[] {Integer.class},
+			 "Usage: -ag <ticks>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				MLFQ_AGING_TICKS = (Integer)params[0];
+			    }
+			 }),
+		new Spec("-ru",  // set the real-time utilization limit
+			 new Class[] {Integer.class},
+			 "Usage: -ru <percent>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				RT_UTILIZATION_LIMIT = (Integer)params[0];
+			    }
+			 }),
+		new Spec("-gs",  // enable gang scheduling of forked processes
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				GANG_SCHEDULING = true;
+			    }
+			 }),
+		new Spec("-ti",  // stop the timers of idle CPUs
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				TICKLESS_IDLE = true;
+			    }
+			 }),
+		new Spec("-it",  // set the run queue imbalance tolerance
+			 new Class[] {Integer.class},
+			 "Usage: -it <threads>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				IMBALANCE_TOLERANCE = (Integer)params[0];
+			    }
+			 }),
+		new Spec("-lb",  // set the load balancing interval
+			 new Class[] {Integer.class},
+			 "Usage: -lb <ticks>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				LOAD_BALANCE_TICKS = (Integer)params[0];
+			    }
+			 }),
+		new Spec("-ls",  // set the lock spin time
+			 new Class[] {Integer.class},
+			 "Usage: -ls <ticks>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				LOCK_SPIN_TICKS = (Integer)params[0];
+			    }
+			 }),
+		new Spec("-lh",  // hand locks off directly to waiters
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				LOCK_HANDOFF = true;
+			    }
+			 }),
+		new Spec("-sl",  // set the kind of spin lock
+			 new Class[] {String.class},
+			 "Usage: -sl <tas|ticket|mcs>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				SPINLOCK_KIND = (String)params[0];
+			    }
+			 }),
+		new Spec("-bo",  // make spin locks back off
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				SPINLOCK_BACKOFF = true;
+			    }
+			 }),
+		new Spec("-tn",  // set the number of parked thread pool workers
+			 new Class[] {Integer.class},
+			 "Usage: -tn <threads>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				POOL_MIN_THREADS = (Integer)params[0];
+			    }
+			 }),
+		new Spec("-tx",  // set the maximum number of thread pool workers
+			 new Class[] {Integer.class},
+			 "Usage: -tx <threads>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				POOL_MAX_THREADS = (Integer)params[0];
+			    }
+			 }),
 		new Spec("-df",  // set the base filename for simulated disks
 			 new Class[] {String.class},
 			 "Usage: -df <filename>",
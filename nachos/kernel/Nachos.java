@@ -33,11 +33,23 @@ import nachos.kernel.devices.test.ConsoleTest;
 import nachos.kernel.devices.test.NetworkTest;
 import nachos.kernel.devices.test.SerialTest;
 import nachos.kernel.threads.CyclicBarrier;
+import nachos.kernel.threads.LotteryPolicy;
+import nachos.kernel.threads.MultilevelFeedbackPolicy;
+import nachos.kernel.threads.RoundRobinPolicy;
 import nachos.kernel.threads.Scheduler;
+import nachos.kernel.threads.SchedulingPolicy;
+import nachos.kernel.threads.StridePolicy;
+import nachos.kernel.threads.ThreadPool;
 import nachos.kernel.userprog.ExceptionHandler;
 import nachos.kernel.filesys.FileSystem;
 import nachos.kernel.filesys.FileSystemReal;
+import nachos.kernel.threads.test.BarrierBenchmark;
+import nachos.kernel.threads.test.ForkJoinBenchmark;
+import nachos.kernel.threads.test.LockBenchmark;
+import nachos.kernel.threads.test.QueueBenchmark;
 import nachos.kernel.threads.test.SMPTest;
+import nachos.kernel.threads.test.SchedulerBenchmark;
+import nachos.kernel.threads.test.SpinLockBenchmark;
 import nachos.kernel.threads.test.ThreadTest;
 import nachos.kernel.userprog.test.ProgTest;
 import nachos.kernel.filesys.test.FileSystemTest;
@@ -53,6 +65,9 @@ public class Nachos implements Runnable {
     
     /** Access to the scheduler. */
     public static Scheduler scheduler;
+
+    /** Pool of kernel worker threads for short kernel tasks. */
+    public static ThreadPool threadPool;
     
     /** Access to the file system. */
     public static FileSystemReal fileSystem;
@@ -83,6 +98,10 @@ public class Nachos implements Runnable {
     }
     @SuppressWarnings("unused")
     public void run() {
+	// Start the kernel thread pool, which the system calls use.
+	threadPool = new ThreadPool("kernel pool", options.POOL_MIN_THREADS,
+		options.POOL_MAX_THREADS);
+
 	// Initialize device drivers.
 
 	if(Machine.NUM_CONSOLES > 0)
@@ -121,6 +140,18 @@ public class Nachos implements Runnable {
 	}
 	if(options.SMP_TEST)
 	    SMPTest.start();
+	if(options.SCHED_BENCH)
+	    SchedulerBenchmark.start();
+	if(options.LOCK_BENCH)
+	    LockBenchmark.start();
+	if(options.SPINLOCK_BENCH)
+	    SpinLockBenchmark.start();
+	if(options.BARRIER_BENCH)
+	    BarrierBenchmark.start();
+	if(options.FORKJOIN_BENCH)
+	    ForkJoinBenchmark.start();
+	if(options.QUEUE_BENCH)
+	    QueueBenchmark.start();
 	if(options.PROG_TEST)
 	    ProgTest.start();
 	if(options.FILESYS_TEST)
@@ -167,7 +198,30 @@ public class Nachos implements Runnable {
       int numQueues = Integer.parseInt(args[0]);
       int quantum = Integer.parseInt(args[1]);
       
-      scheduler = new Scheduler(firstThread,numQueues,quantum);
+      SchedulingPolicy policy;
+      if(options.SCHED_POLICY.equals("rr"))
+	  policy = new RoundRobinPolicy(quantum);
+      else if(options.SCHED_POLICY.equals("stride"))
+	  policy = new StridePolicy(quantum);
+      else if(options.SCHED_POLICY.equals("lottery"))
+	  policy = new LotteryPolicy(quantum);
+      else {
+	  Debug.ASSERT(options.SCHED_POLICY.equals("mlfq"),
+		  "Unknown scheduling policy: " + options.SCHED_POLICY);
+	  int[] thresholds = null;
+	  if(options.MLFQ_THRESHOLDS != null) {
+	      String[] fields = options.MLFQ_THRESHOLDS.split(",");
+	      thresholds = new int[fields.length];
+	      for(int i = 0; i < fields.length; i++)
+		  thresholds[i] = Integer.parseInt(fields[i].trim());
+	  }
+	  int agingTicks = options.MLFQ_AGING_TICKS;
+	  if(agingTicks < 0)
+	      agingTicks = (int)Math.min(8L*quantum, Integer.MAX_VALUE);
+	  policy = new MultilevelFeedbackPolicy(numQueues, quantum,
+		  options.MLFQ_BURST_WEIGHT, thresholds, agingTicks);
+      }
+      scheduler = new Scheduler(firstThread, policy);
 
       
       // The Nachos thread we just created will begin running in the run()
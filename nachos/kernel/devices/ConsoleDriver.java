@@ -11,6 +11,7 @@ import nachos.machine.Console;
 import nachos.machine.InterruptHandler;
 import nachos.kernel.threads.Lock;
 import nachos.kernel.threads.Semaphore;
+import nachos.util.MPSCQueue;
 
 /**
  * This class provides for the initialization of the NACHOS console,
@@ -48,11 +49,32 @@ public class ConsoleDriver {
     /** Interrupt handler used for console output interrupts. */
     private InterruptHandler outputHandler;
     
-    private LinkedList<Character> getCharBuf = new LinkedList<Character>();
+    /** Capacity of the queues filled by the keyboard interrupt handler. */
+    private static final int BUFFER_CAPACITY = 1024;
+    
+    /**
+     * Characters of completed input lines, handed over by the keyboard
+     * interrupt handler to getChar() without locking.  Characters that
+     * do not fit are dropped.
+     */
+    private final MPSCQueue<Character> getCharBuf =
+	new MPSCQueue<Character>(BUFFER_CAPACITY);
     
     private LinkedList<Character> putCharBuf = new LinkedList<Character>();
     
-    private LinkedList<Character> echoBuf = new LinkedList<Character>();
+    /**
+     * Characters to be echoed, handed over by the keyboard interrupt
+     * handler to the output interrupt handler without locking.
+     */
+    private final MPSCQueue<Character> echoBuf =
+	new MPSCQueue<Character>(BUFFER_CAPACITY);
+    
+    /**
+     * The input line being typed and edited.  Only the keyboard interrupt
+     * handler touches it, and it hands the line over to getCharBuf when
+     * the line is completed.
+     */
+    private final StringBuilder lineBuf = new StringBuilder();
     
     /**
      * Initialize the driver and the underlying physical device.
@@ -95,11 +117,14 @@ public class ConsoleDriver {
     public char getChar() {
 	inputLock.acquire();
 	ensureInputHandler();
-	if (getCharBuf.isEmpty()) {
+	// charAvail is signalled once per line, so it may have been
+	// signalled for characters that have already been taken.
+	Character ch;
+	while ((ch = getCharBuf.poll()) == null) {
 	    charAvail.P();
 	}
 	inputLock.release();
-	return getCharBuf.removeFirst();
+	return ch;
     }
     
     /**
@@ -147,55 +172,54 @@ public class ConsoleDriver {
 	    if (ch >= 32 && ch <=126) {
 		isConsoleBusy = true;
 		console.putChar(ch);
-		getCharBuf.add(ch);
+		lineBuf.append(ch);
 	    } else if (ch == '\r' || ch == '\n') {
 		isConsoleBusy = true;
 		console.putChar('\r');
-		echoBuf.add('\n');
-		getCharBuf.add(ch);
+		echoBuf.offer('\n');
+		lineBuf.append(ch);
+		for (int i = 0; i < lineBuf.length(); i++) {
+		    getCharBuf.offer(lineBuf.charAt(i));
+		}
+		lineBuf.setLength(0);
 		charAvail.V();
 	    } else if (ch == '\b') {
-		if (getCharBuf.size() > 0) {
+		if (lineBuf.length() > 0) {
 		    isConsoleBusy = true;
 		    console.putChar('\b');
-		    echoBuf.add(' ');
-		    echoBuf.add('\b');
-		    getCharBuf.removeLast();
-		}
-	    } else if ( ch == 21) {
-		int size = getCharBuf.size();
-		int start = getCharBuf.lastIndexOf('\n') + 1;
-		if (start == -1) {
-		    start = 0;
+		    echoBuf.offer(' ');
+		    echoBuf.offer('\b');
+		    lineBuf.setLength(lineBuf.length() - 1);
 		}
-		isConsoleBusy = true;
-		console.putChar('\b');
-		echoBuf.add(' ');
-		echoBuf.add('\b');
-		getCharBuf.removeLast();
-		for (int i = start; i < size-1; i++) {
-		    echoBuf.add('\b');
-		    echoBuf.add(' ');
-		    echoBuf.add('\b');
-		    getCharBuf.removeLast();
+	    } else if (ch == 21) {
+		int size = lineBuf.length();
+		if (size > 0) {
+		    isConsoleBusy = true;
+		    console.putChar('\b');
+		    echoBuf.offer(' ');
+		    echoBuf.offer('\b');
+		    for (int i = 0; i < size - 1; i++) {
+			echoBuf.offer('\b');
+			echoBuf.offer(' ');
+			echoBuf.offer('\b');
+		    }
+		    lineBuf.setLength(0);
 		}
 	    } else if (ch == 18) {
-		int size = getCharBuf.size();
-		int start = getCharBuf.lastIndexOf('\n') + 1;
-		if (start == -1) {
-		    start = 0;
-		}
-		isConsoleBusy = true;
-		console.putChar('\b');
-		echoBuf.add(' ');
-		echoBuf.add('\b');
-		for (int i = start; i < size - 1; i++) {
-		    echoBuf.add('\b');
-		    echoBuf.add(' ');
-		    echoBuf.add('\b');
-		}
-		for (int i = start; i < size; i++) {
-		    echoBuf.add(getCharBuf.get(i));
+		int size = lineBuf.length();
+		if (size > 0) {
+		    isConsoleBusy = true;
+		    console.putChar('\b');
+		    echoBuf.offer(' ');
+		    echoBuf.offer('\b');
+		    for (int i = 0; i < size - 1; i++) {
+			echoBuf.offer('\b');
+			echoBuf.offer(' ');
+			echoBuf.offer('\b');
+		    }
+		    for (int i = 0; i < size; i++) {
+			echoBuf.offer(lineBuf.charAt(i));
+		    }
 		}
 	    }
 	}
@@ -215,9 +239,9 @@ public class ConsoleDriver {
 		char ch = putCharBuf.removeFirst();
 		console.putChar(ch);
 	    }
-	    if (!echoBuf.isEmpty()){
-		char ch = echoBuf.removeFirst();
-		console.putChar(ch);
+	    Character echo = echoBuf.poll();
+	    if (echo != null){
+		console.putChar(echo);
 	    }
 	}
  	
@@ -14,6 +14,7 @@ import nachos.machine.SerialPort;
 import nachos.machine.InterruptHandler;
 import nachos.kernel.threads.Lock;
 import nachos.kernel.threads.Semaphore;
+import nachos.util.MPSCQueue;
 
 import java.util.Queue;
 import java.util.LinkedList;
@@ -36,9 +37,23 @@ public class SerialDriver {
     @SuppressWarnings("unchecked")
     private final Queue<Byte>[] outqs = new Queue[SerialPort.NUM_UNITS];
     
-    /** SerialPort input queues. */
-    @SuppressWarnings("unchecked")
-    private final Queue<Byte>[] inqs = new Queue[SerialPort.NUM_UNITS];
+    /** Input queue capacity. */
+    private static final int INPUT_CAPACITY = 64;
+    
+    /**
+     * SerialPort input queues, through which the interrupt handler hands
+     * received bytes to getByte() without locking.  Bytes that arrive
+     * when the queue is full are dropped, as by a UART that overruns.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final MPSCQueue<Byte>[] inqs = new MPSCQueue[SerialPort.NUM_UNITS];
+    
+    /**
+     * Reader locks, which keep each input queue to a single consumer when
+     * several threads call getByte() on the same unit.  They exclude only
+     * other readers of the unit, not the rest of the driver.
+     */
+    private final Lock[] readLocks = new Lock[SerialPort.NUM_UNITS];
     
     /**
      * Lock that enables a single thread to obtain exclusive access
@@ -110,7 +125,8 @@ public class SerialDriver {
 	SerialPort unit = SerialPort.getUnit(i);
 	units[i] = unit;
 	outqs[i] = new LinkedList<Byte>();
-	inqs[i] = new LinkedList<Byte>();
+	inqs[i] = new MPSCQueue<Byte>(INPUT_CAPACITY);
+	readLocks[i] = new Lock("reader lock: serial unit " + i);
 	dataAvail[i] = new Semaphore("data available: serial unit " + i, 0);
 	spaceAvail[i] = new Semaphore("space available: serial unit " + i,
 					QUEUE_CAPACITY);
@@ -138,6 +154,7 @@ public class SerialDriver {
 	    units[i] = null;
 	    outqs[i] = null;
 	    inqs[i] = null;
+	    readLocks[i] = null;
 	}
 	endCS();
     }
@@ -185,10 +202,13 @@ public class SerialDriver {
 	// Wait for data to arrive.
 	dataAvail[i].P();
 	
-	// Dequeue a byte of data and return it.
-	beginCS();
+	// Dequeue a byte of data and return it.  The interrupt handler
+	// published it before signalling, so there is no need to mask
+	// interrupts or to hold the driver mutex; the reader lock only
+	// keeps readers of this unit from polling at once.
+	readLocks[i].acquire();
 	byte data = inqs[i].poll();
-	endCS();
+	readLocks[i].release();
 	return data;
     }
 
@@ -230,8 +250,8 @@ public class SerialDriver {
 	    }
 	    if((unit.readLSR() & SerialPort.LSR_RRDY) != 0) {
 		byte data = unit.readRDR();
-		inqs[index].add(data);
-		dataAvail[index].V();
+		if(inqs[index].offer(data))
+		    dataAvail[index].V();
 	    }
 	}
     }
@@ -11,6 +11,7 @@ package nachos.kernel.devices.test;
 
 import nachos.Debug;
 import nachos.kernel.Nachos;
+import nachos.kernel.threads.extendedNachosThread;
 import nachos.kernel.devices.ConsoleDriver;
 import nachos.machine.NachosThread;
 
@@ -59,7 +60,7 @@ public class ConsoleTest implements Runnable {
      * onto the output.  The test ends when a 'q' is read.
      */
     public static void start() {
-	NachosThread thread = new NachosThread("Console test", new ConsoleTest());
+	NachosThread thread = new extendedNachosThread("Console test", new ConsoleTest());
 	Nachos.scheduler.readyToRun(thread);
     }
 }
@@ -11,6 +11,7 @@ package nachos.kernel.devices.test;
 import nachos.Debug;
 import nachos.machine.NachosThread;
 import nachos.kernel.Nachos;
+import nachos.kernel.threads.extendedNachosThread;
 import nachos.kernel.devices.SerialDriver;
 
 /**
@@ -44,7 +45,7 @@ public class SerialTest {
 	driver.openPort(0);
 
 	NachosThread sender =
-	    new NachosThread
+	    new extendedNachosThread
 	    ("Sender thread",
 	     new Runnable() {
 		    public void run() {
@@ -61,7 +62,7 @@ public class SerialTest {
 		});
 
 	NachosThread receiver =
-	    new NachosThread
+	    new extendedNachosThread
 	    ("Receiver thread",
 	     new Runnable() {
 		    public void run() {
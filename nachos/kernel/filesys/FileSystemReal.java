@@ -14,6 +14,7 @@ import java.util.LinkedList;
 
 import nachos.Debug;
 import nachos.kernel.devices.DiskDriver;
+import nachos.kernel.threads.ReadWriteLock;
 
 /**
  * This class manages the overall operation of the file system.
@@ -46,7 +47,10 @@ import nachos.kernel.devices.DiskDriver;
  *
  * 	Our implementation at this point has the following restrictions:
  *
- *	   there is no synchronization for concurrent accesses;
+ *	   lookups and changes to the names in the directories are
+ *	     synchronized by a reader-writer lock, so that lookups may run
+ *	     concurrently, but there is no synchronization for concurrent
+ *	     accesses to the contents of files;
  *	   files have a fixed size, set when the file is created;
  *	   files cannot be bigger than about 3KB in size;
  *	   there is no hierarchical directory structure, and only a limited
@@ -114,6 +118,12 @@ public class FileSystemReal extends FileSystem {
   /** "Root" directory -- list of file names, represented as a file. */
   private final OpenFileReal directoryFile;
 
+  /**
+   * Held for reading while names are looked up in the directories, and
+   * for writing while they are changed.
+   */
+  private final ReadWriteLock namespaceLock = new ReadWriteLock("namespace lock");
+
   /**
    * Initialize the file system.  If format = true, the disk has
    * nothing on it, and we need to initialize the disk to contain
@@ -234,8 +244,8 @@ public class FileSystemReal extends FileSystem {
    *	no free entry for file in directory;
    *	no free space for data blocks for the file.
    *
-   * Note that this implementation assumes there is no concurrent access
-   *	to the file system!
+   * The namespace lock is held for writing throughout, so two threads
+   *	creating the same name cannot both succeed.
    *
    * @param name  The name of file to be created.
    * @param initialSize  The size of file to be created.
@@ -251,6 +261,7 @@ public class FileSystemReal extends FileSystem {
     Debug.printf('f', "Creating file %s, size %d\n", name, 
 		 new Long(initialSize));
 
+    namespaceLock.acquireWrite();
     directory = new Directory(0, this);
     directory.setTableSize(directoryFile);
     directory.fetchFrom(directoryFile);
@@ -274,10 +285,18 @@ public class FileSystemReal extends FileSystem {
 	directory.writeBack(directoryFile);
       }
     }
+    namespaceLock.releaseWrite();
     return success;
   }
 
   public boolean makeDir(String path, String name) {
+      namespaceLock.acquireWrite();
+      boolean success = doMakeDir(path, name);
+      namespaceLock.releaseWrite();
+      return success;
+  }
+
+  private boolean doMakeDir(String path, String name) {
       Directory directory;
       BitMap freeMap;
       FileHeader hdr;
@@ -323,6 +342,7 @@ public class FileSystemReal extends FileSystem {
       if (currPath.equals(null))
 	  return null;
       
+      namespaceLock.acquireRead();
       OpenFileReal file =  directoryFile;
       
       for (int i = 0; i < currPath.length; i++) {
@@ -335,11 +355,13 @@ public class FileSystemReal extends FileSystem {
 	  if (dir != "") {
 	      int sector = directory.findDir(dir);
 	      if (sector == -1) {
+		  namespaceLock.releaseRead();
 		  return null;
 	      }
 	      file = new OpenFileReal(sector,this);
 	  }
       }
+      namespaceLock.releaseRead();
       return file;
   }
   
@@ -381,14 +403,23 @@ public class FileSystemReal extends FileSystem {
     int sector;
 
     Debug.printf('f', "Opening file %s\n", name);
+    namespaceLock.acquireRead();
     directory.fetchFrom(directoryFile);
     sector = directory.find(name); 
+    namespaceLock.releaseRead();
     if (sector >= 0) 		
       openFile = new OpenFileReal(sector, this);// name was found in directory 
     return openFile;			        // return null if not found
   }
 
   public boolean rmDir(String path, String name) {
+      namespaceLock.acquireWrite();
+      boolean success = doRmDir(path, name);
+      namespaceLock.releaseWrite();
+      return success;
+  }
+
+  private boolean doRmDir(String path, String name) {
       Directory directory;
       int sector;
 
@@ -415,7 +446,7 @@ public class FileSystemReal extends FileSystem {
       if (subDirectory.tableSize > 0) {
 	  for (int i = 0; i < subDirectory.tableSize; i++) {
 	      if (subDirectory.table[i].isDir) {
-		  rmDir(path + "/" + name, subDirectory.table[i].getName());
+		  doRmDir(path + "/" + name, subDirectory.table[i].getName());
 		  
 	      } else {
 		  removeSector(subDirectory.table[i].sector);
@@ -463,6 +494,13 @@ public class FileSystemReal extends FileSystem {
    * @param name The text name of the file to be removed.
    */
   public boolean remove(String name) { 
+    namespaceLock.acquireWrite();
+    boolean success = doRemove(name);
+    namespaceLock.releaseWrite();
+    return success;
+  }
+
+  private boolean doRemove(String name) { 
     Directory directory;
     BitMap freeMap;
     FileHeader fileHdr;
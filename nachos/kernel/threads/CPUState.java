@@ -0,0 +1,135 @@
+package nachos.kernel.threads;
+
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.util.ArrayQueue;
+
+/**
+ * A CPUState holds the scheduler's state for one particular CPU.
+ * The scheduler keeps these in an array indexed by CPU number, so that the
+ * dispatch and timer interrupt paths can find the state for the current CPU
+ * without any lookup, locking, or allocation.
+ *
+ * Except where noted, the fields are only modified by the CPU they describe,
+ * with interrupts disabled.  The currentThread and idle fields are also set
+ * by other CPUs when they dispatch a thread onto this CPU, but that only
+ * happens while this CPU is idle and with the scheduler's idle list lock held.
+ */
+public class CPUState {
+
+    /** The CPU described by this state. */
+    public final CPU cpu;
+
+    /** Threads that are ready to run on this CPU. */
+    public final RunQueue runQueue;
+
+    /** Threads that are sleeping until this CPU's timer wakes them. */
+    public final SleepQueue sleepQueue;
+
+    /** Number of timer interrupts taken since the current thread was dispatched. */
+    public int ticks;
+
+    /** The thread running on this CPU, or null if the CPU is idle. */
+    public volatile extendedNachosThread currentThread;
+
+    /** Is this CPU on the scheduler's idle list? */
+    public volatile boolean idle;
+
+    /** Number of threads dispatched onto this CPU. */
+    public long numDispatches;
+
+    /** Number of threads this CPU has taken from other CPUs' run queues. */
+    public long numSteals;
+
+    /** Number of threads dispatched onto this CPU that last ran on another CPU. */
+    public long numMigrations;
+
+    /** Number of threads this CPU has pulled onto its run queue to balance the load. */
+    public long numBalanced;
+
+    /** Local time at or after which this CPU next balances the load. */
+    public int nextBalanceTime;
+
+    /** Number of times this CPU has gone idle. */
+    public long numIdles;
+
+    /** Number of times a thread on this CPU has been preempted by its timer. */
+    public long numPreemptions;
+
+    /**
+     * If non-null, another CPU has made ready a thread, on this run queue,
+     * that should preempt the thread running on this CPU.  Set by any CPU,
+     * and cleared by this CPU when it reschedules.
+     */
+    public volatile RunQueue rescheduleFrom;
+
+    /** Number of times a thread on this CPU has been preempted by a wakeup. */
+    public long numWakeupPreemptions;
+
+    /**
+     * If non-null, a thread that gang scheduling has taken out of its run
+     * queue for this CPU to run next.  Set by other CPUs with both the idle
+     * list lock and this CPU's run queue lock held, and only while this CPU
+     * is not idle; cleared by this CPU when it reschedules.
+     */
+    public volatile extendedNachosThread handoff;
+
+    /** Number of gang members dispatched onto this CPU to run with their gang. */
+    public long numGangDispatches;
+
+    /** Number of real-time threads dispatched onto this CPU. */
+    public long numRealTimeDispatches;
+
+    /** Number of real-time threads dispatched onto this CPU after their deadline. */
+    public long numDeadlineMisses;
+
+    /**
+     * Is this CPU's timer running?  In tickless mode the timer is stopped
+     * while the CPU is idle with nothing asleep on it.  Protected by the
+     * scheduler's idle list lock.
+     */
+    public boolean timerRunning;
+
+    /** Number of times this CPU's timer has been stopped while idle. */
+    public long numTimerStops;
+
+    /**
+     * Number of threads dispatched onto this CPU from each run queue level,
+     * not counting real-time threads.
+     */
+    public final long[] dispatchesByLevel;
+
+    /**
+     * Total time, in ticks, that threads dispatched onto this CPU waited in
+     * the run queues, by the level at which they waited.
+     */
+    public final long[] waitTicksByLevel;
+
+    /**
+     * Scratch space for Scheduler.readyToRunAll: the threads of a batch
+     * that were made ready on this CPU's run queue.  Empty except during
+     * a call on this CPU.
+     */
+    public final ArrayQueue<NachosThread> batchedHere = new ArrayQueue<NachosThread>();
+
+    /**
+     * Scratch space for Scheduler.readyToRunAll: the threads of a batch
+     * that belong on some other run queue.  Empty except during a call on
+     * this CPU.
+     */
+    public final ArrayQueue<NachosThread> batchedElsewhere = new ArrayQueue<NachosThread>();
+
+    /**
+     * Initialize the state for a specified CPU.
+     *
+     * @param cpu  The CPU.
+     * @param policy  The scheduling policy, which supplies the CPU's run queue.
+     */
+    public CPUState(CPU cpu, SchedulingPolicy policy) {
+	this.cpu = cpu;
+	runQueue = policy.newRunQueue(cpu);
+	sleepQueue = new SleepQueue(cpu);
+	dispatchesByLevel = new long[runQueue.numLevels()];
+	waitTicksByLevel = new long[runQueue.numLevels()];
+    }
+}
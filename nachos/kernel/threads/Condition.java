@@ -8,11 +8,14 @@
 
 package nachos.kernel.threads;
 
+import java.util.HashMap;
+
 import nachos.Debug;
 import nachos.kernel.Nachos;
 import nachos.machine.CPU;
 import nachos.machine.NachosThread;
-import nachos.util.FIFOQueue;
+import nachos.util.ArrayQueue;
+import nachos.util.HeapQueue;
 import nachos.util.Queue;
 
 /**
@@ -29,6 +32,28 @@ import nachos.util.Queue;
  *
  *	broadcast() -- wake up all threads waiting on the condition
  *
+ * There are also timed and predicate-filtered versions of these:
+ *
+ *	await(timeout) -- like await(), but give up waiting after a
+ *		number of ticks
+ *
+ *	awaitUntil(predicate) -- await() until the predicate holds
+ *
+ *	signalSatisfied() -- wake up just those threads waiting in
+ *		awaitUntil() whose predicates now hold, and any threads
+ *		waiting in await()
+ *
+ * signalSatisfied() lets a producer wake only the consumers that can make
+ * progress, rather than broadcasting and having the rest go straight back
+ * to sleep.  A predicate is evaluated by the signalling thread, with the
+ * lock held and interrupts disabled, so it must be quick, must not block,
+ * and must depend only on state protected by the lock.  Timeouts are handled
+ * by the CPU timers, so without them (-ps) await(timeout) waits until signalled.
+ *
+ * Waiting threads are woken in order of arrival, unless the condition is
+ * constructed with a priority function (see ThreadPriority), in which case
+ * signal() wakes the waiter with the highest priority.
+ *
  * All operations performed by a thread on a condition variable must be made
  * while the thread is holding a lock.  Indeed, all accesses
  * to a given condition variable must be protected by the same lock.
@@ -73,12 +98,28 @@ public class Condition {
     /** Who's waiting on this condition? */
     private final Queue<NachosThread> waitingThreads;
 
+    /** The predicates of the threads waiting in awaitUntil(). */
+    private final HashMap<NachosThread, Predicate> predicates;
+
     /**
      * Spin lock used to obtain exclusive access to condition state
      * in a multiprocessor setting.
      */
     private final SpinLock spinLock;
 
+    /**
+     * Scratch queue in which broadcast() and signalSatisfied() collect the
+     * threads to be woken, created when first needed and emptied after each
+     * use, so that waking a batch does not allocate.  Protected by spinLock.
+     */
+    private ArrayQueue<NachosThread> batch;
+
+    /**
+     * Scratch queue in which signalSatisfied() keeps the threads that go
+     * on waiting.  Protected by spinLock.
+     */
+    private ArrayQueue<NachosThread> kept;
+
     /**
      * Initialize a new condition variable.
      *
@@ -86,9 +127,25 @@ public class Condition {
      * @param lock A lock to be associated with this condition.
      */
     public Condition(String debugName, Lock lock) {
+	this(debugName, lock, null);
+    }
+
+    /**
+     * Initialize a new condition variable whose waiters are woken in
+     * order of priority.
+     *
+     * @param debugName An arbitrary name, useful for debugging.
+     * @param lock A lock to be associated with this condition.
+     * @param priority The priority of waiting threads, or null to wake
+     * them in order of arrival.
+     */
+    public Condition(String debugName, Lock lock,
+	    HeapQueue.Priority<? super NachosThread> priority) {
 	name = debugName;
-	conditionLock = lock;;
-	waitingThreads = new FIFOQueue<NachosThread>();
+	conditionLock = lock;
+	waitingThreads = (priority == null ? new ArrayQueue<NachosThread>()
+			  : new HeapQueue<NachosThread>(priority));
+	predicates = new HashMap<NachosThread, Predicate>();
 	spinLock = new SpinLock(name + " spin lock");
     }
 
@@ -108,29 +165,82 @@ public class Condition {
      * thread that calls signal or broadcast on the same condition.
      */
     public void await() {
+	block(null, 0);
+    }
+
+    /**
+     * Wait on a condition until signalled, or until a given time has
+     * passed.  The lock is released while waiting, and is always
+     * re-acquired before returning, even if the time ran out.
+     *
+     * @param timeoutTicks  The maximum number of ticks to wait.
+     * @return true if the caller was signalled, false if the time ran out.
+     */
+    public boolean await(int timeoutTicks) {
+	if(timeoutTicks <= 0)
+	    return false;
+	return block(null, timeoutTicks);
+    }
+
+    /**
+     * Wait on a condition until a predicate holds.  The predicate is tested
+     * before waiting and each time the caller is woken, with the lock held.
+     * Only signalSatisfied(), signal() and broadcast() wake the caller, so
+     * a thread that makes the predicate true must call one of them.
+     *
+     * @param predicate  The predicate to wait for.
+     */
+    public void awaitUntil(Predicate predicate) {
+	while(!predicate.holds())
+	    block(predicate, 0);
+    }
+
+    /**
+     * Release the lock, relinquish the CPU until signalled or timed out,
+     * then re-acquire the lock.
+     *
+     * @param predicate  The predicate the caller is waiting for, or null.
+     * @param timeoutTicks  The maximum number of ticks to wait, or zero to
+     * wait until signalled.
+     * @return true if the caller was signalled, false if the time ran out.
+     */
+    private boolean block(Predicate predicate, int timeoutTicks) {
+	NachosThread currentThread = NachosThread.currentThread();
 	Debug.ASSERT(conditionLock.isHeldByCurrentThread(),
 		"Non-owner tried to manipulate condition variable.");
 	Debug.printf('s', "Thread %s waiting on condition variable %s\n",
-		NachosThread.currentThread().name, name);
+		currentThread.name, name);
 
 	int oldLevel = CPU.setLevel(CPU.IntOff);	// disable interrupts
 	spinLock.acquire();				// exclude other CPUs
 
-	waitingThreads.offer(NachosThread.currentThread());
+	waitingThreads.offer(currentThread);
+	if(predicate != null)
+	    predicates.put(currentThread, predicate);
 	conditionLock.release();
-	Nachos.scheduler.sleepThread(spinLock);
+	boolean signalled = true;
+	if(timeoutTicks > 0)
+	    signalled = Nachos.scheduler.sleepThread(spinLock, waitingThreads, timeoutTicks);
+	else
+	    Nachos.scheduler.sleepThread(spinLock);
+	if(predicate != null) {
+	    spinLock.acquire();
+	    predicates.remove(currentThread);
+	    spinLock.release();
+	}
 
 	CPU.setLevel(oldLevel);			// and re-enable interrupts.
 
 	Debug.printf('s', "Trying to reacquire condition %s's lock (%s) for " +
 		"thread %s\n", name, conditionLock.name,
-		NachosThread.currentThread().name);
+		currentThread.name);
 
 	conditionLock.acquire();
 
 	Debug.printf('s', "Reacquired condition %s's lock (%s) for " +
 		"thread %s\n", name, conditionLock.name,
-		NachosThread.currentThread().name);
+		currentThread.name);
+	return signalled;
     }
 
     /**
@@ -165,14 +275,75 @@ public class Condition {
 	int oldLevel = CPU.setLevel(CPU.IntOff);
 	spinLock.acquire();
 
+	// Make all the waiters ready as a single batch.
+	if (batch == null)
+	    batch = new ArrayQueue<NachosThread>();
 	NachosThread newThread = waitingThreads.poll();
 	while (newThread != null) {
 	    Debug.printf('s', "Waking thread %s\n", newThread.name);
-	    Nachos.scheduler.readyToRun(newThread);
+	    batch.offer(newThread);
 	    newThread = waitingThreads.poll();
 	}
+	Nachos.scheduler.readyToRunAll(batch);
+	batch.clear();
 
 	spinLock.release();
 	CPU.setLevel(oldLevel);
     }
+
+    /**
+     * Wake up the threads waiting in awaitUntil() whose predicates now
+     * hold, and all threads waiting in await(), which test their own
+     * conditions.  The threads woken are made ready as a single batch.
+     *
+     * @return the number of threads woken.
+     */
+    public int signalSatisfied() {
+	Debug.ASSERT(NachosThread.currentThread() == null || conditionLock.isHeldByCurrentThread(),
+		"Can't signal unless we own the lock!");
+	Debug.printf('s', "Signalling satisfied waiters on condition %s\n", name);
+
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+
+	// Take every waiter off the queue, in order, and put back those
+	// that are not to be woken, in the same order.
+	if (batch == null)
+	    batch = new ArrayQueue<NachosThread>();
+	if (kept == null)
+	    kept = new ArrayQueue<NachosThread>();
+	NachosThread thread;
+	while ((thread = waitingThreads.poll()) != null) {
+	    Predicate predicate = predicates.get(thread);
+	    if (predicate == null || predicate.holds()) {
+		Debug.printf('s', "Waking thread %s\n", thread.name);
+		batch.offer(thread);
+	    } else {
+		kept.offer(thread);
+	    }
+	}
+	while ((thread = kept.poll()) != null)
+	    waitingThreads.offer(thread);
+	Nachos.scheduler.readyToRunAll(batch);
+	int woken = batch.size();
+	batch.clear();
+
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+	return woken;
+    }
+
+    /**
+     * A condition that a thread can wait for with awaitUntil().
+     */
+    public interface Predicate {
+
+	/**
+	 * Test the condition.  Called with the lock held, possibly by
+	 * another thread and with interrupts disabled.
+	 *
+	 * @return true if the condition holds.
+	 */
+	public boolean holds();
+    }
 }
@@ -36,7 +36,7 @@ public class CyclicBarrierDemo implements Runnable{
 	
 	Debug.println('1', "Demo starting");
 	for(int i = 0; i < rows; i++) {
-	    NachosThread thread = new NachosThread ("Thread Row " + i, new CyclicBarrierDemo(barrier,i));
+	    NachosThread thread = new extendedNachosThread ("Thread Row " + i, new CyclicBarrierDemo(barrier,i));
 	    Nachos.scheduler.readyToRun(thread);
 	}
 	Debug.println('1', "Demo terminating");
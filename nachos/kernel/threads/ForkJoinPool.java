@@ -0,0 +1,436 @@
+package nachos.kernel.threads;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.machine.CPU;
+import nachos.machine.Machine;
+import nachos.machine.NachosThread;
+
+/**
+ * A pool of kernel worker threads that run ForkJoinTasks, which divide
+ * their work recursively into subtasks that can run in parallel.
+ *
+ * Each worker is pinned to a CPU and has its own double-ended queue of
+ * tasks.  A task forked by a worker is pushed onto the bottom of that
+ * worker's deque, and the worker takes its next task from the bottom too,
+ * so it works depth-first on the most recently forked, and smallest, task.
+ * A worker whose deque is empty steals from the top of another worker's
+ * deque, taking the oldest, and largest, task there, so that a few steals
+ * spread a large recursive computation over all the workers.  A worker that
+ * joins a task that has not finished runs other tasks while it waits,
+ * rather than blocking, and only blocks if there is nothing else to do.
+ * Workers that find no work at all park until more is forked.
+ *
+ * Tasks submitted from outside the pool go onto a shared queue, from which
+ * the workers also steal.  The deques are protected by spin locks, held
+ * only for a few instructions at a time, since the machine has no
+ * compare-and-swap.
+ */
+public class ForkJoinPool {
+
+    /** Printable name useful for debugging. */
+    public final String name;
+
+    /** The workers. */
+    private final Worker[] workers;
+
+    /** Tasks submitted from outside the pool. */
+    private final WorkDeque submissions;
+
+    /** Protects parking; held by a worker while it decides to park. */
+    private final Lock idleLock;
+
+    /** Signalled when work is forked while workers are parked. */
+    private final Condition workAvailable;
+
+    /** Number of workers that are parked, or about to park. */
+    private volatile int numIdle;
+
+    /** Protects the waits of threads that block in join(). */
+    final Lock joinLock;
+
+    /** Broadcast when a task that has threads waiting for it finishes. */
+    final Condition joinDone;
+
+    /** Has the pool been shut down? */
+    private volatile boolean shutdown;
+
+    /**
+     * Initialize a fork-join pool with one worker per CPU.
+     *
+     * @param debugName  An arbitrary name, useful for debugging.
+     */
+    public ForkJoinPool(String debugName) {
+	this(debugName, Machine.NUM_CPUS);
+    }
+
+    /**
+     * Initialize a fork-join pool.  Worker i is pinned to CPU i, modulo
+     * the number of CPUs.
+     *
+     * @param debugName  An arbitrary name, useful for debugging.
+     * @param parallelism  The number of workers.
+     */
+    public ForkJoinPool(String debugName, int parallelism) {
+	Debug.ASSERT(parallelism > 0, "A fork-join pool needs at least one worker");
+	name = debugName;
+	submissions = new WorkDeque(name + " submissions");
+	idleLock = new Lock(name + " idle lock");
+	workAvailable = new Condition(name + " work available", idleLock);
+	joinLock = new Lock(name + " join lock");
+	joinDone = new Condition(name + " join done", joinLock);
+	workers = new Worker[parallelism];
+	for(int i = 0; i < parallelism; i++)
+	    workers[i] = new Worker(this, i);
+	for(int i = 0; i < parallelism; i++) {
+	    final Worker worker = workers[i];
+	    extendedNachosThread thread = new extendedNachosThread(name + " worker " + i,
+		    new Runnable() {
+			public void run() {
+			    worker.run();
+			}
+		    });
+	    thread.forkJoinWorker = worker;
+	    if(Machine.NUM_CPUS > 1)
+		Nachos.scheduler.setAffinity(thread, 1L << (i % Machine.NUM_CPUS));
+	    Nachos.scheduler.readyToRun(thread);
+	}
+    }
+
+    /**
+     * Run a task in the pool and wait for its result.  If called by one
+     * of the pool's workers, the task is simply run by that worker.
+     *
+     * @param task  The task to run.
+     * @return the result of the task.
+     */
+    public <V> V invoke(ForkJoinTask<V> task) {
+	Worker worker = Worker.current();
+	if(worker != null && worker.pool == this)
+	    return task.invoke();
+	submit(task);
+	return task.join();
+    }
+
+    /**
+     * Submit a task to be run by one of the workers, without waiting.
+     *
+     * @param task  The task to run.
+     * @throws IllegalStateException  if the pool has been shut down.
+     */
+    public void submit(ForkJoinTask<?> task) {
+	if(shutdown)
+	    throw new IllegalStateException("Fork-join pool " + name + " has been shut down");
+	task.pool = this;
+	submissions.push(task);
+	signalWork();
+    }
+
+    /**
+     * Stop the workers once they have no more work.
+     */
+    public void shutdown() {
+	shutdown = true;
+	idleLock.acquire();
+	workAvailable.broadcast();
+	idleLock.release();
+    }
+
+    /**
+     * Get the number of tasks stolen by the workers from one another
+     * or from the shared queue.
+     *
+     * @return the number of steals.
+     */
+    public long getStealCount() {
+	long steals = 0;
+	for(Worker worker : workers)
+	    steals += worker.numSteals;
+	return steals;
+    }
+
+    /**
+     * Get the number of tasks run by the workers.
+     *
+     * @return the number of tasks run.
+     */
+    public long getTaskCount() {
+	long tasks = 0;
+	for(Worker worker : workers)
+	    tasks += worker.numTasks;
+	return tasks;
+    }
+
+    /**
+     * Wake a parked worker, if there is one, because work has been forked.
+     */
+    void signalWork() {
+	if(numIdle > 0) {
+	    idleLock.acquire();
+	    workAvailable.signal();
+	    idleLock.release();
+	}
+    }
+
+    /**
+     * Take a task from some other worker's deque, or from the shared queue.
+     *
+     * @param thief  The worker that wants work.
+     * @return the task taken, or null if there is no work anywhere.
+     */
+    ForkJoinTask<?> steal(Worker thief) {
+	for(int i = 1; i < workers.length; i++) {
+	    ForkJoinTask<?> task = workers[(thief.index + i) % workers.length].deque.steal();
+	    if(task != null) {
+		thief.numSteals++;
+		return task;
+	    }
+	}
+	ForkJoinTask<?> task = submissions.steal();
+	if(task != null)
+	    thief.numSteals++;
+	return task;
+    }
+
+    /**
+     * Determine whether any work is waiting anywhere in the pool.
+     *
+     * @return true if some deque, or the shared queue, is not empty.
+     */
+    private boolean hasWork() {
+	if(!submissions.isEmpty())
+	    return true;
+	for(Worker worker : workers) {
+	    if(!worker.deque.isEmpty())
+		return true;
+	}
+	return false;
+    }
+
+    /**
+     * Park a worker that has found no work, until work is forked or the
+     * pool is shut down.  The worker counts itself idle before looking
+     * for work one last time, so that work forked after it has looked is
+     * sure to signal it.
+     */
+    private void park() {
+	idleLock.acquire();
+	numIdle++;
+	if(!shutdown && !hasWork())
+	    workAvailable.await();
+	numIdle--;
+	idleLock.release();
+    }
+
+    /**
+     * A worker, and its deque of tasks.
+     */
+    static final class Worker {
+
+	/** The pool the worker belongs to. */
+	final ForkJoinPool pool;
+
+	/** The worker's index in the pool. */
+	final int index;
+
+	/** Tasks forked by the worker and not yet taken. */
+	final WorkDeque deque;
+
+	/** Number of tasks the worker has stolen. */
+	long numSteals;
+
+	/** Number of tasks the worker has run. */
+	long numTasks;
+
+	Worker(ForkJoinPool pool, int index) {
+	    this.pool = pool;
+	    this.index = index;
+	    deque = new WorkDeque(pool.name + " deque " + index);
+	}
+
+	/**
+	 * Get the worker that the current thread is, if any.
+	 *
+	 * @return the current worker, or null if the current thread is not
+	 * a fork-join worker.
+	 */
+	static Worker current() {
+	    NachosThread thread = NachosThread.currentThread();
+	    if(thread instanceof extendedNachosThread)
+		return ((extendedNachosThread)thread).forkJoinWorker;
+	    return null;
+	}
+
+	/**
+	 * Body of the worker: run tasks from its own deque, or stolen from
+	 * elsewhere, parking when there are none, until the pool is shut down.
+	 */
+	void run() {
+	    while(true) {
+		ForkJoinTask<?> task = deque.pop();
+		if(task == null)
+		    task = pool.steal(this);
+		if(task != null) {
+		    exec(task);
+		} else if(pool.shutdown) {
+		    break;
+		} else {
+		    pool.park();
+		}
+	    }
+	    Nachos.scheduler.finishThread();
+	}
+
+	/**
+	 * Run a task in this worker.
+	 *
+	 * @param task  The task.
+	 */
+	void exec(ForkJoinTask<?> task) {
+	    numTasks++;
+	    task.exec();
+	}
+
+	/**
+	 * Run another task, if there is one, while waiting for a task
+	 * to finish: first the worker's own most recent, then a stolen one.
+	 *
+	 * @return true if a task was run, false if there was no work.
+	 */
+	boolean helpOnce() {
+	    ForkJoinTask<?> task = deque.pop();
+	    if(task == null)
+		task = pool.steal(this);
+	    if(task == null)
+		return false;
+	    exec(task);
+	    return true;
+	}
+    }
+
+    /**
+     * A growable circular array of tasks, used as a stack by its owner,
+     * which pushes and pops at the bottom, and as a queue by thieves,
+     * which steal from the top.
+     */
+    static final class WorkDeque {
+
+	/** Initial capacity of a deque. */
+	private static final int INITIAL_CAPACITY = 32;
+
+	/** Protects the deque. */
+	private final SpinLock lock;
+
+	/** The tasks, from top to bottom, wrapping around. */
+	private ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[INITIAL_CAPACITY];
+
+	/** Index of the top task. */
+	private int top;
+
+	/** Number of tasks. */
+	private volatile int size;
+
+	WorkDeque(String name) {
+	    lock = new SpinLock(name);
+	}
+
+	/**
+	 * Determine, without locking, whether the deque looks empty.
+	 *
+	 * @return true if the deque had no tasks when it was looked at.
+	 */
+	boolean isEmpty() {
+	    return size == 0;
+	}
+
+	/**
+	 * Push a task onto the bottom.
+	 *
+	 * @param task  The task.
+	 */
+	void push(ForkJoinTask<?> task) {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    lock.acquire();
+	    if(size == tasks.length) {
+		ForkJoinTask<?>[] grown = new ForkJoinTask<?>[2 * tasks.length];
+		for(int i = 0; i < size; i++)
+		    grown[i] = tasks[(top + i) % tasks.length];
+		tasks = grown;
+		top = 0;
+	    }
+	    tasks[(top + size) % tasks.length] = task;
+	    size = size + 1;
+	    lock.release();
+	    CPU.setLevel(oldLevel);
+	}
+
+	/**
+	 * Pop the task at the bottom.
+	 *
+	 * @return the task, or null if the deque is empty.
+	 */
+	ForkJoinTask<?> pop() {
+	    if(size == 0)
+		return null;
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    lock.acquire();
+	    ForkJoinTask<?> task = null;
+	    if(size > 0) {
+		int bottom = (top + size - 1) % tasks.length;
+		task = tasks[bottom];
+		tasks[bottom] = null;
+		size = size - 1;
+	    }
+	    lock.release();
+	    CPU.setLevel(oldLevel);
+	    return task;
+	}
+
+	/**
+	 * Pop a particular task, if it is at the bottom.
+	 *
+	 * @param task  The task.
+	 * @return true if the task was at the bottom, and has been popped.
+	 */
+	boolean unpush(ForkJoinTask<?> task) {
+	    if(size == 0)
+		return false;
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    lock.acquire();
+	    boolean popped = false;
+	    if(size > 0) {
+		int bottom = (top + size - 1) % tasks.length;
+		if(tasks[bottom] == task) {
+		    tasks[bottom] = null;
+		    size = size - 1;
+		    popped = true;
+		}
+	    }
+	    lock.release();
+	    CPU.setLevel(oldLevel);
+	    return popped;
+	}
+
+	/**
+	 * Steal the task at the top.
+	 *
+	 * @return the task, or null if the deque is empty.
+	 */
+	ForkJoinTask<?> steal() {
+	    if(size == 0)
+		return null;
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    lock.acquire();
+	    ForkJoinTask<?> task = null;
+	    if(size > 0) {
+		task = tasks[top];
+		tasks[top] = null;
+		top = (top + 1) % tasks.length;
+		size = size - 1;
+	    }
+	    lock.release();
+	    CPU.setLevel(oldLevel);
+	    return task;
+	}
+    }
+}
@@ -0,0 +1,158 @@
+package nachos.kernel.threads;
+
+import nachos.Debug;
+
+/**
+ * A task that can be run by a ForkJoinPool, and that may divide its work
+ * into subtasks, forking them to run in parallel and joining them to get
+ * their results.  Subclasses override compute(), typically as follows:
+ *
+ *	if the work is small enough,
+ *		do it directly;
+ *	else
+ *		split it into subtasks, fork all but one of them, compute
+ *		that one directly, then join the others and combine the results.
+ *
+ * fork() and join() may only be called by the workers of a pool, which is
+ * where compute() runs.  A worker that joins a task that has not finished
+ * runs other tasks meanwhile, starting with the task itself if nobody has
+ * stolen it, so that joining seldom blocks.  A task may be forked only once.
+ *
+ * @param <V>  The type of the result of the task.
+ */
+public abstract class ForkJoinTask<V> {
+
+    /** The pool in which the task was forked or submitted. */
+    ForkJoinPool pool;
+
+    /** Has the task finished? */
+    private volatile boolean done;
+
+    /** Is some thread blocked waiting for the task to finish? */
+    private volatile boolean waiting;
+
+    /** The result of the task. */
+    private V result;
+
+    /** The exception thrown by compute(), or null. */
+    private RuntimeException exception;
+
+    /**
+     * Do the work of the task.
+     *
+     * @return the result of the task.
+     */
+    protected abstract V compute();
+
+    /**
+     * Arrange for the task to be run by the pool of the current worker,
+     * by pushing it onto the worker's deque.
+     *
+     * @return this task.
+     */
+    public final ForkJoinTask<V> fork() {
+	ForkJoinPool.Worker worker = ForkJoinPool.Worker.current();
+	Debug.ASSERT(worker != null, "fork() called outside a fork-join pool");
+	pool = worker.pool;
+	worker.deque.push(this);
+	pool.signalWork();
+	return this;
+    }
+
+    /**
+     * Wait until the task has finished, running other tasks meanwhile if
+     * called by a worker, and get its result.
+     *
+     * @return the result of the task.
+     * @throws RuntimeException  if compute() threw it.
+     */
+    public final V join() {
+	ForkJoinPool.Worker worker = ForkJoinPool.Worker.current();
+	if(!done && worker != null && worker.pool == pool) {
+	    if(worker.deque.unpush(this)) {
+		worker.exec(this);
+	    } else {
+		while(!done && worker.helpOnce())
+		    ;
+	    }
+	}
+	if(!done)
+	    awaitDone();
+	return report();
+    }
+
+    /**
+     * Run the task in the current thread, and get its result.
+     *
+     * @return the result of the task.
+     * @throws RuntimeException  if compute() threw it.
+     */
+    public final V invoke() {
+	exec();
+	return report();
+    }
+
+    /**
+     * Run two tasks in parallel, forking the second and computing the
+     * first directly, and wait for both to finish.
+     *
+     * @param first  The task to compute directly.
+     * @param second  The task to fork.
+     */
+    public static void invokeAll(ForkJoinTask<?> first, ForkJoinTask<?> second) {
+	second.fork();
+	first.invoke();
+	second.join();
+    }
+
+    /**
+     * Determine whether the task has finished.
+     *
+     * @return true if the task has finished, normally or with an exception.
+     */
+    public final boolean isDone() {
+	return done;
+    }
+
+    /**
+     * Get the result of a task that has finished.
+     *
+     * @return the result of the task.
+     * @throws RuntimeException  if compute() threw it.
+     */
+    private V report() {
+	if(exception != null)
+	    throw exception;
+	return result;
+    }
+
+    /**
+     * Run compute() and record its outcome, waking any threads waiting
+     * for the task.
+     */
+    final void exec() {
+	try {
+	    result = compute();
+	} catch(RuntimeException e) {
+	    exception = e;
+	}
+	done = true;
+	if(waiting) {
+	    pool.joinLock.acquire();
+	    pool.joinDone.broadcast();
+	    pool.joinLock.release();
+	}
+    }
+
+    /**
+     * Block until the task has finished.  A thread that gets here has
+     * nothing else to do, so it blocks rather than spinning.
+     */
+    private void awaitDone() {
+	pool.joinLock.acquire();
+	waiting = true;
+	while(!done)
+	    pool.joinDone.await();
+	pool.joinLock.release();
+    }
+}
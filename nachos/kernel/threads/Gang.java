@@ -0,0 +1,92 @@
+package nachos.kernel.threads;
+
+import java.util.ArrayList;
+
+import nachos.machine.CPU;
+
+/**
+ * A gang is a set of threads that the scheduler tries to run at the same
+ * time on different CPUs, if gang scheduling is enabled with -gs.
+ * Whenever a member of a gang is dispatched, the other members that are
+ * ready to run are dispatched on idle CPUs or handed to CPUs running
+ * threads outside the gang, so that threads that synchronize closely with
+ * each other do not waste their time slices waiting for siblings that are
+ * not running.
+ *
+ * The members of a gang are protected by a spin lock, which is taken
+ * before any of the scheduler's own locks.
+ */
+public class Gang {
+
+    /** Identifier of the gang, for example the pid of the process it belongs to. */
+    public final int id;
+
+    /** Spin lock for mutually exclusive access to the members. */
+    final SpinLock lock;
+
+    /** The threads in the gang. */
+    private final ArrayList<extendedNachosThread> members =
+	new ArrayList<extendedNachosThread>();
+
+    /**
+     * Initialize an empty gang.
+     *
+     * @param id  An identifier for the gang.
+     */
+    public Gang(int id) {
+	this.id = id;
+	lock = new SpinLock("gang " + id + " lock");
+    }
+
+    /**
+     * Add a thread to this gang.  A thread can be in at most one gang,
+     * and joining does nothing if the thread is already in this gang.
+     *
+     * @param thread  The thread to add.
+     */
+    public void join(extendedNachosThread thread) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	lock.acquire();
+	if(thread.gang != this) {
+	    members.add(thread);
+	    thread.gang = this;
+	}
+	lock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Remove a thread from this gang.
+     *
+     * @param thread  The thread to remove.
+     * @return the number of members left.
+     */
+    public int leave(extendedNachosThread thread) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	lock.acquire();
+	members.remove(thread);
+	thread.gang = null;
+	int left = members.size();
+	lock.release();
+	CPU.setLevel(oldLevel);
+	return left;
+    }
+
+    /**
+     * Get the number of threads in this gang.
+     *
+     * @return the number of members.
+     */
+    public int size() {
+	return members.size();
+    }
+
+    /**
+     * Get the threads in this gang.  The caller must hold the lock.
+     *
+     * @return the live list of members.
+     */
+    ArrayList<extendedNachosThread> members() {
+	return members;
+    }
+}
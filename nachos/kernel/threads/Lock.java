@@ -8,8 +8,13 @@
 
 package nachos.kernel.threads;
 
+import nachos.machine.CPU;
+import nachos.machine.Machine;
 import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+import nachos.util.HeapQueue;
 import nachos.Debug;
+import nachos.kernel.Nachos;
 
 /**
  * This class defines a "lock".  A lock can be BUSY or FREE.
@@ -23,6 +28,32 @@ import nachos.Debug;
  * In addition, by convention, only the thread that acquired the lock
  * may release it.  As with semaphores, you can't read the lock value
  * (because the value might change immediately after you read it).  
+ *
+ * A lock may be adaptive: a thread that finds the lock BUSY while its owner
+ * is running on another CPU spins for a bounded number of ticks, in the
+ * hope that the owner will soon release it, and only blocks if the owner
+ * is not running or the time runs out.  This saves a pair of context
+ * switches when critical sections are short.
+ *
+ * When the lock is released while threads are blocked on it, it is either
+ * handed directly to the thread that has waited longest, which keeps the
+ * waiters in FIFO order, or made FREE while that thread is woken, so that
+ * a running thread may barge in and take it first.  Barging avoids lock
+ * convoys, in which every acquisition costs a context switch because the
+ * lock always belongs to a thread that is not yet running; a waiter that
+ * loses the race goes back to the head of the queue.
+ *
+ * A lock constructed with a priority function (see ThreadPriority) orders
+ * its waiters by priority instead, and by arrival among equal priorities,
+ * so that "the thread that has waited longest" above becomes the waiting
+ * thread with the highest priority.
+ *
+ * The default spin time and choice of policy are set with -ls and -lh.
+ *
+ * tryAcquire() takes the lock only if it is FREE (and, with handoff, no
+ * thread is waiting for it), and tryAcquire(timeout) waits for at most a
+ * given number of ticks.  Timeouts are handled by the CPU timers, so without
+ * them (-ps) a timed acquisition waits until it gets the lock.
  * 
  * NOTE: An implementation of locks and condition variables was not part of
  * the original C++ version of Nachos -- it was part of the student assignments.
@@ -37,36 +68,277 @@ public class Lock {
     /** Printable name useful for debugging. */
     public final String name;
 
-    /** semaphore used for implementation of lock. */
-    private Semaphore sem;
+    /**
+     * Threads blocked waiting for the lock, in order of arrival unless
+     * the lock was given a priority function.
+     */
+    private final HeapQueue<NachosThread> waiters;
+
+    /**
+     * Spin lock used to obtain exclusive access to the lock state
+     * in a multiprocessor setting.
+     */
+    private final SpinLock spinLock;
 
     /** Which thread currently holds this lock? */
     private volatile NachosThread owner;
 
+    /** Maximum time to spin while the owner is running, or zero never to spin. */
+    private final int spinTicks;
+
+    /** Is the lock handed directly to the longest waiter when released? */
+    private final boolean handoff;
+
+    /** Number of times the lock has been acquired. */
+    private long numAcquires;
+
+    /** Number of acquisitions made by spinning while the lock was BUSY. */
+    private long numSpinAcquires;
+
+    /** Number of times a thread has blocked waiting for the lock. */
+    private long numBlocks;
+
+    /** Number of times the lock has been handed directly to a waiter. */
+    private long numHandoffs;
+
+    /** Contention statistics, or null if lock profiling is disabled. */
+    private final LockStatistics stats;
+
+    /** Time at which the lock was last acquired, if profiling. */
+    private int acquireTime;
+
     /**
-     * Initialize a lock.
+     * Initialize a lock, with the spin time and release policy set by
+     * the -ls and -lh options.
      *
      *	@param debugName An arbitrary name, useful for debugging.
      */
     public Lock(String debugName) {
+	this(debugName, Nachos.options.LOCK_SPIN_TICKS, Nachos.options.LOCK_HANDOFF, null);
+    }
+
+    /**
+     * Initialize a lock whose waiters are ordered by priority, with the
+     * spin time and release policy set by the -ls and -lh options.
+     *
+     *	@param debugName An arbitrary name, useful for debugging.
+     *	@param priority  The priority of waiting threads, or null to order
+     *	them by arrival.
+     */
+    public Lock(String debugName, HeapQueue.Priority<? super NachosThread> priority) {
+	this(debugName, Nachos.options.LOCK_SPIN_TICKS, Nachos.options.LOCK_HANDOFF, priority);
+    }
+
+    /**
+     * Initialize a lock.
+     *
+     *	@param debugName An arbitrary name, useful for debugging.
+     *	@param spinTicks  The maximum time, in ticks, to spin waiting for an
+     *	owner that is running on another CPU before blocking, or zero to
+     *	block at once.
+     *	@param handoff  If true, the lock is handed directly to the longest
+     *	waiting thread when it is released; if false, it is made FREE and
+     *	any thread may take it.
+     */
+    public Lock(String debugName, int spinTicks, boolean handoff) {
+	this(debugName, spinTicks, handoff, null);
+    }
+
+    /**
+     * Initialize a lock.
+     *
+     *	@param debugName An arbitrary name, useful for debugging.
+     *	@param spinTicks  The maximum time, in ticks, to spin waiting for an
+     *	owner that is running on another CPU before blocking, or zero to
+     *	block at once.
+     *	@param handoff  If true, the lock is handed directly to the first
+     *	waiting thread when it is released; if false, it is made FREE and
+     *	any thread may take it.
+     *	@param priority  The priority of waiting threads, or null to order
+     *	them by arrival.
+     */
+    public Lock(String debugName, int spinTicks, boolean handoff,
+	    HeapQueue.Priority<? super NachosThread> priority) {
+	Debug.ASSERT(spinTicks >= 0, "Lock spin time must not be negative");
 	name = debugName;
-	sem = new Semaphore("Semaphore for lock \"" + debugName + "\"", 1);
+	// With no priority function, the heap keeps its elements in order of
+	// arrival, and addFirst() lets a woken waiter keep its place.
+	waiters = new HeapQueue<NachosThread>(priority);
+	spinLock = new SpinLock("Spin lock for lock \"" + debugName + "\"");
 	owner = null;
+	this.spinTicks = spinTicks;
+	this.handoff = handoff;
+	stats = LockStatistics.register("lock", debugName, true);
     }
 
     /**
      * Wait until the lock is "free", then set the lock to "busy".
      */
     public void acquire() {
+	NachosThread currentThread = NachosThread.currentThread();
 
 	Debug.printf('s', "Acquiring lock %s for thread %s\n",
-		name, NachosThread.currentThread().name);
+		name, currentThread.name);
+
+	int startTime = (stats != null ? LockStatistics.now() : 0);
+	boolean contended = (owner != null);
+
+	// Spinning only makes sense if time can pass while we do it, and
+	// if the owner can be running on some other CPU.
+	if(spinTicks == 0 || Machine.NUM_CPUS == 1 || CPU.getLevel() == CPU.IntOff
+		|| !spin(currentThread)) {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    spinLock.acquire();
+	    boolean woken = false;
+	    while(owner != currentThread) {
+		if(owner == null && (!handoff || waiters.isEmpty())) {
+		    owner = currentThread;
+		    numAcquires++;
+		    break;
+		}
+		// A woken waiter that was beaten to the lock keeps its place.
+		if(woken)
+		    waiters.addFirst(currentThread);
+		else
+		    waiters.offer(currentThread);
+		numBlocks++;
+		contended = true;
+		Nachos.scheduler.sleepThread(spinLock);
+		spinLock.acquire();
+		woken = true;
+	    }
+	    spinLock.release();
+	    CPU.setLevel(oldLevel);
+	}
+	if(stats != null) {
+	    stats.acquired(startTime, contended);
+	    acquireTime = LockStatistics.now();
+	}
 
-	sem.P();
-	owner = NachosThread.currentThread();
+	Debug.printf('s', "Acquired lock %s for thread %s\n",
+		name, currentThread.name);
+    }
+
+    /**
+     * Set the lock to "busy" if it is "free", without waiting.
+     *
+     * @return true if the lock was acquired, false if it was busy.
+     */
+    public boolean tryAcquire() {
+	NachosThread currentThread = NachosThread.currentThread();
+
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+	boolean acquired = (owner == null && (!handoff || waiters.isEmpty()));
+	if(acquired) {
+	    owner = currentThread;
+	    numAcquires++;
+	}
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+	if(acquired && stats != null) {
+	    stats.acquired(LockStatistics.now(), false);
+	    acquireTime = LockStatistics.now();
+	}
+
+	Debug.printf('s', "Lock %s %s by thread %s without waiting\n",
+		name, acquired ? "acquired" : "not acquired", currentThread.name);
+	return acquired;
+    }
+
+    /**
+     * Wait for at most a given time until the lock is "free", then set
+     * the lock to "busy".  The lock is not spun on before blocking.
+     *
+     * @param timeoutTicks  The maximum number of ticks to wait.
+     * @return true if the lock was acquired, false if the time ran out.
+     */
+    public boolean tryAcquire(int timeoutTicks) {
+	NachosThread currentThread = NachosThread.currentThread();
+
+	Debug.printf('s', "Acquiring lock %s for thread %s within %d ticks\n",
+		name, currentThread.name, timeoutTicks);
+
+	int startTime = (stats != null ? LockStatistics.now() : 0);
+	boolean contended = false;
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+	int deadline = Simulation.cpuLocalTime(CPU.currentCPU()) + timeoutTicks;
+	boolean woken = false;
+	while(owner != currentThread) {
+	    if(owner == null && (!handoff || waiters.isEmpty())) {
+		owner = currentThread;
+		numAcquires++;
+		break;
+	    }
+	    if(woken)
+		waiters.addFirst(currentThread);
+	    else
+		waiters.offer(currentThread);
+	    numBlocks++;
+	    contended = true;
+	    int remaining = deadline - Simulation.cpuLocalTime(CPU.currentCPU());
+	    if(!Nachos.scheduler.sleepThread(spinLock, waiters, remaining)) {
+		CPU.setLevel(oldLevel);
+		Debug.printf('s', "Lock %s timed out for thread %s\n",
+			name, currentThread.name);
+		return false;
+	    }
+	    spinLock.acquire();
+	    woken = true;
+	}
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+	if(stats != null) {
+	    stats.acquired(startTime, contended);
+	    acquireTime = LockStatistics.now();
+	}
 
 	Debug.printf('s', "Acquired lock %s for thread %s\n",
-		name, NachosThread.currentThread().name);
+		name, currentThread.name);
+	return true;
+    }
+
+    /**
+     * Spin while the lock is BUSY and its owner is running, for at most
+     * the spin time, taking the lock if it becomes FREE.
+     * Interrupts are left enabled, so that time passes and the spinning
+     * thread can be preempted.
+     *
+     * @param currentThread  The current thread.
+     * @return true if the lock was acquired, false if the caller should block.
+     */
+    private boolean spin(NachosThread currentThread) {
+	int deadline = Simulation.currentTime() + spinTicks;
+	boolean spun = false;
+	while(true) {
+	    NachosThread holder = owner;
+	    if(holder == null) {
+		int oldLevel = CPU.setLevel(CPU.IntOff);
+		spinLock.acquire();
+		boolean acquired = (owner == null && (!handoff || waiters.isEmpty()));
+		if(acquired) {
+		    owner = currentThread;
+		    numAcquires++;
+		    if(spun)
+			numSpinAcquires++;
+		}
+		spinLock.release();
+		CPU.setLevel(oldLevel);
+		if(acquired)
+		    return true;
+		if(handoff)
+		    return false;
+	    } else if(!Nachos.scheduler.isRunning(holder)) {
+		return false;
+	    }
+	    if(Simulation.currentTime() - deadline >= 0)
+		return false;
+	    // Let a tick pass, taking any pending interrupt.
+	    CPU.setLevel(CPU.IntOff);
+	    CPU.setLevel(CPU.IntOn);
+	    spun = true;
+	}
     }
 
     /**
@@ -80,9 +352,23 @@ public class Lock {
 		"release it!\n");
 	Debug.printf('s', "Thread %s dropping lock %s\n",
 		NachosThread.currentThread().name, name);
+	if(stats != null)
+	    stats.released(acquireTime);
 
-	owner = null;
-	sem.V();
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+	NachosThread thread = waiters.poll();
+	if(thread != null && handoff) {
+	    owner = thread;
+	    numAcquires++;
+	    numHandoffs++;
+	} else {
+	    owner = null;
+	}
+	if(thread != null)
+	    Nachos.scheduler.readyToRun(thread);
+	spinLock.release();
+	CPU.setLevel(oldLevel);
 
 	Debug.printf('s', "Thread %s dropped lock %s\n",
 		NachosThread.currentThread().name, name);
@@ -97,4 +383,40 @@ public class Lock {
 	return (owner != null && owner == NachosThread.currentThread());
     }
 
+    /**
+     * Get the number of times the lock has been acquired.
+     *
+     * @return the number of acquisitions.
+     */
+    public long getAcquireCount() {
+	return numAcquires;
+    }
+
+    /**
+     * Get the number of acquisitions made by spinning while the lock was busy.
+     *
+     * @return the number of acquisitions that avoided blocking by spinning.
+     */
+    public long getSpinAcquireCount() {
+	return numSpinAcquires;
+    }
+
+    /**
+     * Get the number of times a thread has blocked waiting for the lock.
+     *
+     * @return the number of times a thread has blocked.
+     */
+    public long getBlockCount() {
+	return numBlocks;
+    }
+
+    /**
+     * Get the number of times the lock has been handed directly to a waiter.
+     *
+     * @return the number of handoffs.
+     */
+    public long getHandoffCount() {
+	return numHandoffs;
+    }
+
 }
@@ -0,0 +1,249 @@
+package nachos.kernel.threads;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import nachos.kernel.Nachos;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+
+/**
+ * Contention statistics for the locks, semaphores or spin locks of one
+ * kind and name, collected when lock profiling is enabled (-lp).  Each
+ * synchronization object asks for its statistics when it is created, and
+ * gets null if profiling is disabled, so that the only cost when profiling
+ * is off is a test for null.  Objects of the same kind and name share their
+ * statistics, so that the memory used grows with the number of names rather
+ * than with the number of objects created.
+ *
+ * Objects that share statistics may be used at the same time, so the
+ * statistics are updated under their own monitor.
+ * Times are in ticks of simulated time, as returned by Simulation.currentTime().
+ * Waiting for a spin lock only advances the simulated time of the waiting CPU
+ * if the lock is a test-and-set lock, but the time still passes on the other
+ * CPUs, so waits are measured against the latest time of any CPU.
+ *
+ * When the simulation stops, the statistics of all the names that were
+ * ever contended are printed, sorted by total wait time.
+ */
+public class LockStatistics {
+
+    /** Number of waiting threads listed for each name. */
+    private static final int TOP_WAITERS = 3;
+
+    /** Number of waiting threads whose wait times are kept for each name. */
+    private static final int WAITER_SLOTS = 8;
+
+    /** Statistics of every profiled name, by kind and name. */
+    private static final HashMap<String, LockStatistics> all = new HashMap<String, LockStatistics>();
+
+    /** The kind of object: "lock", "spin lock", "semaphore", and so on. */
+    public final String kind;
+
+    /** The name of the object. */
+    public final String name;
+
+    /** Does the object have a holder, so that hold times make sense? */
+    private final boolean hasHolder;
+
+    /** Number of acquisitions. */
+    private long numAcquires;
+
+    /** Number of acquisitions that had to wait. */
+    private long numContended;
+
+    /** Total time spent waiting to acquire. */
+    private long totalWait;
+
+    /** Longest time spent waiting to acquire. */
+    private int maxWait;
+
+    /** Total time for which the object was held. */
+    private long totalHold;
+
+    /** Longest time for which the object was held. */
+    private int maxHold;
+
+    /**
+     * Names of the threads that waited longest, in no particular order.
+     * Once all the slots are in use, a new thread takes the slot of the
+     * one that has waited least, if it has waited longer, so the list is
+     * approximate when many threads wait.
+     */
+    private final String[] waiters = new String[WAITER_SLOTS];
+
+    /** Total wait time of each of the threads in waiters. */
+    private final long[] waiterWaits = new long[WAITER_SLOTS];
+
+    /**
+     * Get statistics for a new object, if lock profiling is enabled.
+     * The statistics are shared with any earlier object of the same kind
+     * and name.  The first call arranges for all the statistics to be
+     * printed when the simulation stops.
+     *
+     * @param kind  The kind of object.
+     * @param name  The name of the object.
+     * @param hasHolder  Is the object held between acquire and release, so
+     * that hold times can be recorded?
+     * @return the statistics for the object, or null if profiling is disabled.
+     */
+    public static LockStatistics register(String kind, String name, boolean hasHolder) {
+	if(!Nachos.options.LOCK_PROFILE)
+	    return null;
+	String key = kind + " \"" + name + "\"";
+	synchronized(all) {
+	    // Simulation.stop() exits the JVM, so report from a shutdown hook.
+	    if(all.isEmpty()) {
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+		    public void run() {
+			printAll();
+		    }
+		});
+	    }
+	    LockStatistics stats = all.get(key);
+	    if(stats == null)
+		all.put(key, stats = new LockStatistics(kind, name, hasHolder));
+	    return stats;
+	}
+    }
+
+    /**
+     * Initialize the statistics for an object.
+     *
+     * @param kind  The kind of object.
+     * @param name  The name of the object.
+     * @param hasHolder  Can hold times be recorded for the object?
+     */
+    private LockStatistics(String kind, String name, boolean hasHolder) {
+	this.kind = kind;
+	this.name = name;
+	this.hasHolder = hasHolder;
+    }
+
+    /**
+     * Get the current time, for timing waits and holds.
+     *
+     * @return the latest simulated time of any CPU.
+     */
+    public static int now() {
+	return Simulation.currentTime();
+    }
+
+    /**
+     * Record an acquisition.
+     *
+     * @param startTime  The time at which the attempt to acquire started.
+     * @param contended  Did the acquisition have to wait?
+     */
+    public synchronized void acquired(int startTime, boolean contended) {
+	numAcquires++;
+	if(!contended)
+	    return;
+	int wait = now() - startTime;
+	numContended++;
+	totalWait += wait;
+	if(wait > maxWait)
+	    maxWait = wait;
+	String waiter = waiterName();
+	int least = 0;
+	for(int i = 0; i < WAITER_SLOTS; i++) {
+	    if(waiters[i] == null || waiters[i].equals(waiter)) {
+		waiters[i] = waiter;
+		waiterWaits[i] += wait;
+		return;
+	    }
+	    if(waiterWaits[i] < waiterWaits[least])
+		least = i;
+	}
+	if(wait > waiterWaits[least]) {
+	    waiters[least] = waiter;
+	    waiterWaits[least] = wait;
+	}
+    }
+
+    /**
+     * Record a release.  Must be called by the holder, before releasing.
+     *
+     * @param acquireTime  The time at which the object was acquired.
+     */
+    public synchronized void released(int acquireTime) {
+	int hold = now() - acquireTime;
+	totalHold += hold;
+	if(hold > maxHold)
+	    maxHold = hold;
+    }
+
+    /**
+     * Get a name for the activity that is waiting: the current thread,
+     * or the CPU if it is not running a thread.
+     *
+     * @return the name of the waiting thread or CPU.
+     */
+    private static String waiterName() {
+	NachosThread thread = NachosThread.currentThread();
+	if(thread != null)
+	    return thread.name;
+	CPU cpu = CPU.currentCPU();
+	return cpu != null ? cpu.name : "host";
+    }
+
+    /**
+     * Print the statistics of every name that was ever contended,
+     * sorted by total wait time, longest first.
+     * This is called automatically when the simulation stops if profiling
+     * is enabled.  The statistics are read without locking, so a snapshot
+     * taken while the simulation is running may be slightly inconsistent.
+     */
+    public static void printAll() {
+	ArrayList<LockStatistics> contended = new ArrayList<LockStatistics>();
+	int numUncontended = 0;
+	synchronized(all) {
+	    for(LockStatistics stats : all.values()) {
+		if(stats.numContended > 0)
+		    contended.add(stats);
+		else if(stats.numAcquires > 0)
+		    numUncontended++;
+	    }
+	}
+	Collections.sort(contended, new Comparator<LockStatistics>() {
+	    public int compare(LockStatistics a, LockStatistics b) {
+		return a.totalWait > b.totalWait ? -1 : a.totalWait < b.totalWait ? 1 : 0;
+	    }
+	});
+	System.out.println("Lock contention (times in ticks, by total wait):");
+	for(LockStatistics stats : contended)
+	    System.out.println("   " + stats);
+	System.out.println("   " + numUncontended + " others acquired without contention");
+    }
+
+    /**
+     * Describe the statistics, with the threads that waited longest.
+     */
+    public synchronized String toString() {
+	StringBuffer line = new StringBuffer(kind + " \"" + name + "\""
+		+ ": acquires " + numAcquires
+		+ ", contended " + numContended
+		+ ", wait " + totalWait
+		+ ", max wait " + maxWait);
+	if(hasHolder)
+	    line.append(", hold " + totalHold + ", max hold " + maxHold);
+	line.append(", top waiters:");
+	boolean[] listed = new boolean[WAITER_SLOTS];
+	for(int n = 0; n < TOP_WAITERS; n++) {
+	    int top = -1;
+	    for(int i = 0; i < WAITER_SLOTS; i++) {
+		if(waiters[i] != null && !listed[i]
+			&& (top < 0 || waiterWaits[i] > waiterWaits[top]))
+		    top = i;
+	    }
+	    if(top < 0)
+		break;
+	    listed[top] = true;
+	    line.append(" " + waiters[top] + " (" + waiterWaits[top] + ")");
+	}
+	return line.toString();
+    }
+}
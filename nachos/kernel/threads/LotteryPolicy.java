@@ -0,0 +1,128 @@
+package nachos.kernel.threads;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.machine.CPU;
+
+/**
+ * Lottery scheduling.  Each thread has a number of tickets, and the next
+ * thread to run is chosen by drawing one of the tickets held by the ready
+ * threads at random, so that each thread receives quanta in proportion to
+ * its tickets, on average.
+ *
+ * If a random seed has been given with -rs, then each run queue uses a
+ * random number generator seeded from it, so that runs are repeatable.
+ */
+public class LotteryPolicy implements SchedulingPolicy {
+
+    /** The quantum given to every thread. */
+    private final int quantum;
+
+    /**
+     * Initialize a lottery scheduling policy.
+     *
+     * @param quantum  The quantum given to every thread.
+     */
+    public LotteryPolicy(int quantum) {
+	Debug.ASSERT(quantum > 0, "Run queue quantum must be positive");
+	this.quantum = quantum;
+    }
+
+    public RunQueue newRunQueue(CPU cpu) {
+	return new LotteryRunQueue(cpu);
+    }
+
+    public int quantum(extendedNachosThread thread) {
+	return quantum;
+    }
+
+    public boolean tick(extendedNachosThread thread, int ranTicks) {
+	return ranTicks >= thread.quantum;
+    }
+
+    /**
+     * Threads are only favored on average, so a wakeup never preempts.
+     */
+    public boolean preempts(extendedNachosThread ready, extendedNachosThread running) {
+	return false;
+    }
+
+    /**
+     * Run queue for one CPU, holding the ready threads in no particular order.
+     */
+    private static class LotteryRunQueue extends RunQueue {
+
+	/** Ready threads. */
+	private final ArrayList<extendedNachosThread> threads =
+	    new ArrayList<extendedNachosThread>();
+
+	/** Total number of tickets held by the ready threads. */
+	private long totalTickets;
+
+	/** Source of random numbers for drawing tickets. */
+	private final Random random;
+
+	LotteryRunQueue(CPU cpu) {
+	    super(cpu, 1);
+	    int seed = Nachos.options.RANDOM_SEED;
+	    random = (seed != 0 ? new Random(seed + cpu.unit) : new Random());
+	}
+
+	protected int enqueue(extendedNachosThread thread) {
+	    threads.add(thread);
+	    totalTickets += tickets(thread);
+	    return 0;
+	}
+
+	protected extendedNachosThread pickNext() {
+	    long winner = (long)(random.nextDouble() * totalTickets);
+	    int i = 0;
+	    while(i < threads.size() - 1) {
+		winner -= tickets(threads.get(i));
+		if(winner < 0)
+		    break;
+		i++;
+	    }
+	    // Order does not matter, so fill the hole with the last thread.
+	    extendedNachosThread thread = threads.get(i);
+	    int last = threads.size() - 1;
+	    threads.set(i, threads.get(last));
+	    threads.remove(last);
+	    totalTickets -= tickets(thread);
+	    return thread;
+	}
+
+	protected void dequeue(extendedNachosThread thread) {
+	    threads.remove(thread);
+	    totalTickets -= tickets(thread);
+	}
+
+	/**
+	 * Threads are picked at random, so the first allowed thread will do.
+	 */
+	protected extendedNachosThread pickFor(int unit) {
+	    for(int i = 0; i < threads.size(); i++) {
+		extendedNachosThread thread = threads.get(i);
+		if(thread.mayRunOn(unit)) {
+		    int last = threads.size() - 1;
+		    threads.set(i, threads.get(last));
+		    threads.remove(last);
+		    totalTickets -= tickets(thread);
+		    return thread;
+		}
+	    }
+	    return null;
+	}
+
+	/**
+	 * Get the number of tickets held by a thread, treating a thread
+	 * with no tickets as holding one.
+	 */
+	private static int tickets(extendedNachosThread thread) {
+	    return Math.max(1, thread.tickets);
+	}
+    }
+}
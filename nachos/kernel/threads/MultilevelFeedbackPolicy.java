@@ -0,0 +1,295 @@
+package nachos.kernel.threads;
+
+import nachos.Debug;
+import nachos.machine.CPU;
+import nachos.machine.Simulation;
+import nachos.util.ArrayQueue;
+import nachos.util.Queue;
+
+/**
+ * Multilevel feedback queue scheduling.  Level 0 has the shortest quantum
+ * and the highest priority; each subsequent level has twice the quantum of
+ * the level before it.  The scheduler measures the length of each CPU burst
+ * of a thread, from the time it is dispatched until it yields or blocks,
+ * and the thread is placed at the first level whose burst threshold covers
+ * the exponentially weighted average of its bursts.  By default the
+ * threshold of each level is half its quantum, so threads that repeatedly
+ * use up their quantum drift down to longer, lower-priority levels, and
+ * threads that block early stay at the top.
+ *
+ * To prevent starvation, threads that have waited at one level of a run
+ * queue for longer than the aging interval are promoted one level, and so
+ * climb a level per aging interval while they wait.  Aging is done as part of
+ * picking the next thread to run, at most twice per aging interval.
+ *
+ * The levels are kept in an array, and a bitmap records which levels are
+ * nonempty, so that both enqueueing a thread and picking the next thread
+ * to run take constant time, regardless of the number of levels (apart from
+ * a binary search of the thresholds and the occasional aging pass).
+ */
+public class MultilevelFeedbackPolicy implements SchedulingPolicy {
+
+    /** Maximum number of levels, limited by the size of the bitmap. */
+    public static final int MAX_LEVELS = Long.SIZE;
+
+    /** Default weight, in percent, given to the latest burst in the average. */
+    public static final int DEFAULT_BURST_WEIGHT = 40;
+
+    /** Quantum associated with each level. */
+    private final int[] quantums;
+
+    /**
+     * Burst threshold associated with each level: a thread is placed at the
+     * first level whose threshold is at least its average burst.
+     */
+    private final int[] thresholds;
+
+    /** Weight, in percent, given to the latest burst in the average. */
+    private final int burstWeight;
+
+    /**
+     * Time a thread may wait in a run queue before being promoted,
+     * or zero if there is no aging.
+     */
+    private final int agingTicks;
+
+    /**
+     * Initialize a multilevel feedback queue policy with the default burst
+     * weight and thresholds, and aging after eight base quanta.
+     *
+     * @param numLevels  The number of levels, at most MAX_LEVELS.
+     * @param quantum  The quantum for level 0.
+     */
+    public MultilevelFeedbackPolicy(int numLevels, int quantum) {
+	this(numLevels, quantum, DEFAULT_BURST_WEIGHT, null,
+	     (int)Math.min(8L*quantum, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Initialize a multilevel feedback queue policy.
+     *
+     * @param numLevels  The number of levels, at most MAX_LEVELS.
+     * @param quantum  The quantum for level 0.  The quantum doubles at each
+     * subsequent level, saturating at Integer.MAX_VALUE.
+     * @param burstWeight  The weight, in percent, given to the latest burst
+     * when updating a thread's average burst.
+     * @param thresholds  The burst threshold for each level, which must be
+     * nondecreasing, or null to use half of each level's quantum.
+     * If fewer thresholds than levels are given, the remaining levels
+     * use the default.  The last level takes all the threads that do not
+     * fit elsewhere, regardless of its threshold.
+     * @param agingTicks  The time a thread may wait in a run queue before
+     * being promoted one level, or zero to disable aging.
+     */
+    public MultilevelFeedbackPolicy(int numLevels, int quantum, int burstWeight,
+	    int[] thresholds, int agingTicks) {
+	Debug.ASSERT(numLevels > 0 && numLevels <= MAX_LEVELS,
+		"Number of run queue levels must be between 1 and " + MAX_LEVELS);
+	Debug.ASSERT(quantum > 0, "Run queue quantum must be positive");
+	Debug.ASSERT(burstWeight >= 0 && burstWeight <= 100,
+		"Burst weight must be between 0 and 100 percent");
+	Debug.ASSERT(agingTicks >= 0, "Aging interval must not be negative");
+	this.burstWeight = burstWeight;
+	this.agingTicks = agingTicks;
+	quantums = new int[numLevels];
+	this.thresholds = new int[numLevels];
+	for(int i = 0; i < numLevels; i++) {
+	    if(i == 0)
+		quantums[i] = quantum;
+	    else
+		quantums[i] = (int)Math.min(2L*quantums[i-1], Integer.MAX_VALUE);
+	    if(thresholds != null && i < thresholds.length)
+		this.thresholds[i] = thresholds[i];
+	    else
+		this.thresholds[i] = quantums[i] / 2;
+	    Debug.ASSERT(i == 0 || this.thresholds[i] >= this.thresholds[i-1],
+		    "Burst thresholds must be nondecreasing");
+	}
+    }
+
+    public RunQueue newRunQueue(CPU cpu) {
+	return new MultilevelRunQueue(cpu);
+    }
+
+    public int quantum(extendedNachosThread thread) {
+	return quantums[thread.level];
+    }
+
+    /**
+     * Preempt the thread when it has used up the quantum of its level.
+     */
+    public boolean tick(extendedNachosThread thread, int ranTicks) {
+	return ranTicks >= thread.quantum;
+    }
+
+    /**
+     * A thread preempts a thread at a lower-priority level.
+     */
+    public boolean preempts(extendedNachosThread ready, extendedNachosThread running) {
+	return ready.level < running.level;
+    }
+
+    /**
+     * Choose the level for a thread, based on its average CPU burst:
+     * the first level whose threshold is at least as long as the average
+     * burst, or the last level if there is no such level.
+     *
+     * @param avgCPUBurst  The thread's average CPU burst.
+     * @return the level at which the thread should be placed.
+     */
+    public int levelFor(int avgCPUBurst) {
+	int lo = 0;
+	int hi = thresholds.length - 1;
+	while(lo < hi) {
+	    int mid = (lo + hi) >>> 1;
+	    if(thresholds[mid] >= avgCPUBurst)
+		hi = mid;
+	    else
+		lo = mid + 1;
+	}
+	return lo;
+    }
+
+    /**
+     * Update the exponentially weighted average of a thread's CPU bursts
+     * with its most recent burst.
+     *
+     * @param thread  The thread.
+     */
+    private void setAvgCPUBurst(extendedNachosThread thread) {
+	long avg = ((long)burstWeight * thread.currCPUBurst
+		    + (long)(100 - burstWeight) * thread.avgCPUBurst) / 100;
+	thread.avgCPUBurst = (int)avg;
+    }
+
+    /**
+     * Run queue for one CPU, with one FIFO queue per level.
+     */
+    private class MultilevelRunQueue extends RunQueue {
+
+	/** Ready threads, one FIFO queue per level. */
+	private final ArrayQueue<extendedNachosThread>[] levels;
+
+	/** Bit i is set if and only if levels[i] is nonempty. */
+	private long nonEmpty;
+
+	/** Time at or after which the next aging pass is due. */
+	private int nextAgingTime;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	MultilevelRunQueue(CPU cpu) {
+	    super(cpu, quantums.length);
+	    levels = new ArrayQueue[quantums.length];
+	    for(int i = 0; i < levels.length; i++)
+		levels[i] = new ArrayQueue<extendedNachosThread>();
+	}
+
+	protected int enqueue(extendedNachosThread thread) {
+	    setAvgCPUBurst(thread);
+	    int level = levelFor(thread.avgCPUBurst);
+	    add(thread, level);
+	    return level;
+	}
+
+	protected extendedNachosThread pickNext() {
+	    if(agingTicks > 0) {
+		int now = Simulation.currentTime();
+		if(now >= nextAgingTime) {
+		    age(now);
+		    nextAgingTime = now + Math.max(1, agingTicks / 2);
+		}
+	    }
+	    int level = Long.numberOfTrailingZeros(nonEmpty);
+	    Queue<extendedNachosThread> queue = levels[level];
+	    extendedNachosThread thread = queue.poll();
+	    if(queue.isEmpty())
+		nonEmpty &= ~(1L << level);
+	    return thread;
+	}
+
+	protected void dequeue(extendedNachosThread thread) {
+	    ArrayQueue<extendedNachosThread> queue = levels[thread.level];
+	    queue.remove(thread);
+	    if(queue.isEmpty())
+		nonEmpty &= ~(1L << thread.level);
+	}
+
+	/**
+	 * A thread moved from another run queue keeps its level: its burst
+	 * average was already updated when it was made ready.
+	 */
+	protected int requeue(extendedNachosThread thread) {
+	    add(thread, thread.level);
+	    return thread.level;
+	}
+
+	/**
+	 * The nonempty levels are searched from the top down, each from its head.
+	 */
+	protected extendedNachosThread pickFor(int unit) {
+	    long remaining = nonEmpty;
+	    while(remaining != 0) {
+		int level = Long.numberOfTrailingZeros(remaining);
+		remaining &= remaining - 1;
+		ArrayQueue<extendedNachosThread> queue = levels[level];
+		for(int i = 0; i < queue.size(); i++) {
+		    extendedNachosThread thread = queue.get(i);
+		    if(thread.mayRunOn(unit)) {
+			queue.removeAt(i);
+			if(queue.isEmpty())
+			    nonEmpty &= ~(1L << level);
+			return thread;
+		    }
+		}
+	    }
+	    return null;
+	}
+
+	/**
+	 * Add a thread to the end of the queue for a level, recording the
+	 * time at which it joined, so that each level stays in order of
+	 * those times.
+	 *
+	 * @param thread  The thread.
+	 * @param level  The level.
+	 */
+	private void add(extendedNachosThread thread, int level) {
+	    thread.levelTime = Simulation.currentTime();
+	    levels[level].offer(thread);
+	    nonEmpty |= 1L << level;
+	}
+
+	/**
+	 * Promote by one level each thread that has waited at its level for
+	 * at least the aging interval.  Since each level is in order of the
+	 * times at which its threads joined it, only the threads at the head
+	 * of each level need to be examined.  A promoted thread joins the end
+	 * of the level above as if newly arrived, which keeps that level in
+	 * order, and must wait there for another aging interval before it is
+	 * promoted again.  The time at which it was made ready is unchanged,
+	 * so its wait in the run queue is still charged in full when it is
+	 * dispatched.
+	 *
+	 * @param now  The current time.
+	 */
+	private void age(int now) {
+	    long candidates = nonEmpty & ~1L;
+	    while(candidates != 0) {
+		int level = Long.numberOfTrailingZeros(candidates);
+		candidates &= candidates - 1;
+		Queue<extendedNachosThread> queue = levels[level];
+		extendedNachosThread thread;
+		while((thread = queue.peek()) != null
+			&& now - thread.levelTime >= agingTicks) {
+		    queue.poll();
+		    Debug.println('t', "Aging " + thread.name + " to level "
+			    + (level - 1));
+		    add(thread, level - 1);
+		    changeLevel(thread, level - 1);
+		}
+		if(queue.isEmpty())
+		    nonEmpty &= ~(1L << level);
+	    }
+	}
+    }
+}
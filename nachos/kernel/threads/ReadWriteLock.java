@@ -0,0 +1,385 @@
+package nachos.kernel.threads;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.util.ArrayQueue;
+
+/**
+ * This class defines a "reader-writer lock", for data structures that are
+ * read much more often than they are changed.  Any number of threads may
+ * hold the lock for reading at the same time, but a thread that holds it
+ * for writing holds it alone.  The operations are:
+ *
+ *	acquireRead -- wait until no thread holds the lock for writing,
+ *		then hold it for reading.
+ *
+ *	releaseRead -- give up one read hold, letting a writer in if
+ *		this was the last reader.
+ *
+ *	acquireWrite -- wait until no thread holds the lock at all,
+ *		then hold it for writing.
+ *
+ *	releaseWrite -- give up the write hold, letting the next writer
+ *		or the waiting readers in.
+ *
+ *	downgrade -- turn a write hold into a read hold, without letting
+ *		any writer in between, so that other readers may join.
+ *
+ * Read holds are reentrant: a thread that holds the lock for reading may
+ * acquire it for reading again (even if writers are waiting, which would
+ * otherwise deadlock), and must release it as many times.  A thread that
+ * holds the lock for writing may also acquire it for reading, which is how
+ * a writer calls code that only reads.  Write holds are not reentrant, and
+ * a reader may not upgrade to a writer, since two readers trying to do so
+ * at once would deadlock.
+ *
+ * There are two policies for choosing among waiting threads:
+ *
+ *	writer preference -- a thread that wants to read waits while any
+ *		writer is waiting, and released locks go to waiting writers
+ *		first.  This keeps the data up to date, but a steady stream
+ *		of writers can starve the readers.
+ *
+ *	fair -- threads are let in in the order in which they arrived,
+ *		each writer on its own and each run of consecutive readers
+ *		together, so that neither readers nor writers starve.
+ *
+ * A released lock is handed directly to the threads that are let in,
+ * so a woken thread never has to compete for it again.
+ * All the operations must be called from a thread context.
+ */
+public class ReadWriteLock {
+
+    /** Printable name useful for debugging. */
+    public final String name;
+
+    /** Are waiting threads let in in order of arrival, rather than writers first? */
+    private final boolean fair;
+
+    /**
+     * Threads blocked waiting for the lock, in order of arrival.  Each
+     * thread's waitingToWrite flag says how it wants to hold the lock.
+     */
+    private final ArrayQueue<extendedNachosThread> waiters;
+
+    /**
+     * Spin lock used to obtain exclusive access to the lock state
+     * in a multiprocessor setting.
+     */
+    private final SpinLock spinLock;
+
+    /**
+     * Number of threads that hold the lock for reading.  The number of
+     * read holds of each is kept by the thread itself.
+     */
+    private int numReaders;
+
+    /** Which thread holds the lock for writing, or null if none does? */
+    private NachosThread writer;
+
+    /** Number of threads waiting to acquire the lock for writing. */
+    private int waitingWriters;
+
+    /**
+     * Readers being let in together, kept between uses so that a batch
+     * wakeup does not allocate.  Protected by the spin lock.
+     */
+    private ArrayQueue<NachosThread> admitted;
+
+    /** Contention statistics, or null if lock profiling is disabled. */
+    private final LockStatistics stats;
+
+    /**
+     * Initialize a reader-writer lock that gives preference to writers.
+     *
+     * @param debugName  An arbitrary name, useful for debugging.
+     */
+    public ReadWriteLock(String debugName) {
+	this(debugName, false);
+    }
+
+    /**
+     * Initialize a reader-writer lock.
+     *
+     * @param debugName  An arbitrary name, useful for debugging.
+     * @param fair  If true, waiting threads are let in in order of arrival;
+     * if false, waiting writers are let in before waiting readers.
+     */
+    public ReadWriteLock(String debugName, boolean fair) {
+	name = debugName;
+	this.fair = fair;
+	waiters = new ArrayQueue<extendedNachosThread>();
+	spinLock = new SpinLock("Spin lock for reader-writer lock \"" + debugName + "\"");
+	stats = LockStatistics.register("reader-writer lock", debugName, false);
+    }
+
+    /**
+     * Wait until no other thread holds the lock for writing, then hold
+     * it for reading.
+     */
+    public void acquireRead() {
+	extendedNachosThread currentThread = (extendedNachosThread)NachosThread.currentThread();
+
+	Debug.printf('s', "Acquiring lock %s for reading for thread %s\n",
+		name, currentThread.name);
+
+	int startTime = (stats != null ? LockStatistics.now() : 0);
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+	int i = indexOf(currentThread);
+	if(i >= 0) {
+	    currentThread.readHolds[i]++;
+	    if(stats != null)
+		stats.acquired(startTime, false);
+	    spinLock.release();
+	} else if(writer == currentThread
+		|| (writer == null && (fair ? waiters.isEmpty() : waitingWriters == 0))) {
+	    addReader(currentThread);
+	    if(stats != null)
+		stats.acquired(startTime, false);
+	    spinLock.release();
+	} else {
+	    currentThread.waitingToWrite = false;
+	    waiters.offer(currentThread);
+	    Nachos.scheduler.sleepThread(spinLock);
+	    recordWait(startTime);
+	}
+	CPU.setLevel(oldLevel);
+
+	Debug.printf('s', "Acquired lock %s for reading for thread %s\n",
+		name, currentThread.name);
+    }
+
+    /**
+     * Give up one read hold of the lock.
+     */
+    public void releaseRead() {
+	extendedNachosThread currentThread = (extendedNachosThread)NachosThread.currentThread();
+
+	Debug.printf('s', "Thread %s dropping read hold of lock %s\n",
+		currentThread.name, name);
+
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+	int i = indexOf(currentThread);
+	Debug.ASSERT(i >= 0,
+		"A thread that doesn't hold the lock for reading tried to release it!\n");
+	if(--currentThread.readHolds[i] == 0) {
+	    removeReader(currentThread, i);
+	    if(numReaders == 0)
+		admitWaiters();
+	}
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Wait until no other thread holds the lock, then hold it for writing.
+     */
+    public void acquireWrite() {
+	extendedNachosThread currentThread = (extendedNachosThread)NachosThread.currentThread();
+
+	Debug.printf('s', "Acquiring lock %s for writing for thread %s\n",
+		name, currentThread.name);
+
+	int startTime = (stats != null ? LockStatistics.now() : 0);
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+	Debug.ASSERT(writer != currentThread,
+		"A thread tried to acquire a write lock it already holds!\n");
+	Debug.ASSERT(indexOf(currentThread) < 0,
+		"A thread tried to upgrade a read lock to a write lock!\n");
+	if(writer == null && numReaders == 0 && waiters.isEmpty()) {
+	    writer = currentThread;
+	    if(stats != null)
+		stats.acquired(startTime, false);
+	    spinLock.release();
+	} else {
+	    currentThread.waitingToWrite = true;
+	    waiters.offer(currentThread);
+	    waitingWriters++;
+	    Nachos.scheduler.sleepThread(spinLock);
+	    recordWait(startTime);
+	}
+	CPU.setLevel(oldLevel);
+
+	Debug.printf('s', "Acquired lock %s for writing for thread %s\n",
+		name, currentThread.name);
+    }
+
+    /**
+     * Give up the write hold of the lock.
+     */
+    public void releaseWrite() {
+	Debug.printf('s', "Thread %s dropping write hold of lock %s\n",
+		NachosThread.currentThread().name, name);
+
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+	Debug.ASSERT(writer == NachosThread.currentThread(),
+		"A thread that doesn't hold the lock for writing tried to release it!\n");
+	writer = null;
+	admitWaiters();
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Turn the current thread's write hold of the lock into a read hold,
+     * letting in other readers, but no writer, before it is released.
+     * If the current thread already holds the lock for reading as well,
+     * the write hold is simply given up.
+     */
+    public void downgrade() {
+	extendedNachosThread currentThread = (extendedNachosThread)NachosThread.currentThread();
+
+	Debug.printf('s', "Thread %s downgrading lock %s\n",
+		currentThread.name, name);
+
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+	Debug.ASSERT(writer == currentThread,
+		"A thread that doesn't hold the lock for writing tried to downgrade it!\n");
+	if(indexOf(currentThread) < 0)
+	    addReader(currentThread);
+	writer = null;
+	admitWaiters();
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Record an acquisition that had to wait, if profiling.
+     * Must be called with interrupts disabled.
+     *
+     * @param startTime  The time at which the wait started.
+     */
+    private void recordWait(int startTime) {
+	if(stats != null) {
+	    spinLock.acquire();
+	    stats.acquired(startTime, true);
+	    spinLock.release();
+	}
+    }
+
+    /**
+     * Find this lock among the locks that a thread holds for reading.
+     *
+     * @param thread  The thread.
+     * @return the index of this lock in the thread's readLocks, or -1
+     * if the thread does not hold it for reading.
+     */
+    private int indexOf(extendedNachosThread thread) {
+	for(int i = 0; i < thread.numReadLocks; i++) {
+	    if(thread.readLocks[i] == this)
+		return i;
+	}
+	return -1;
+    }
+
+    /**
+     * Give a thread that does not hold the lock for reading its first
+     * read hold.  Must be called with the spin lock held.
+     *
+     * @param thread  The thread.
+     */
+    private void addReader(extendedNachosThread thread) {
+	Debug.ASSERT(thread.numReadLocks < extendedNachosThread.MAX_READ_LOCKS,
+		"A thread holds too many reader-writer locks for reading!\n");
+	thread.readLocks[thread.numReadLocks] = this;
+	thread.readHolds[thread.numReadLocks] = 1;
+	thread.numReadLocks++;
+	numReaders++;
+    }
+
+    /**
+     * Remove this lock from the locks that a thread holds for reading,
+     * once it has given up its last read hold.  Must be called with the
+     * spin lock held.
+     *
+     * @param thread  The thread.
+     * @param i  The index of this lock in the thread's readLocks.
+     */
+    private void removeReader(extendedNachosThread thread, int i) {
+	int last = --thread.numReadLocks;
+	thread.readLocks[i] = thread.readLocks[last];
+	thread.readHolds[i] = thread.readHolds[last];
+	thread.readLocks[last] = null;
+	numReaders--;
+    }
+
+    /**
+     * Let in as many waiting threads as the policy allows, given the
+     * current holders, handing the lock to them and making them ready.
+     * Must be called with interrupts disabled and the spin lock held.
+     */
+    private void admitWaiters() {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && spinLock.isLocked());
+	if(writer != null)
+	    return;
+	if(waitingWriters > 0 && numReaders == 0) {
+	    // Let in a writer: the first in line if fair, else the first writer.
+	    int i = 0;
+	    if(!waiters.peek().waitingToWrite) {
+		if(fair) {
+		    admitReaders();
+		    return;
+		}
+		while(!waiters.get(i).waitingToWrite)
+		    i++;
+	    }
+	    extendedNachosThread thread = waiters.get(i);
+	    waiters.removeAt(i);
+	    waitingWriters--;
+	    writer = thread;
+	    Nachos.scheduler.readyToRun(thread);
+	} else if(fair || waitingWriters == 0) {
+	    admitReaders();
+	}
+    }
+
+    /**
+     * Let in the readers at the head of the queue of waiting threads, up
+     * to the first waiting writer, making them ready as a single batch.
+     * Must be called with interrupts disabled and the spin lock held.
+     */
+    private void admitReaders() {
+	if(admitted == null)
+	    admitted = new ArrayQueue<NachosThread>();
+	extendedNachosThread thread;
+	while((thread = waiters.peek()) != null && !thread.waitingToWrite) {
+	    waiters.poll();
+	    addReader(thread);
+	    admitted.offer(thread);
+	}
+	if(!admitted.isEmpty()) {
+	    Nachos.scheduler.readyToRunAll(admitted);
+	    admitted.clear();
+	}
+    }
+
+    /**
+     * Determine whether the current thread holds the lock for writing.
+     *
+     * @return true if the current thread holds the lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return writer != null && writer == NachosThread.currentThread();
+    }
+
+    /**
+     * Get the number of read holds of the lock by the current thread.
+     * Other threads change a thread's read holds only while it is blocked,
+     * so no locking is needed.
+     *
+     * @return the number of times the current thread has acquired the
+     * lock for reading without releasing it.
+     */
+    public int getReadHoldCount() {
+	extendedNachosThread currentThread = (extendedNachosThread)NachosThread.currentThread();
+	int i = indexOf(currentThread);
+	return i < 0 ? 0 : currentThread.readHolds[i];
+    }
+}
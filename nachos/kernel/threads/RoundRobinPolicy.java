@@ -0,0 +1,83 @@
+package nachos.kernel.threads;
+
+import nachos.Debug;
+import nachos.machine.CPU;
+import nachos.util.ArrayQueue;
+
+/**
+ * Round-robin scheduling: a single FIFO queue of ready threads, each of
+ * which runs for at most a fixed quantum before going to the back of
+ * the queue.
+ */
+public class RoundRobinPolicy implements SchedulingPolicy {
+
+    /** The quantum given to every thread. */
+    private final int quantum;
+
+    /**
+     * Initialize a round-robin policy.
+     *
+     * @param quantum  The quantum given to every thread.
+     */
+    public RoundRobinPolicy(int quantum) {
+	Debug.ASSERT(quantum > 0, "Run queue quantum must be positive");
+	this.quantum = quantum;
+    }
+
+    public RunQueue newRunQueue(CPU cpu) {
+	return new FIFORunQueue(cpu);
+    }
+
+    public int quantum(extendedNachosThread thread) {
+	return quantum;
+    }
+
+    public boolean tick(extendedNachosThread thread, int ranTicks) {
+	return ranTicks >= thread.quantum;
+    }
+
+    /**
+     * All threads are equal, so a wakeup never preempts.
+     */
+    public boolean preempts(extendedNachosThread ready, extendedNachosThread running) {
+	return false;
+    }
+
+    /**
+     * Run queue for one CPU, consisting of a single FIFO queue.
+     */
+    private static class FIFORunQueue extends RunQueue {
+
+	/** Ready threads, in order of arrival. */
+	private final ArrayQueue<extendedNachosThread> queue =
+	    new ArrayQueue<extendedNachosThread>();
+
+	FIFORunQueue(CPU cpu) {
+	    super(cpu, 1);
+	}
+
+	protected int enqueue(extendedNachosThread thread) {
+	    queue.offer(thread);
+	    return 0;
+	}
+
+	protected extendedNachosThread pickNext() {
+	    return queue.poll();
+	}
+
+	protected void dequeue(extendedNachosThread thread) {
+	    queue.remove(thread);
+	}
+
+	protected extendedNachosThread pickFor(int unit) {
+	    for(int i = 0; i < queue.size(); i++) {
+		extendedNachosThread thread = queue.get(i);
+		if(thread.mayRunOn(unit)) {
+		    queue.removeAt(i);
+		    return thread;
+		}
+	    }
+	    return null;
+	}
+    }
+}
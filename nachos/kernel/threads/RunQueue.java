@@ -0,0 +1,369 @@
+package nachos.kernel.threads;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import nachos.Debug;
+import nachos.machine.CPU;
+
+/**
+ * A RunQueue holds the threads that are ready to run on one particular CPU.
+ * The order in which threads are picked to run is determined by the
+ * scheduling policy that created the run queue, which supplies the
+ * enqueue() and pickNext() methods.  This class takes care of the
+ * bookkeeping common to all policies: the count of ready threads and the
+ * per-level queue depth statistics.  Policies that do not have priority
+ * levels use a single level.
+ *
+ * Real-time threads do not go through the policy at all: they are kept in
+ * a separate queue ordered by deadline (earliest deadline first), which
+ * takes priority over all the policy's levels.
+ *
+ * Every thread in a run queue may run on the CPU that owns it, but threads
+ * with an affinity mask may not run on every CPU, so another CPU that takes
+ * work from the queue uses pollFor(), which skips the threads it may not run.
+ *
+ * Each RunQueue has its own spin lock, so that CPUs scheduling from their
+ * own queues do not contend with each other.  The methods that examine or
+ * modify the queues assume that interrupts are disabled and that the lock
+ * is held by the caller.  The exception is size(), which may be read without
+ * the lock to obtain a hint about how much work is waiting (for example,
+ * when choosing a CPU from which to steal work).
+ */
+public abstract class RunQueue {
+
+    /** The CPU that owns this run queue. */
+    public final CPU cpu;
+
+    /**
+     * Total number of threads in all levels.  Updated only with the lock held,
+     * but volatile so that other CPUs can read it without the lock.
+     */
+    private volatile int count;
+
+    /** Spin lock for mutually exclusive access to this run queue. */
+    public final SpinLock lock;
+
+    /** Number of threads whose affinity mask does not include every CPU. */
+    private int numPinned;
+
+    /** Number of threads currently in each level. */
+    private final int[] depth;
+
+    /** Largest number of threads ever in each level. */
+    private final int[] maxDepth;
+
+    /** Number of threads that have been added to each level. */
+    private final long[] numEnqueued;
+
+    /**
+     * Histogram of the depth of each level, sampled each time a thread is added.
+     * depthHistogram[level][b] counts the additions after which the level held
+     * between 2^b and 2^(b+1)-1 threads.
+     */
+    private final long[][] depthHistogram;
+
+    /** Ready real-time threads, ordered by deadline. */
+    private final PriorityQueue<extendedNachosThread> realTime =
+	new PriorityQueue<extendedNachosThread>(11, byDeadline);
+
+    /** Orders real-time threads by deadline. */
+    private static final Comparator<extendedNachosThread> byDeadline =
+	new Comparator<extendedNachosThread>() {
+	    public int compare(extendedNachosThread t1, extendedNachosThread t2) {
+		return Integer.compare(t1.rtDeadline, t2.rtDeadline);
+	    }
+	};
+
+    /**
+     * Initialize an empty run queue for a specified CPU.
+     *
+     * @param cpu  The CPU that will normally run threads from this queue.
+     * @param numLevels  The number of priority levels.
+     */
+    protected RunQueue(CPU cpu, int numLevels) {
+	this.cpu = cpu;
+	depth = new int[numLevels];
+	maxDepth = new int[numLevels];
+	numEnqueued = new long[numLevels];
+	depthHistogram = new long[numLevels][Integer.SIZE];
+	lock = new SpinLock(cpu.name + " run queue lock");
+    }
+
+    /**
+     * Add a thread to the policy-specific structure that holds the
+     * ready threads, and choose its priority level.
+     *
+     * @param thread  The thread to add.
+     * @return the level at which the thread was added.
+     */
+    protected abstract int enqueue(extendedNachosThread thread);
+
+    /**
+     * Remove and return the next thread to run from the policy-specific
+     * structure.  This is only called when the policy's structure is nonempty.
+     *
+     * @return the thread that was removed.
+     */
+    protected abstract extendedNachosThread pickNext();
+
+    /**
+     * Remove a particular thread from the policy-specific structure.
+     * This is only called when the thread is in this run queue.
+     *
+     * @param thread  The thread to remove.
+     */
+    protected abstract void dequeue(extendedNachosThread thread);
+
+    /**
+     * Add a thread that has been moved from another run queue to the
+     * policy-specific structure.  By default this is the same as enqueue(),
+     * but a policy may override it to keep the state the thread had in the
+     * other queue, rather than treating its move as a new wakeup.
+     *
+     * @param thread  The thread to add.
+     * @return the level at which the thread was added.
+     */
+    protected int requeue(extendedNachosThread thread) {
+	return enqueue(thread);
+    }
+
+    /**
+     * Remove and return, from the policy-specific structure, the first
+     * thread that may run on a specified CPU, in roughly the order in which
+     * the threads would be picked to run.  This is only called when some
+     * thread in the run queue is pinned by its affinity mask, and it should
+     * search the structure in place, without allocating.
+     *
+     * @param unit  The unit number of the CPU.
+     * @return the thread that was removed, or null if there is none that
+     * may run on the CPU.
+     */
+    protected abstract extendedNachosThread pickFor(int unit);
+
+    /**
+     * Record that a policy has moved a thread that is in this run queue
+     * to a different level, for example to age it.
+     *
+     * @param thread  The thread that was moved.
+     * @param level  The level to which it was moved.
+     */
+    protected final void changeLevel(extendedNachosThread thread, int level) {
+	depth[thread.level]--;
+	depth[level]++;
+	thread.level = level;
+    }
+
+    /**
+     * Get the number of priority levels in this run queue.
+     *
+     * @return the number of levels.
+     */
+    public int numLevels() {
+	return depth.length;
+    }
+
+    /**
+     * Add a thread to this run queue.  The caller must hold the lock.
+     *
+     * @param thread  The thread to add.
+     */
+    public final void offer(extendedNachosThread thread) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && lock.isLocked());
+	add(thread, false);
+    }
+
+    /**
+     * Add a thread that has been taken from another run queue, to balance
+     * the load, to this run queue.  The caller must hold the lock.
+     *
+     * @param thread  The thread to add.
+     */
+    public final void transfer(extendedNachosThread thread) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && lock.isLocked());
+	add(thread, true);
+    }
+
+    /**
+     * Add a thread to this run queue and update the statistics.
+     *
+     * @param thread  The thread to add.
+     * @param moved  Has the thread been moved from another run queue?
+     */
+    private void add(extendedNachosThread thread, boolean moved) {
+	Debug.ASSERT(thread.mayRunOn(cpu.unit),
+		"Thread placed on the run queue of a CPU outside its affinity mask");
+	thread.runQueue = this;
+	if(thread.affinity != extendedNachosThread.ALL_CPUS)
+	    numPinned++;
+	if(thread.isRealTime()) {
+	    realTime.offer(thread);
+	    count++;
+	    return;
+	}
+	int level = (moved ? requeue(thread) : enqueue(thread));
+	thread.level = level;
+	count++;
+
+	int d = ++depth[level];
+	if(d > maxDepth[level])
+	    maxDepth[level] = d;
+	numEnqueued[level]++;
+	depthHistogram[level][Integer.SIZE - 1 - Integer.numberOfLeadingZeros(d)]++;
+    }
+
+    /**
+     * Remove and return the real-time thread with the earliest deadline, if
+     * there is one, and otherwise the thread that the scheduling policy says
+     * should run next.  The caller must hold the lock.
+     *
+     * @return the thread, or null if the run queue is empty.
+     */
+    public final extendedNachosThread poll() {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && lock.isLocked());
+	if(count == 0)
+	    return null;
+	extendedNachosThread thread = realTime.poll();
+	if(thread == null) {
+	    thread = pickNext();
+	    depth[thread.level]--;
+	}
+	thread.runQueue = null;
+	if(thread.affinity != extendedNachosThread.ALL_CPUS)
+	    numPinned--;
+	count--;
+	return thread;
+    }
+
+    /**
+     * Remove and return the next thread to run that may run on a specified
+     * CPU, for a CPU other than the owner that is taking work from this run
+     * queue.  If no thread in the queue is pinned by its affinity mask, this
+     * is the same as poll().  Otherwise the real-time thread with the
+     * earliest deadline that may run on the CPU is chosen, and failing that
+     * the thread chosen by the policy's pickFor(), which may differ slightly
+     * from the one poll() would pick.
+     * The caller must hold the lock.
+     *
+     * @param unit  The unit number of the CPU.
+     * @return the thread, or null if there is none that may run on the CPU.
+     */
+    public final extendedNachosThread pollFor(int unit) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && lock.isLocked());
+	if(numPinned == 0)
+	    return poll();
+	extendedNachosThread result = null;
+	for(extendedNachosThread thread : realTime) {
+	    if(thread.mayRunOn(unit)
+		    && (result == null || thread.rtDeadline - result.rtDeadline < 0))
+		result = thread;
+	}
+	if(result != null) {
+	    remove(result);
+	    return result;
+	}
+	return pollOtherFor(unit);
+    }
+
+    /**
+     * Remove and return the next thread to run that may run on a specified
+     * CPU, as pollFor() does, but never a real-time thread.  This is for
+     * balancing the load: a real-time thread was admitted against the
+     * capacity of one CPU, and must stay there unless that CPU leaves it
+     * for an idle CPU to steal.  The caller must hold the lock.
+     *
+     * @param unit  The unit number of the CPU.
+     * @return the thread, or null if there is no thread other than
+     * real-time threads that may run on the CPU.
+     */
+    public final extendedNachosThread pollOtherFor(int unit) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && lock.isLocked());
+	if(count == realTime.size())
+	    return null;
+	extendedNachosThread thread = (numPinned == 0 ? pickNext() : pickFor(unit));
+	if(thread != null) {
+	    depth[thread.level]--;
+	    thread.runQueue = null;
+	    if(thread.affinity != extendedNachosThread.ALL_CPUS)
+		numPinned--;
+	    count--;
+	}
+	return thread;
+    }
+
+    /**
+     * Remove a particular thread from this run queue, if it is still there.
+     * The caller must hold the lock.
+     *
+     * @param thread  The thread to remove.
+     * @return true if the thread was removed, false if it was not in this
+     * run queue.
+     */
+    public final boolean remove(extendedNachosThread thread) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && lock.isLocked());
+	if(thread.runQueue != this)
+	    return false;
+	if(thread.isRealTime()) {
+	    realTime.remove(thread);
+	} else {
+	    dequeue(thread);
+	    depth[thread.level]--;
+	}
+	thread.runQueue = null;
+	if(thread.affinity != extendedNachosThread.ALL_CPUS)
+	    numPinned--;
+	count--;
+	return true;
+    }
+
+    /**
+     * Get the number of threads in this run queue.  This may be called
+     * without holding the lock, in which case the result is only a hint.
+     *
+     * @return the number of threads in all levels of this run queue.
+     */
+    public int size() {
+	return count;
+    }
+
+    /**
+     * Get the number of threads that have been added to a level.
+     *
+     * @param level  The level.
+     * @return the number of threads added to that level since initialization.
+     */
+    public long numEnqueued(int level) {
+	return numEnqueued[level];
+    }
+
+    /**
+     * Get the largest number of threads that a level has held at one time.
+     *
+     * @param level  The level.
+     * @return the maximum depth of that level since initialization.
+     */
+    public int maxDepth(int level) {
+	return maxDepth[level];
+    }
+
+    /**
+     * Get the depth histogram for a level.  Entry b of the result counts
+     * the additions after which the level held between 2^b and 2^(b+1)-1
+     * threads.  The array is live, and is updated with the lock held.
+     *
+     * @param level  The level.
+     * @return the depth histogram for that level.
+     */
+    public long[] depthHistogram(int level) {
+	return depthHistogram[level];
+    }
+
+    /**
+     * Test whether this run queue is empty.
+     *
+     * @return true if there are no threads in any level.
+     */
+    public boolean isEmpty() {
+	return count == 0;
+    }
+}
@@ -12,16 +12,19 @@
 
 package nachos.kernel.threads;
 
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Collection;
+
 import nachos.Debug;
 import nachos.kernel.Nachos;
 import nachos.machine.CPU;
 import nachos.machine.Machine;
 import nachos.machine.NachosThread;
+import nachos.machine.Releasable;
+import nachos.machine.Simulation;
 import nachos.machine.Timer;
 import nachos.machine.InterruptHandler;
-import nachos.util.FIFOQueue;
+import nachos.util.ArrayQueue;
+import nachos.util.BoundedArrayQueue;
 import nachos.util.Queue;
 
 /**
@@ -40,9 +43,27 @@ import nachos.util.Queue;
  * access to the scheduler state by other CPUs.
  * If there is just one CPU, then (1) would be enough.
  * 
- * The scheduling policy implemented here is very simple:
- * threads that are ready to run are maintained in a FIFO queue and are
- * dispatched in order onto the first available CPU.
+ * Each CPU has its own RunQueue, protected by a per-CPU spin lock, so that CPUs scheduling from their own
+ * queues do not contend with each other.  A thread that becomes ready is
+ * placed on the run queue of the CPU it last ran on, whose cache may still
+ * hold its working set, unless that queue is longer than the queue of the
+ * CPU that made it ready by more than the tolerance set with -it, in which
+ * case it goes on the latter.  Idle CPUs then take the threads from their
+ * own run queues, and otherwise from the busiest run queues.  A CPU whose
+ * own run queue is empty steals work from the run queue of the busiest CPU
+ * before going idle, and busy CPUs periodically pull threads from the busiest
+ * run queue when it is longer than their own by more than the tolerance.
+ * A thread may be restricted to a set of CPUs by an affinity mask, which
+ * all of these respect.
+ * Idle CPUs are kept on a list protected by a separate spin lock.
+ * Locks are always acquired in the order: the caller's lock (if any),
+ * then a gang lock, then the idle list lock, then a single run queue lock.
+ *
+ * The order in which threads run, and the length of their time slices,
+ * are decided by a SchedulingPolicy, which creates the run queues.
+ * Real-time threads take priority over the policy: they are run in order
+ * of deadline (EDF), subject to admission control on the CPU time they
+ * reserve, and are preempted when they use up their budget for a period.
  * Scheduling may be preemptive or non-preemptive, depending on whether
  * timers are initialized for time-slicing.
  * 
@@ -52,23 +73,53 @@ import nachos.util.Queue;
  */
 public class Scheduler {
 
-    /** Queue of threads that are ready to run, but not running. */
-    private final LinkedList<Queue<extendedNachosThread>> queues = new LinkedList<Queue<extendedNachosThread>>();
-    private final LinkedList<Integer> quantums = new LinkedList<Integer>();
-    
+    /**
+     * Per-CPU scheduler state, including the threads that are ready to run
+     * but not running, indexed by CPU number.
+     */
+    private final CPUState[] cpuStates;
+
+    /** The policy that decides which thread to run next, and for how long. */
+    private final SchedulingPolicy policy;
+
     /** Queue of CPUs that are idle. */
-    private final Queue<CPU> cpuList;
+    private final BoundedArrayQueue<CPU> cpuList;
+
+    /**
+     * Number of CPUs on the idle list.  Updated only with idleLock held,
+     * but volatile so that readyToRun can skip the idle list when it is empty.
+     */
+    private volatile int numIdle;
+
+    /** Spin lock for mutually exclusive access to the idle CPU list. */
+    private final SpinLock idleLock = new SpinLock("scheduler idle lock");
+
+    /**
+     * CPU time reserved by the real-time threads admitted against each CPU,
+     * in millionths of the CPU.  Protected by rtLock.
+     */
+    private final long[] rtUtilization;
+
+    /** Spin lock for mutually exclusive access to rtUtilization. */
+    private final SpinLock rtLock = new SpinLock("scheduler real-time lock");
+
+    /**
+     * Have the timers been stopped for shutdown?  If so, they are not
+     * restarted when an idle CPU is dispatched.  Protected by idleLock.
+     */
+    private boolean stopped;
     
     /** Terminated thread awaiting reclamation of its stack. */
     private volatile NachosThread threadToBeDestroyed;
 
-    /** Spin lock for mutually exclusive access to scheduler state. */
-    private final SpinLock mutex = new SpinLock("scheduler mutex");
-    
-    private static HashMap<CPU, Integer> numCPU100Ticks = new HashMap<CPU, Integer>();
-    private static HashMap<CPU, extendedNachosThread> cpuToThread = new HashMap<CPU, extendedNachosThread>();
-    public static LinkedList<extendedNachosThread> sleepingThreads = new LinkedList<extendedNachosThread>();
-    public static LinkedList<CPU> sleepingThreadsCPU = new LinkedList<CPU>();
+    /** Spin lock for mutually exclusive access to threadToBeDestroyed. */
+    private final SpinLock reaperLock = new SpinLock("scheduler reaper lock");
+
+    /**
+     * Metrics of the threads that have finished, for the metrics report,
+     * if scheduler metrics are enabled, otherwise null.
+     */
+    private final FinishedThreadMetrics finishedThreads;
     
     /**
      * Initialize the scheduler.
@@ -76,19 +127,17 @@ public class Scheduler {
      * Initialize the list of CPUs to contain all the available CPUs.
      * 
      * @param firstThread  The first NachosThread to run.
+     * @param policy  The scheduling policy to use.
      */
-    public Scheduler(extendedNachosThread firstThread, int numQueue, int quantum) {
-	 
-	for (int i = 0; i< numQueue; i++) {
-	    queues.add(new FIFOQueue<extendedNachosThread>());
-	    if (i == 0) {
-		quantums.add(quantum);
-	    } else {
-		quantums.add(2*quantums.get(i-1));
-	    }
-	}
-	
-	cpuList = new FIFOQueue<CPU>();
+    public Scheduler(extendedNachosThread firstThread, SchedulingPolicy policy) {
+	Debug.ASSERT(Machine.NUM_CPUS <= Long.SIZE,
+		"Affinity masks allow at most " + Long.SIZE + " CPUs");
+	this.policy = policy;
+	cpuStates = new CPUState[Machine.NUM_CPUS];
+	rtUtilization = new long[Machine.NUM_CPUS];
+	cpuList = new BoundedArrayQueue<CPU>(Machine.NUM_CPUS);
+	finishedThreads = (Nachos.options.SCHED_METRICS
+			   ? new FinishedThreadMetrics() : null);
 
 	Debug.println('t', "Initializing scheduler");
 
@@ -96,20 +145,36 @@ public class Scheduler {
 	// if we are using them.
 	for(int i = 0; i < Machine.NUM_CPUS; i++) {
 	    CPU cpu = Machine.getCPU(i);
+	    CPUState state = new CPUState(cpu, policy);
+	    cpuStates[cpu.unit] = state;
 	    cpuList.offer(cpu);
-	    numCPU100Ticks.put(cpu, 0);
+	    state.idle = true;
 	    if(Nachos.options.CPU_TIMERS) {
 		Timer timer = cpu.timer;
-		timer.setHandler(new TimerInterruptHandler(timer));
+		timer.setHandler(new TimerInterruptHandler(timer, state));
 		if(Nachos.options.RANDOM_YIELD)
 		    timer.setRandom(true);
 		timer.start();
+		state.timerRunning = true;
 	    }
 	}
 	
 	// Dispatch firstThread on the first CPU.
 	CPU firstCPU = cpuList.poll();
-	cpuToThread.put(firstCPU, firstThread);
+	numIdle = Machine.NUM_CPUS - 1;
+	CPUState firstState = cpuStates[firstCPU.unit];
+	firstState.idle = false;
+	recordDispatch(firstState, firstThread);
+
+	// Simulation.stop() exits the JVM, so report the metrics from a
+	// shutdown hook, which runs however the simulation comes to an end.
+	if(Nachos.options.SCHED_METRICS) {
+	    Runtime.getRuntime().addShutdownHook(new Thread() {
+		public void run() {
+		    printStatistics();
+		}
+	    });
+	}
 	firstCPU.dispatch(firstThread);
     };
 
@@ -117,10 +182,16 @@ public class Scheduler {
      * Stop the timers on all CPUs, in preparation for shutdown.
      */
     public void stop() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	idleLock.acquire();
+	stopped = true;
 	for(int i = 0; i < Machine.NUM_CPUS; i++) {
 	    CPU cpu = Machine.getCPU(i);
 	    cpu.timer.stop();
+	    cpuStates[cpu.unit].timerRunning = false;
 	}
+	idleLock.release();
+	CPU.setLevel(oldLevel);
     }
 
     /**
@@ -138,11 +209,365 @@ public class Scheduler {
      */
     public void readyToRun(NachosThread thread) {
 	int oldLevel = CPU.setLevel(CPU.IntOff);
-	mutex.acquire();
-	makeReady(thread);
-	dispatchIdleCPUs();
-	mutex.release();
+	extendedNachosThread t = (extendedNachosThread)thread;
+	if(t.timeoutQueue != null)
+	    cancelTimeout(t);
+	if(t.isRealTime())
+	    replenish(t);
+	RunQueue runQueue = placeFor(t, CPU.currentCPU().unit);
+	runQueue.lock.acquire();
+	makeReady(thread, runQueue);
+	runQueue.lock.release();
+	// The volatile read of numIdle must follow the enqueue: a CPU going idle
+	// increments numIdle before it looks for work one last time, so either it
+	// sees our thread or we see it on the idle list.
+	if(numIdle > 0)
+	    dispatchIdleCPUs();
+	else if(Nachos.options.CPU_TIMERS)
+	    requestPreemption((extendedNachosThread)thread, runQueue);
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Mark a batch of threads as ready, but not running, and put them on
+     * the ready list for later scheduling onto CPUs.
+     * This has the same effect as calling readyToRun on each of the threads,
+     * but the whole batch is enqueued with a single acquisition of the
+     * run queue lock, and idle CPUs are dispatched only once, which is
+     * much cheaper when many threads are woken at the same time (for
+     * example, by a broadcast on a condition variable).
+     *
+     * The same assumptions are made as for readyToRun: the threads must
+     * not be made ready concurrently by anyone else.  Only the threads that
+     * readyToRun would place on the current CPU's run queue are batched;
+     * the rest, such as threads that last ran on another CPU and real-time
+     * threads, are made ready individually.
+     *
+     * @param threads  The threads to be put on the ready list.
+     */
+    public void readyToRunAll(Collection<? extends NachosThread> threads) {
+	if(threads.isEmpty())
+	    return;
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	int unit = CPU.currentCPU().unit;
+	CPUState state = cpuStates[unit];
+	RunQueue runQueue = state.runQueue;
+	ArrayQueue<NachosThread> here = state.batchedHere;
+	ArrayQueue<NachosThread> elsewhere = state.batchedElsewhere;
+	// Cancel timeouts first: sleep queue locks come before run queue locks.
+	for(NachosThread thread : threads) {
+	    extendedNachosThread t = (extendedNachosThread)thread;
+	    if(t.timeoutQueue != null)
+		cancelTimeout(t);
+	}
+	// Decide where each thread goes before any of them can be dispatched.
+	runQueue.lock.acquire();
+	for(NachosThread thread : threads) {
+	    extendedNachosThread t = (extendedNachosThread)thread;
+	    if(!t.isRealTime() && placeFor(t, unit) == runQueue) {
+		makeReady(thread, runQueue);
+		here.offer(thread);
+	    } else {
+		elsewhere.offer(thread);
+	    }
+	}
+	runQueue.lock.release();
+	// readyToRun requests any preemption these threads call for.
+	for(int i = 0; i < elsewhere.size(); i++)
+	    readyToRun(elsewhere.get(i));
+	elsewhere.clear();
+	// See readyToRun for why numIdle must be read after the enqueue.
+	if(numIdle > 0) {
+	    dispatchIdleCPUs();
+	} else if(Nachos.options.CPU_TIMERS) {
+	    for(int i = 0; i < here.size(); i++) {
+		if(!requestPreemption((extendedNachosThread)here.get(i), runQueue))
+		    break;
+	    }
+	}
+	here.clear();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Determine whether a thread is currently running on some CPU.
+     * The CPUs are examined without locking, so the answer is only a hint,
+     * which is good enough for deciding whether to spin waiting for a lock.
+     *
+     * @param thread  The thread.
+     * @return true if the thread was running on a CPU when we looked.
+     */
+    public boolean isRunning(NachosThread thread) {
+	for(int i = 0; i < cpuStates.length; i++) {
+	    if(cpuStates[i].currentThread == thread)
+		return true;
+	}
+	return false;
+    }
+
+    /**
+     * Ask a CPU that is running a thread that should be preempted by a
+     * newly ready thread to reschedule.  Of the running threads that the
+     * policy says should be preempted, the one with the lowest priority
+     * is chosen.  There is no way to interrupt another CPU, so the request
+     * is noticed at the next timer interrupt on the chosen CPU, which then
+     * yields on return from the interrupt and takes the next thread from
+     * the run queue that the new thread was placed on.
+     * The running threads are examined without locking, so the choice
+     * is only a good guess, and a request may turn out to be unnecessary.
+     * Assumes that interrupts are disabled and that no run queue lock is held.
+     *
+     * @param thread  The thread that has been made ready.
+     * @param runQueue  The run queue on which the thread was placed.
+     * @return true if a CPU was asked to reschedule.
+     */
+    private boolean requestPreemption(extendedNachosThread thread, RunQueue runQueue) {
+	CPUState victim = null;
+	extendedNachosThread victimThread = null;
+	for(int i = 0; i < cpuStates.length; i++) {
+	    CPUState state = cpuStates[i];
+	    extendedNachosThread running = state.currentThread;
+	    if(running == null || state.rescheduleFrom != null
+		    || !thread.mayRunOn(i) || !preempts(thread, running))
+		continue;
+	    if(victim == null || preempts(victimThread, running)) {
+		victim = state;
+		victimThread = running;
+	    }
+	}
+	if(victim == null)
+	    return false;
+	Debug.println('t', thread.name + " requests preemption of "
+		+ victim.cpu.name);
+	victim.rescheduleFrom = runQueue;
+	return true;
+    }
+
+    /**
+     * Decide whether a thread that has become ready should preempt a running
+     * thread.  Real-time threads preempt threads that are not real-time and
+     * real-time threads with later deadlines; otherwise the policy decides.
+     *
+     * @param ready  The thread that has become ready.
+     * @param running  The running thread.
+     * @return true if ready should preempt running.
+     */
+    private boolean preempts(extendedNachosThread ready, extendedNachosThread running) {
+	if(ready.isRealTime())
+	    return !running.isRealTime() || ready.rtDeadline - running.rtDeadline < 0;
+	if(running.isRealTime())
+	    return false;
+	return policy.preempts(ready, running);
+    }
+
+    /**
+     * Admit a thread to the real-time scheduling class, change its
+     * reservation, or return it to the normal class.  A real-time thread
+     * is entitled to budget ticks of CPU time in every period of period
+     * ticks, and its deadline is the end of its current period.
+     * The thread is admitted against the CPU with the most spare capacity
+     * among those in its affinity mask, provided that the total reserved on that CPU stays within the limit
+     * set with -ru, so that EDF can meet all the deadlines.  If the thread
+     * cannot be admitted, then its previous class and reservation are kept.
+     * The thread must be the current thread, or one that has not yet been
+     * made ready, since it cannot change class while on a run queue.
+     *
+     * @param thread  The thread.
+     * @param period  The period, in ticks, or zero to return the thread to
+     * the normal scheduling class.
+     * @param budget  The CPU time, in ticks, reserved in each period,
+     * which must be positive and no greater than the period.
+     * @return true if the request was granted, false if it was invalid or
+     * the thread could not be admitted.
+     */
+    public boolean setRealTime(extendedNachosThread thread, int period, int budget) {
+	Debug.ASSERT(thread.runQueue == null,
+		"Can't change the scheduling class of a thread on a run queue");
+	if(period < 0 || (period > 0 && (budget <= 0 || budget > period)))
+	    return false;
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	rtLock.acquire();
+	if(thread.isRealTime())
+	    rtUtilization[thread.rtCPU] -= utilization(thread.rtPeriod, thread.rtBudget);
+	boolean admitted = true;
+	if(period > 0) {
+	    long limit = 10000L * Nachos.options.RT_UTILIZATION_LIMIT;
+	    long u = utilization(period, budget);
+	    int best = -1;
+	    for(int i = 0; i < rtUtilization.length; i++) {
+		if(thread.mayRunOn(i) && rtUtilization[i] + u <= limit
+			&& (best < 0 || rtUtilization[i] < rtUtilization[best]))
+		    best = i;
+	    }
+	    if(best < 0) {
+		admitted = false;
+	    } else {
+		thread.rtPeriod = period;
+		thread.rtBudget = budget;
+		thread.rtCPU = best;
+		thread.rtDeadline = Simulation.currentTime() + period;
+		thread.rtBudgetLeft = budget;
+		thread.rtChargedUntil = thread.burstStart;
+	    }
+	} else {
+	    thread.rtPeriod = 0;
+	}
+	if(thread.isRealTime())
+	    rtUtilization[thread.rtCPU] += utilization(thread.rtPeriod, thread.rtBudget);
+	rtLock.release();
 	CPU.setLevel(oldLevel);
+	Debug.println('t', (admitted ? "Admitted " : "Refused ") + thread.name
+		+ " as real-time: period " + period + ", budget " + budget);
+	return admitted;
+    }
+
+    /**
+     * Set the affinity mask of a thread: the set of CPUs on which it may run,
+     * bit i standing for the CPU with unit number i.  Bits for CPUs that do
+     * not exist are ignored.  The mask of a real-time thread must include the
+     * CPU it was admitted against.  The thread must be the current thread,
+     * or one that is not on a run queue.  If the current thread's mask no
+     * longer includes the CPU it is running on, then it moves by sleeping for
+     * a tick (or, without CPU timers, by yielding), so that it is made ready
+     * again on a CPU that it may run on.
+     *
+     * @param thread  The thread.
+     * @param mask  The affinity mask.
+     * @return true if the mask was set, false if it includes no CPU, or
+     * excludes the CPU a real-time thread was admitted against.
+     */
+    public boolean setAffinity(extendedNachosThread thread, long mask) {
+	Debug.ASSERT(thread.runQueue == null,
+		"Can't change the affinity of a thread on a run queue");
+	long all = (Machine.NUM_CPUS == Long.SIZE
+		    ? extendedNachosThread.ALL_CPUS : (1L << Machine.NUM_CPUS) - 1);
+	mask &= all;
+	if(mask == 0 || (thread.isRealTime() && (mask & (1L << thread.rtCPU)) == 0))
+	    return false;
+	thread.affinity = (mask == all ? extendedNachosThread.ALL_CPUS : mask);
+	Debug.println('t', "Affinity of " + thread.name + " set to 0x"
+		+ Long.toHexString(mask));
+	if(thread == NachosThread.currentThread()
+		&& !thread.mayRunOn(CPU.currentCPU().unit)) {
+	    if(Nachos.options.CPU_TIMERS)
+		sleepTicks(1);
+	    else
+		yieldThread();
+	}
+	return true;
+    }
+
+    /**
+     * Set the number of tickets held by a thread, which determines its
+     * share of the CPU under the stride and lottery policies: a thread
+     * holding twice as many tickets as another is given twice as many
+     * quanta.  The other policies ignore tickets.  The thread must be the
+     * current thread, or one that is not on a run queue.
+     *
+     * @param thread  The thread.
+     * @param tickets  The number of tickets.
+     * @return true if the tickets were set, false if the number is not
+     * positive.
+     */
+    public boolean setTickets(extendedNachosThread thread, int tickets) {
+	Debug.ASSERT(thread.runQueue == null,
+		"Can't change the tickets of a thread on a run queue");
+	if(tickets <= 0)
+	    return false;
+	thread.tickets = tickets;
+	Debug.println('t', "Tickets of " + thread.name + " set to " + tickets);
+	return true;
+    }
+
+    /**
+     * Choose the run queue on which to place a thread that is being made
+     * ready.  A real-time thread goes on the queue of the CPU it was admitted
+     * against.  Any other thread goes on the queue of the CPU it last ran on,
+     * unless that queue is longer than the local one by more than the
+     * imbalance tolerance, and otherwise on the local queue.  If the thread's
+     * affinity mask excludes the CPU chosen, then the least loaded queue of
+     * the CPUs it may run on is used instead.
+     * The run queue lengths are read without locking, so they are only hints.
+     *
+     * @param thread  The thread.
+     * @param unit  The unit number of the current CPU.
+     * @return the run queue.
+     */
+    private RunQueue placeFor(extendedNachosThread thread, int unit) {
+	if(thread.isRealTime())
+	    return cpuStates[thread.rtCPU].runQueue;
+	RunQueue local = cpuStates[unit].runQueue;
+	int last = thread.lastCPU;
+	if(last >= 0 && last != unit && thread.mayRunOn(last)) {
+	    RunQueue warm = cpuStates[last].runQueue;
+	    if(warm.size() <= local.size() + Nachos.options.IMBALANCE_TOLERANCE
+		    || !thread.mayRunOn(unit))
+		return warm;
+	}
+	if(thread.mayRunOn(unit))
+	    return local;
+	RunQueue best = null;
+	for(int i = 0; i < cpuStates.length; i++) {
+	    RunQueue runQueue = cpuStates[i].runQueue;
+	    if(thread.mayRunOn(i) && (best == null || runQueue.size() < best.size()))
+		best = runQueue;
+	}
+	return best;
+    }
+
+    /**
+     * Compute the fraction of a CPU reserved by a real-time thread.
+     *
+     * @param period  The thread's period.
+     * @param budget  The thread's budget.
+     * @return the fraction, in millionths, rounded up.
+     */
+    private static long utilization(int period, int budget) {
+	return (1000000L * budget + period - 1) / period;
+    }
+
+    /**
+     * Start a new period for a real-time thread that is waking up, if its
+     * remaining budget could not be used up by its current deadline without
+     * exceeding its reserved share of the CPU.  This is the wakeup rule of
+     * the constant bandwidth server, and stops a thread that blocks and
+     * wakes up from claiming more than its share.
+     * Assumes that interrupts are disabled.
+     *
+     * @param thread  The real-time thread.
+     */
+    private void replenish(extendedNachosThread thread) {
+	int now = Simulation.currentTime();
+	if((long)thread.rtBudgetLeft * thread.rtPeriod
+		>= (long)(thread.rtDeadline - now) * thread.rtBudget) {
+	    thread.rtDeadline = now + thread.rtPeriod;
+	    thread.rtBudgetLeft = thread.rtBudget;
+	}
+    }
+
+    /**
+     * Charge a running real-time thread for the CPU time it has used since
+     * it was last charged.  If it has used up its budget, then it starts
+     * a new period, with a full budget and a deadline one period later,
+     * so that its priority drops relative to the other real-time threads.
+     * Assumes that interrupts are disabled and that the thread is running on
+     * the current CPU.
+     *
+     * @param thread  The real-time thread.
+     * @return true if the thread has used up its budget.
+     */
+    private boolean chargeRealTime(extendedNachosThread thread) {
+	int now = Simulation.cpuLocalTime(CPU.currentCPU());
+	thread.rtBudgetLeft -= now - thread.rtChargedUntil;
+	thread.rtChargedUntil = now;
+	if(thread.rtBudgetLeft > 0)
+	    return false;
+	thread.numBudgetOverruns++;
+	while(thread.rtBudgetLeft <= 0) {
+	    thread.rtDeadline += thread.rtPeriod;
+	    thread.rtBudgetLeft += thread.rtBudget;
+	}
+	return true;
     }
 
     /**
@@ -151,90 +576,369 @@ public class Scheduler {
      * No attempt is made to dispatch threads on idle CPUs.
      * 
      * This internal version of readyToRun assumes that interrupts are disabled
-     * and that the scheduler mutex is held.
+     * and that the lock on the specified run queue is held.
      * It is assumed that multiple concurrent calls of this method will not be
      * made with the same thread as parameter.  Under that assumption, it is not
      * necessary to lock the thread object itself before changing its status to
      * READY, because any other changes to the thread status are either made by
      * the thread itself (which is currently not running), or in the process of
-     * dispatching the thread, which is done with the scheduler mutex held.
+     * dispatching the thread, which is done with a run queue lock held.
      *
      * @param thread The thread to be put on the ready list.
+     * @param runQueue The run queue on which to put the thread.
      */
-    private void makeReady(NachosThread thread) {
-	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && mutex.isLocked());
+    private void makeReady(NachosThread thread, RunQueue runQueue) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && runQueue.lock.isLocked());
 
-	Debug.println('t', "Putting thread on ready list: " + thread.name);
+	Debug.println('t', "Putting thread on ready list of " + runQueue.cpu.name
+		+ ": " + thread.name);
 
 	thread.setStatus(NachosThread.READY);
 	
 	extendedNachosThread currThread = (extendedNachosThread)thread;
-	
-	setAvgCPUBurst(currThread);
-	int queueIndex = 0;
-	for (queueIndex = 0; queueIndex < queues.size(); queueIndex++) {
-	    if (quantums.get(queueIndex) >= currThread.avgCPUBurst) {
-		break;
+	currThread.readyTime = Simulation.currentTime();
+	runQueue.offer(currThread);
+    }
+
+    /**
+     * Record the dispatching of a thread onto a CPU: charge the thread and
+     * the CPU with the time the thread spent waiting in the run queue, count
+     * a migration if it last ran on a different CPU, and make it the CPU's
+     * current thread.
+     * Assumes that interrupts are disabled, and that the caller has exclusive
+     * access to the CPU state, either because it is running on that CPU or
+     * because the CPU is idle and the idle list lock is held.
+     *
+     * @param state  The scheduler state of the CPU the thread is dispatched on.
+     * @param thread  The thread being dispatched.
+     */
+    private void recordDispatch(CPUState state, extendedNachosThread thread) {
+	int now = Simulation.currentTime();
+	int wait = now - thread.readyTime;
+	thread.totalWaitTicks += wait;
+	thread.dispatchTime = now;
+	thread.numDispatches++;
+	thread.burstStart = Simulation.cpuLocalTime(state.cpu);
+	int unit = state.cpu.unit;
+	if(thread.lastCPU != unit) {
+	    if(thread.lastCPU >= 0) {
+		thread.numMigrations++;
+		state.numMigrations++;
 	    }
+	    thread.lastCPU = unit;
 	}
-	if (queueIndex < queues.size()) {
-	    queues.get(queueIndex).offer(currThread);
-	    currThread.quantum = quantums.get(queueIndex);
+	if(thread.isRealTime()) {
+	    thread.rtChargedUntil = thread.burstStart;
+	    if(now - thread.rtDeadline > 0) {
+		// Too late for this deadline: count the miss and move on.
+		thread.numDeadlineMisses++;
+		state.numDeadlineMisses++;
+		thread.rtDeadline = now + thread.rtPeriod;
+		thread.rtBudgetLeft = thread.rtBudget;
+	    }
+	    state.numRealTimeDispatches++;
 	} else {
-	    queues.get(queues.size()-1).offer(currThread);
-	    currThread.quantum = quantums.get(queues.size()-1);
+	    state.waitTicksByLevel[thread.level] += wait;
+	    state.dispatchesByLevel[thread.level]++;
+	    thread.quantum = policy.quantum(thread);
 	}
-    }
-
-    private void setAvgCPUBurst(extendedNachosThread thread) {
-	
-	float p = (float) 0.4;
-	float currCPUBurst = thread.currCPUBurst;
-	float prevAvgCPUBurst = thread.avgCPUBurst;
-	int currAvgCPUBurst = (int) ((p*currCPUBurst) + (1-p)*prevAvgCPUBurst);
-	thread.avgCPUBurst = currAvgCPUBurst;
-	//System.out.println("--------------" + thread.name + " " + currCPUBurst + " " + prevAvgCPUBurst + " " + currAvgCPUBurst);
+	state.numDispatches++;
+	state.ticks = 0;
+	state.currentThread = thread;
     }
 
     /**
      * If there are idle CPUs and threads ready to run, dispatch threads on CPUs
      * until either all CPUs are in use or no more threads are ready to run.
-     * Assumes that interrupts have been disabled and that the scheduler mutex
+     * Each idle CPU first takes the threads on its own run queue, which were
+     * placed there because they last ran on it; the idle CPUs that remain
+     * then take threads from the busiest run queues.
+     * Assumes that interrupts have been disabled and that no run queue lock
      * is held.
      */
     private void dispatchIdleCPUs() {
-	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && mutex.isLocked());
-	for (int i = 0; i < queues.size(); i++) {
-	    while(!queues.get(i).isEmpty() && !cpuList.isEmpty()) {
-		extendedNachosThread thread = queues.get(i).poll();
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+	extendedNachosThread gangThread = null;
+	idleLock.acquire();
+	for(int pass = 0; pass < 2; pass++) {
+	    // Each idle CPU is taken off the list once per pass, and put back
+	    // at the end if there is nothing it can run.
+	    for(int n = cpuList.size(); n > 0; n--) {
 		CPU cpu = cpuList.poll();
-		Debug.println('t', "Dispatching " + thread.name + " on " + cpu.name);
-		cpuToThread.put(cpu, thread);
-		cpu.dispatch(thread);
-		// The current CPU is not relinquished here -- immediate return.
+		extendedNachosThread thread = null;
+		if(pass == 1) {
+		    thread = stealFromBusiest(cpu);
+		} else {
+		    RunQueue runQueue = cpuStates[cpu.unit].runQueue;
+		    if(!runQueue.isEmpty()) {
+			runQueue.lock.acquire();
+			thread = runQueue.poll();
+			runQueue.lock.release();
+		    }
+		}
+		if(thread == null) {
+		    cpuList.offer(cpu);
+		    continue;
+		}
+		dispatchOnIdleCPU(cpu, thread);
+		if(gangThread == null && thread.gang != null)
+		    gangThread = thread;
+	    }
+	}
+	idleLock.release();
+	if(gangThread != null)
+	    coschedule(gangThread);
+    }
+
+    /**
+     * Take off the idle list a CPU on which a thread may run, preferring
+     * the CPU the thread last ran on.
+     * Assumes that interrupts have been disabled and that the idle list lock
+     * is held.
+     *
+     * @param thread  The thread.
+     * @return the CPU, or null if no idle CPU is in the thread's affinity mask.
+     */
+    private CPU takeIdleCPU(extendedNachosThread thread) {
+	CPU result = null;
+	for(CPU cpu : cpuList) {
+	    if(cpu.unit == thread.lastCPU && thread.mayRunOn(cpu.unit)) {
+		result = cpu;
+		break;
+	    }
+	    if(result == null && thread.mayRunOn(cpu.unit))
+		result = cpu;
+	}
+	if(result != null)
+	    cpuList.remove(result);
+	return result;
+    }
+
+    /**
+     * Dispatch a thread on an idle CPU that has been taken off the idle list.
+     * Assumes that interrupts have been disabled and that the idle list lock
+     * is held.
+     *
+     * @param cpu  The CPU.
+     * @param thread  The thread to dispatch.
+     * @return the scheduler state of the CPU it was dispatched on.
+     */
+    private CPUState dispatchOnIdleCPU(CPU cpu, extendedNachosThread thread) {
+	numIdle--;
+	Debug.println('t', "Dispatching " + thread.name + " on " + cpu.name);
+	CPUState state = cpuStates[cpu.unit];
+	state.idle = false;
+	startIdleTimer(state);
+	recordDispatch(state, thread);
+	cpu.dispatch(thread);
+	// The current CPU is not relinquished here -- immediate return.
+	return state;
+    }
+
+    /**
+     * Gang scheduling: a member of a gang has just been dispatched, so bring
+     * the other members of its gang that are waiting in run queues onto
+     * other CPUs, to run in the same time slice.  Each such member is taken
+     * out of its run queue and either dispatched on an idle CPU or, if there
+     * are CPU timers, handed to a CPU that is running a thread outside the
+     * gang, which switches to it at its next timer interrupt.  In either case
+     * the CPU must be one that the member's affinity mask allows.
+     * Members for which no CPU can be found are left where they are.
+     * Assumes that interrupts have been disabled and that no scheduler lock
+     * is held.
+     *
+     * @param thread  The member that has been dispatched.
+     */
+    private void coschedule(extendedNachosThread thread) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+	Gang gang = thread.gang;
+	if(gang == null)
+	    return;
+	gang.lock.acquire();
+	idleLock.acquire();
+	for(extendedNachosThread member : gang.members()) {
+	    RunQueue runQueue = member.runQueue;
+	    if(member == thread || runQueue == null)
+		continue;
+	    CPU cpu = takeIdleCPU(member);
+	    CPUState target = (cpu == null ? findGangVictim(gang, member) : null);
+	    if(cpu == null && target == null)
+		continue;
+	    runQueue.lock.acquire();
+	    boolean removed = runQueue.remove(member);
+	    runQueue.lock.release();
+	    if(!removed) {
+		if(cpu != null)
+		    cpuList.offer(cpu);
+		continue;
+	    }
+	    if(cpu != null) {
+		target = dispatchOnIdleCPU(cpu, member);
+	    } else {
+		Debug.println('t', "Handing " + member.name + " to "
+			+ target.cpu.name + " to run with gang " + gang.id);
+		target.runQueue.lock.acquire();
+		target.handoff = member;
+		target.runQueue.lock.release();
 	    }
+	    target.numGangDispatches++;
+	}
+	idleLock.release();
+	gang.lock.release();
+    }
+
+    /**
+     * Find a CPU to which a member of a gang can be handed: one that the
+     * member may run on, that is running a thread outside the gang, and
+     * that has no handoff pending.
+     * Handoffs are only made if there are CPU timers, since without them
+     * a CPU might never switch to the thread handed to it.
+     * Assumes that interrupts have been disabled and that the idle list lock
+     * is held, so that no CPU can go idle.
+     *
+     * @param gang  The gang.
+     * @param member  The member to be handed to the CPU.
+     * @return the scheduler state of the chosen CPU, or null if there is none.
+     */
+    private CPUState findGangVictim(Gang gang, extendedNachosThread member) {
+	if(!Nachos.options.CPU_TIMERS)
+	    return null;
+	for(int i = 0; i < cpuStates.length; i++) {
+	    CPUState state = cpuStates[i];
+	    extendedNachosThread running = state.currentThread;
+	    if(!state.idle && running != null && running.gang != gang
+		    && state.handoff == null && member.mayRunOn(i))
+		return state;
+	}
+	return null;
+    }
+
+    /**
+     * Remove and return, for a CPU to run, the highest-priority thread that
+     * may run on it from the run queue that currently holds the most threads.
+     * If that queue holds no such thread, the next busiest is tried, and so on.
+     * Assumes that interrupts have been disabled and that no run queue lock
+     * is held.
+     *
+     * @param thief  The CPU that will run the thread.
+     * @return the thread that was removed, or null if no run queue holds a
+     * thread that may run on the CPU.
+     */
+    private extendedNachosThread stealFromBusiest(CPU thief) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+	// Bit i is set once run queue i has been found to hold nothing for us.
+	long tried = 0;
+	while(true) {
+	    RunQueue victim = null;
+	    for(int i = 0; i < cpuStates.length; i++) {
+		RunQueue runQueue = cpuStates[i].runQueue;
+		if((tried & (1L << i)) == 0
+			&& runQueue.size() > (victim == null ? 0 : victim.size()))
+		    victim = runQueue;
+	    }
+	    if(victim == null)
+		return null;
+	    victim.lock.acquire();
+	    extendedNachosThread result = victim.pollFor(thief.unit);
+	    victim.lock.release();
+	    // The victim might have been emptied by another CPU since we looked.
+	    if(result != null) {
+		if(victim.cpu != thief) {
+		    Debug.println('t', thief.name + " stole " + result.name
+			    + " from " + victim.cpu.name);
+		    cpuStates[thief.unit].numSteals++;
+		}
+		return result;
+	    }
+	    tried |= 1L << victim.cpu.unit;
+	}
+    }
+
+    /**
+     * Balance the load: if the busiest run queue is longer than the current
+     * CPU's by more than the imbalance tolerance, then pull half the
+     * difference onto the current CPU's run queue, taking only threads that
+     * may run here.  Real-time threads are never pulled, since each has been
+     * admitted against the capacity of its own CPU, and would outrank the
+     * threads admitted here.  Threads are moved one at a time, holding one run queue
+     * lock at a time; a thread in transit is in neither queue, but it is
+     * READY, and nobody else can find it.
+     * Assumes that interrupts have been disabled and that no run queue lock
+     * is held.
+     *
+     * @param state  The scheduler state of the current CPU.
+     */
+    private void balance(CPUState state) {
+	RunQueue own = state.runQueue;
+	RunQueue busiest = null;
+	for(int i = 0; i < cpuStates.length; i++) {
+	    RunQueue runQueue = cpuStates[i].runQueue;
+	    if(runQueue != own && (busiest == null || runQueue.size() > busiest.size()))
+		busiest = runQueue;
+	}
+	if(busiest == null)
+	    return;
+	int excess = busiest.size() - own.size();
+	if(excess <= Nachos.options.IMBALANCE_TOLERANCE)
+	    return;
+	for(int n = Math.max(1, excess / 2); n > 0; n--) {
+	    busiest.lock.acquire();
+	    extendedNachosThread thread = busiest.pollOtherFor(state.cpu.unit);
+	    busiest.lock.release();
+	    if(thread == null)
+		break;
+	    Debug.println('t', state.cpu.name + " pulled " + thread.name
+		    + " from " + busiest.cpu.name + " to balance the load");
+	    own.lock.acquire();
+	    own.transfer(thread);
+	    own.lock.release();
+	    state.numBalanced++;
 	}
     }
 
     /**
      * Return the next thread to be scheduled onto a CPU.
+     * If gang scheduling has handed a thread to the CPU, then that thread is
+     * returned.  If a wakeup has requested that the CPU reschedule, then the run queue
+     * of the woken thread is tried first.  Otherwise, or if that run queue
+     * is now empty, the CPU's own run queue is tried; if it is empty, then
+     * a thread is stolen from the busiest other run queue.
      * If there are no ready threads, return null.
      * Side effect: thread is removed from the ready list.
      * Assumes that interrupts have been disabled.
      *
+     * @param state  The scheduler state of the current CPU.
      * @return the thread to be scheduled onto a CPU.
      */
-    private extendedNachosThread findNextToRun() {
+    private extendedNachosThread findNextToRun(CPUState state) {
 	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
-	mutex.acquire();
 	extendedNachosThread result = null;
-	for (int i = 0; i < queues.size(); i++) {
-	    result = queues.get(i).poll();
-	    if (result != null) {
-		break;
-	    }
+	// A gang member handed to us takes precedence over everything else.
+	if(state.handoff != null) {
+	    state.runQueue.lock.acquire();
+	    result = state.handoff;
+	    state.handoff = null;
+	    state.runQueue.lock.release();
+	    if(result != null)
+		return result;
+	}
+	// If we are being preempted by a wakeup, take the woken thread's
+	// run queue first.
+	RunQueue rescheduleFrom = state.rescheduleFrom;
+	if(rescheduleFrom != null) {
+	    state.rescheduleFrom = null;
+	    rescheduleFrom.lock.acquire();
+	    result = rescheduleFrom.pollFor(state.cpu.unit);
+	    rescheduleFrom.lock.release();
 	}
-	mutex.release();
+	if(result == null) {
+	    RunQueue runQueue = state.runQueue;
+	    runQueue.lock.acquire();
+	    result = runQueue.poll();
+	    runQueue.lock.release();
+	}
+	if(result == null)
+	    result = stealFromBusiest(state.cpu);
 	return result;
     }
 
@@ -262,25 +966,56 @@ public class Scheduler {
     private void yieldCPU(int status, SpinLock toRelease) {
 	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
 	CPU currentCPU = CPU.currentCPU();
-	NachosThread currentThread = NachosThread.currentThread();
-	extendedNachosThread nextThread = findNextToRun();
+	CPUState state = cpuStates[currentCPU.unit];
+	RunQueue runQueue = state.runQueue;
+	extendedNachosThread currentThread =
+	    (extendedNachosThread)NachosThread.currentThread();
+	extendedNachosThread nextThread = findNextToRun(state);
 
 	// If the current thread wants to keep running and there is no other thread to run,
 	// do nothing.
 	if(status == NachosThread.RUNNING && nextThread == null) {
 	    Debug.println('t', "No other thread to run -- " + currentThread.name
 		    			+ " continuing");
+	    // It continues with a fresh time slice.
+	    state.ticks = 0;
 	    return;
 	}
 	Debug.println('t', "Next thread to run: "
 		+ (nextThread == null ? "(none)" : nextThread.name));
 
-	// The current thread will be suspending -- save its context.
+	// The current thread will be suspending -- save its context,
+	// and record the length of the CPU burst that is ending.
 	currentThread.saveState();
+	currentThread.totalRunTicks += Simulation.currentTime() - currentThread.dispatchTime;
+	currentThread.currCPUBurst =
+	    Simulation.cpuLocalTime(currentCPU) - currentThread.burstStart;
+	if(currentThread.isRealTime())
+	    chargeRealTime(currentThread);
+	if(status == NachosThread.FINISHED && finishedThreads != null)
+	    finishedThreads.add(currentThread);
 
-	mutex.acquire();
-	if(toRelease != null)
-	    toRelease.release();
+	// The caller's spin lock stays held until the CPU has been relinquished,
+	// so that nobody can make the current thread ready (and dispatch it on
+	// another CPU) while it is still running here.
+	if(nextThread == null) {
+	    // Before going idle, count this CPU as idle and then look once
+	    // more for work that was made ready since we last looked.
+	    idleLock.acquire();
+	    numIdle++;
+	    // Gang handoffs are made with the idle lock held, and only to
+	    // CPUs that are not idle, so none can arrive after this check.
+	    nextThread = state.handoff;
+	    state.handoff = null;
+	    if(nextThread == null)
+		nextThread = stealFromBusiest(currentCPU);
+	    if(nextThread != null) {
+		numIdle--;
+		idleLock.release();
+	    }
+	}
+	if(nextThread != null && nextThread.gang != null)
+	    coschedule(nextThread);
 	if(nextThread != null) {
 	    // Switch the CPU from currentThread to nextThread.
 
@@ -288,16 +1023,18 @@ public class Scheduler {
 		    " from " + currentThread.name +
 		    " to " + nextThread.name);
 
+	    runQueue.lock.acquire();
 	    if(status == NachosThread.RUNNING) {
 		// The current thread wants to keep running -- put it back in the ready list.
-		makeReady(currentThread);
+		// It cannot be taken by another CPU until our run queue lock is released.
+		makeReady(currentThread, runQueue);
 	    } else {
 		// Set the new status of the thread before relinquishing the CPU.
 		if(status != NachosThread.FINISHED)
 		    currentThread.setStatus(status);
 	    }
-	    cpuToThread.put(currentCPU, nextThread);
-	    CPU.switchTo(nextThread, mutex);
+	    recordDispatch(state, nextThread);
+	    CPU.switchTo(nextThread, releaseBoth(runQueue.lock, toRelease));
 	} else {
 	    // There is nothing for this CPU to do -- send it to the idle list.
 
@@ -306,19 +1043,81 @@ public class Scheduler {
 		    " to idle");
 
 	    cpuList.offer(currentCPU);
-	    cpuToThread.put(currentCPU, null);
+	    state.idle = true;
+	    state.currentThread = null;
+	    state.numIdles++;
+	    stopIdleTimer(state);
 	    if(status != NachosThread.FINISHED)
 		currentThread.setStatus(status);
-	    CPU.idle(mutex);
+	    CPU.idle(releaseBoth(idleLock, toRelease));
 	}
 	// Control returns here when currentThread has been rescheduled,
 	// perhaps on a different CPU.
 	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
 	currentThread.restoreState();
+	// The burst starts now, by the clock of the CPU we are actually on.
+	currentThread.burstStart = Simulation.cpuLocalTime(CPU.currentCPU());
+	currentThread.rtChargedUntil = currentThread.burstStart;
 
 	Debug.println('t', "Now in thread: " + currentThread.name);
     }
 
+    /**
+     * In tickless mode, stop the timer of an idle CPU, unless a thread is
+     * asleep on it, since then the timer is needed to wake the thread on time.
+     * The timer is started again by startIdleTimer when a thread is
+     * dispatched on the CPU.
+     * Assumes that interrupts have been disabled, that the idle list lock is
+     * held, and that the CPU is idle.
+     *
+     * @param state  The scheduler state of the CPU.
+     */
+    private void stopIdleTimer(CPUState state) {
+	if(!Nachos.options.TICKLESS_IDLE || !state.timerRunning
+		|| state.sleepQueue.nextWakeTime() != Integer.MAX_VALUE)
+	    return;
+	Debug.println('t', "Stopping timer on idle " + state.cpu.name);
+	state.cpu.timer.stop();
+	state.timerRunning = false;
+	state.numTimerStops++;
+    }
+
+    /**
+     * In tickless mode, restart the timer of a CPU that is being dispatched,
+     * if it was stopped when the CPU went idle.
+     * Assumes that interrupts have been disabled and that the idle list lock
+     * is held.
+     *
+     * @param state  The scheduler state of the CPU.
+     */
+    private void startIdleTimer(CPUState state) {
+	if(state.timerRunning || stopped || !Nachos.options.CPU_TIMERS)
+	    return;
+	Debug.println('t', "Restarting timer on " + state.cpu.name);
+	state.cpu.timer.start();
+	state.timerRunning = true;
+    }
+
+    /**
+     * Combine a scheduler spin lock with a spin lock held by the caller of
+     * yieldCPU, so that both can be released atomically with relinquishing
+     * the CPU.
+     *
+     * @param lock  The scheduler spin lock.
+     * @param toRelease  The caller's spin lock, or null if there is none.
+     * @return a Releasable that releases lock and then toRelease.
+     */
+    private static Releasable releaseBoth(final SpinLock lock, final SpinLock toRelease) {
+	if(toRelease == null)
+	    return lock;
+	return new Releasable() {
+	    public void release() {
+		toRelease.release();
+		lock.release();
+	    }
+	};
+    }
+
     /**
      * Relinquish the CPU if any other thread is ready to run.
      * If so, put the thread on the end of the ready list, so that
@@ -328,13 +1127,12 @@ public class Scheduler {
      * Otherwise returns when the thread eventually works its way
      * to the front of the ready list and gets re-scheduled.
      *
-     * NOTE: we disable interrupts and acquire the scheduler mutex,
-     * so that looking at the thread on the front of the ready list,
-     * and switching to it, can be done atomically.  On return, we release
-     * the scheduler mutex and re-set the interrupt level to its
+     * NOTE: we disable interrupts, so that looking at the thread on the front
+     * of the ready list, and switching to it, can be done without a timer
+     * interrupt intervening.  On return, we re-set the interrupt level to its
      * original state.  This means this method will work properly no
      * matter whether interrupts are enabled or disabled when it is called,
-     * but it should never be called with the scheduler mutex already locked.
+     * but it should never be called with a scheduler spin lock already locked.
      *
      * Similar to sleep(), but a little different.
      */
@@ -374,6 +1172,105 @@ public class Scheduler {
 	// The caller is responsible for re-enabling interrupts.
     }
 
+    /**
+     * Put the current thread to sleep for a specified number of ticks.
+     * The thread is placed on the sleep queue of the current CPU, keyed by
+     * the absolute time at which it is to be woken, and is made ready again
+     * by the first timer interrupt on that CPU at or after that time.
+     * Sleeping therefore requires that the CPU timers be enabled.
+     *
+     * @param ticks  The number of ticks to sleep.  If not positive, then
+     * the thread does not sleep at all.
+     */
+    public void sleepTicks(int ticks) {
+	if(ticks <= 0)
+	    return;
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	CPU currentCPU = CPU.currentCPU();
+	SleepQueue sleepQueue = cpuStates[currentCPU.unit].sleepQueue;
+	extendedNachosThread currentThread = (extendedNachosThread)NachosThread.currentThread();
+	long wakeTime = (long)Simulation.cpuLocalTime(currentCPU) + ticks;
+	currentThread.wakeTime = (int)Math.min(wakeTime, Integer.MAX_VALUE - 1);
+
+	Debug.println('t', "Sleeping thread " + currentThread.name
+		+ " until " + currentThread.wakeTime);
+
+	// The sleep queue lock is released only once the thread has given up
+	// the CPU, so the timer cannot wake it before it is actually asleep.
+	sleepQueue.lock.acquire();
+	sleepQueue.offer(currentThread);
+	sleepThread(sleepQueue.lock);
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Relinquish the CPU, like sleepThread, but for at most a specified
+     * number of ticks.  The caller must have put the current thread on a
+     * wait queue protected by toRelease, which must be held.  Whoever wakes
+     * the thread must take it off the wait queue, with toRelease held,
+     * before making it ready.  If nobody has done so when the time is up,
+     * the timer interrupt handler takes the thread off the wait queue
+     * itself and makes it ready.  As with sleepTicks, the timeout is
+     * handled by the timer of the current CPU, so timeouts require that
+     * the CPU timers be enabled.
+     *
+     * @param toRelease  The spin lock protecting the wait queue, which is
+     * released atomically with relinquishing the CPU, and is not held on return.
+     * @param waitQueue  The wait queue on which the caller has put the
+     * current thread.
+     * @param ticks  The maximum number of ticks to wait.  If not positive,
+     * the thread is taken off the wait queue and does not wait at all.
+     * @return true if the thread was woken, false if the wait timed out,
+     * in which case the thread is no longer on the wait queue.
+     */
+    public boolean sleepThread(SpinLock toRelease, Queue<? extends NachosThread> waitQueue,
+	    int ticks) {
+	extendedNachosThread currentThread = (extendedNachosThread)NachosThread.currentThread();
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && toRelease.isLocked());
+	if(ticks <= 0) {
+	    waitQueue.remove(currentThread);
+	    toRelease.release();
+	    return false;
+	}
+	CPU currentCPU = CPU.currentCPU();
+	SleepQueue sleepQueue = cpuStates[currentCPU.unit].sleepQueue;
+	long wakeTime = (long)Simulation.cpuLocalTime(currentCPU) + ticks;
+	currentThread.wakeTime = (int)Math.min(wakeTime, Integer.MAX_VALUE - 1);
+	currentThread.waitLock = toRelease;
+	currentThread.waitQueue = waitQueue;
+	currentThread.numTimedWaits++;
+	currentThread.timedOut = false;
+	currentThread.timeoutQueue = sleepQueue;
+
+	Debug.println('t', "Sleeping thread " + currentThread.name
+		+ " until " + currentThread.wakeTime + " at most");
+
+	// The timer cannot time the thread out before it is asleep, since it
+	// must first acquire toRelease.
+	sleepQueue.lock.acquire();
+	sleepQueue.offer(currentThread);
+	sleepQueue.lock.release();
+	sleepThread(toRelease);
+	currentThread.waitLock = null;
+	currentThread.waitQueue = null;
+	return !currentThread.timedOut;
+    }
+
+    /**
+     * Take a thread that is being woken from a timed wait off the sleep
+     * queue that holds its timeout.  The caller must hold the spin lock of
+     * the wait, or have taken the thread off the wait queue with it held.
+     *
+     * @param thread  The thread.
+     */
+    private void cancelTimeout(extendedNachosThread thread) {
+	SleepQueue sleepQueue = thread.timeoutQueue;
+	sleepQueue.lock.acquire();
+	sleepQueue.remove(thread);
+	sleepQueue.lock.release();
+	thread.timeoutQueue = null;
+    }
+
     /**
      * Called by a thread to terminate itself.
      * A thread can't completely destroy itself, because it needs some
@@ -383,8 +1280,6 @@ public class Scheduler {
     public void finishThread() {
 	CPU.setLevel(CPU.IntOff);
 	
-	numCPU100Ticks.put(CPU.currentCPU(), 0);
-	
 	NachosThread currentThread = NachosThread.currentThread();
 
 	Debug.println('t', "Finishing thread: " + currentThread.name);
@@ -393,17 +1288,22 @@ public class Scheduler {
 	// before making it the thread to be destroyed, because we don't want
 	// someone to try to destroy a thread that is not FINISHED.
 	currentThread.setStatus(NachosThread.FINISHED);
+	Gang gang = ((extendedNachosThread)currentThread).gang;
+	if(gang != null)
+	    gang.leave((extendedNachosThread)currentThread);
+	if(((extendedNachosThread)currentThread).isRealTime())
+	    setRealTime((extendedNachosThread)currentThread, 0, 0);
 	
 	// Delete the carcass of any thread that died previously.
 	// This ensures that there is at most one dead thread ever waiting
 	// to be cleaned up.
-	mutex.acquire();
+	reaperLock.acquire();
 	if (threadToBeDestroyed != null) {
 	    threadToBeDestroyed.destroy();
 	    threadToBeDestroyed = null;
 	}
 	threadToBeDestroyed = currentThread;
-	mutex.release();
+	reaperLock.release();
 
 	yieldCPU(NachosThread.FINISHED, null);
 	// not reached
@@ -412,28 +1312,292 @@ public class Scheduler {
 	// current CPU goes idle.
     }
 
+    /**
+     * Print the scheduler metrics: for each CPU, the number of dispatches
+     * (context switches), steals, migrations, threads pulled to balance the
+     * load, preemptions, gang dispatches, real-time
+     * dispatches, deadline misses, idle periods and idle timer stops, and
+     * the number of dispatches and average run queue wait by level; for
+     * each run queue level, a histogram of its depth; and for each thread
+     * that is currently running, its total wait and run times.  If metrics
+     * are enabled with -sm, the totals over all the threads that have
+     * finished are also printed, followed by the times of those that ran
+     * longest.  All times are in simulation ticks.
+     * This is called automatically when the simulation stops if metrics are
+     * enabled, but it may also be called at any time to get a snapshot.
+     * The counters are read without locking, so a snapshot taken while
+     * the simulation is running may be slightly inconsistent.
+     */
+    public void printStatistics() {
+	System.out.println("Scheduler metrics (times in ticks):");
+	for(int i = 0; i < cpuStates.length; i++) {
+	    CPUState state = cpuStates[i];
+	    System.out.println("   " + state.cpu.name
+		    + ": dispatches " + state.numDispatches
+		    + ", steals " + state.numSteals
+		    + ", migrations " + state.numMigrations
+		    + ", balanced " + state.numBalanced
+		    + ", preemptions " + state.numPreemptions
+		    + ", wakeup preemptions " + state.numWakeupPreemptions
+		    + ", gang dispatches " + state.numGangDispatches
+		    + ", real-time dispatches " + state.numRealTimeDispatches
+		    + ", deadline misses " + state.numDeadlineMisses
+		    + ", idles " + state.numIdles
+		    + ", idle timer stops " + state.numTimerStops);
+	    for(int level = 0; level < state.dispatchesByLevel.length; level++) {
+		long n = state.dispatchesByLevel[level];
+		if(n == 0)
+		    continue;
+		System.out.println("      level " + level
+			+ ": dispatches " + n
+			+ ", average wait " + state.waitTicksByLevel[level] / n);
+	    }
+	}
+	System.out.println("Run queue depths (depth: count):");
+	for(int i = 0; i < cpuStates.length; i++) {
+	    RunQueue runQueue = cpuStates[i].runQueue;
+	    for(int level = 0; level < runQueue.numLevels(); level++) {
+		if(runQueue.numEnqueued(level) == 0)
+		    continue;
+		StringBuffer line = new StringBuffer("   " + runQueue.cpu.name
+			+ " level " + level
+			+ ": enqueued " + runQueue.numEnqueued(level)
+			+ ", max " + runQueue.maxDepth(level) + ",");
+		long[] histogram = runQueue.depthHistogram(level);
+		for(int b = 0; b < histogram.length; b++) {
+		    if(histogram[b] != 0)
+			line.append(" " + (1 << b) + "-" + ((2 << b) - 1)
+				+ ": " + histogram[b]);
+		}
+		System.out.println(line);
+	    }
+	}
+	System.out.println("Threads:");
+	for(int i = 0; i < cpuStates.length; i++) {
+	    extendedNachosThread thread = cpuStates[i].currentThread;
+	    if(thread != null) {
+		ThreadRecord record = new ThreadRecord();
+		record.set(thread);
+		record.print();
+	    }
+	}
+	if(finishedThreads != null)
+	    finishedThreads.print();
+    }
+
+    /**
+     * A copy of the scheduler metrics of one thread, which does not keep
+     * the thread itself alive.
+     */
+    private static class ThreadRecord {
+
+	/** Name of the thread. */
+	String name;
+
+	/** Total time spent waiting in run queues. */
+	long waitTicks;
+
+	/** Total time spent running. */
+	long runTicks;
+
+	/** Number of dispatches. */
+	int dispatches;
+
+	/** Number of preemptions at the end of a quantum. */
+	int preemptions;
+
+	/** Number of migrations. */
+	int migrations;
+
+	/** Was the thread real-time, or did it ever overrun its budget? */
+	boolean realTime;
+
+	/** Number of budget overruns. */
+	int budgetOverruns;
+
+	/** Number of deadline misses. */
+	int deadlineMisses;
+
+	/**
+	 * Copy the metrics of a thread.
+	 *
+	 * @param thread  The thread.
+	 */
+	void set(extendedNachosThread thread) {
+	    name = thread.name;
+	    waitTicks = thread.totalWaitTicks;
+	    runTicks = thread.totalRunTicks;
+	    dispatches = thread.numDispatches;
+	    preemptions = thread.numPreemptions;
+	    migrations = thread.numMigrations;
+	    realTime = thread.isRealTime() || thread.numBudgetOverruns > 0;
+	    budgetOverruns = thread.numBudgetOverruns;
+	    deadlineMisses = thread.numDeadlineMisses;
+	}
+
+	/**
+	 * Print the metrics as one line of the metrics report.
+	 */
+	void print() {
+	    System.out.println("   " + name
+		    + ": wait " + waitTicks
+		    + ", run " + runTicks
+		    + ", dispatches " + dispatches
+		    + ", preemptions " + preemptions
+		    + ", migrations " + migrations
+		    + (realTime
+		       ? ", budget overruns " + budgetOverruns
+			 + ", deadline misses " + deadlineMisses
+		       : ""));
+	}
+    }
+
+    /**
+     * Scheduler metrics of the threads that have finished.  The metrics of
+     * each thread are added into totals when it finishes, and copies are
+     * kept for the few threads that ran longest, so that neither the
+     * threads nor anything else is retained per thread, and nothing is
+     * allocated after the records are created.  The report may be printed
+     * from a host thread that is not running on any CPU and so cannot take
+     * a spin lock, so this is protected by its own monitor.
+     */
+    private static class FinishedThreadMetrics {
+
+	/** Number of the longest-running finished threads reported individually. */
+	private static final int NUM_RECORDS = 16;
+
+	/** Totals over all the finished threads; the name is unused. */
+	private final ThreadRecord total = new ThreadRecord();
+
+	/** Number of threads that have finished. */
+	private long count;
+
+	/** Records of the longest-running finished threads, longest first. */
+	private final ThreadRecord[] records = new ThreadRecord[NUM_RECORDS];
+
+	/** Number of records in use. */
+	private int numRecords;
+
+	/**
+	 * Initialize, with no threads finished.
+	 */
+	FinishedThreadMetrics() {
+	    for(int i = 0; i < records.length; i++)
+		records[i] = new ThreadRecord();
+	}
+
+	/**
+	 * Add the metrics of a thread that is finishing.
+	 *
+	 * @param thread  The thread.
+	 */
+	synchronized void add(extendedNachosThread thread) {
+	    count++;
+	    total.waitTicks += thread.totalWaitTicks;
+	    total.runTicks += thread.totalRunTicks;
+	    total.dispatches += thread.numDispatches;
+	    total.preemptions += thread.numPreemptions;
+	    total.migrations += thread.numMigrations;
+	    total.budgetOverruns += thread.numBudgetOverruns;
+	    total.deadlineMisses += thread.numDeadlineMisses;
+	    total.realTime |= thread.isRealTime() || thread.numBudgetOverruns > 0;
+
+	    // Insert into the records by run time, reusing the record of the
+	    // shortest-running thread if they are all in use.
+	    int i = numRecords;
+	    if(i == records.length) {
+		if(thread.totalRunTicks <= records[i-1].runTicks)
+		    return;
+		i--;
+	    } else {
+		numRecords++;
+	    }
+	    ThreadRecord record = records[i];
+	    while(i > 0 && records[i-1].runTicks < thread.totalRunTicks) {
+		records[i] = records[i-1];
+		i--;
+	    }
+	    records[i] = record;
+	    record.set(thread);
+	}
+
+	/**
+	 * Print the totals and the records of the longest-running threads.
+	 */
+	synchronized void print() {
+	    if(count == 0)
+		return;
+	    total.name = "Finished threads (" + count + ")";
+	    total.print();
+	    for(int i = 0; i < numRecords; i++)
+		records[i].print();
+	}
+    }
+
+    /**
+     * Hook run on return from a timer interrupt to yield the interrupted thread.
+     * A single instance is shared, so that requesting a yield does not allocate.
+     */
+    private static final Runnable yieldOnInterruptReturn = new Runnable() {
+	public void run() {
+	    if(NachosThread.currentThread() != null) {
+		Debug.println('t', "Yielding current thread on interrupt return");
+		Nachos.scheduler.yieldThread();
+	    } else {
+		Debug.println('i', "No current thread on interrupt return, skipping yield");
+	    }
+	}
+    };
+
     /**
      * Interrupt handler for the time-slice timer.  A timer is set up to
      * interrupt the CPU periodically (once every Timer.DefaultInterval ticks).
      * The handleInterrupt() method is called with interrupts disabled each
      * time there is a timer interrupt.
      */
-    private static class TimerInterruptHandler implements InterruptHandler {
+    private class TimerInterruptHandler implements InterruptHandler {
+
+	/** Initial capacity of the buffers for threads whose timed waits time out. */
+	private static final int INITIAL_TIMEOUTS = 4;
 
 	/** The Timer device this is a handler for. */
 	private final Timer timer;
 
+	/** Scheduler state of the CPU this timer belongs to. */
+	private final CPUState state;
+
+	// Threads whose timed waits have timed out, and their wait fields as
+	// they were when the threads were taken off the sleep queue.  These
+	// buffers are only used by this handler, and grow only if more timed
+	// waits time out at once than ever before, so that handling a timer
+	// interrupt does not allocate.
+
+	/** Threads taken off the sleep queue whose timed waits have timed out. */
+	private extendedNachosThread[] timedOut = new extendedNachosThread[INITIAL_TIMEOUTS];
+
+	/** Spin lock protecting the wait queue of each thread that timed out. */
+	private SpinLock[] timedOutLocks = new SpinLock[INITIAL_TIMEOUTS];
+
+	/** Wait queue of each thread that timed out. */
+	private Queue<?>[] timedOutQueues = new Queue<?>[INITIAL_TIMEOUTS];
+
+	/** Number of timed waits of each thread that timed out. */
+	private int[] timedOutWaits = new int[INITIAL_TIMEOUTS];
+
 	/**
 	 * Initialize an interrupt handler for a specified Timer device.
 	 * 
 	 * @param timer  The device this handler is going to handle.
+	 * @param state  The scheduler state of the CPU the timer belongs to.
 	 */
-	public TimerInterruptHandler(Timer timer) {
+	public TimerInterruptHandler(Timer timer, CPUState state) {
 	    this.timer = timer;
+	    this.state = state;
 	}
 
 	public void handleInterrupt() {
-	    Debug.println('i', "Timer interrupt: " + timer.name);
+	    if(Debug.isEnabled('i'))
+		Debug.println('i', "Timer interrupt: " + timer.name);
 	    // Note that instead of calling yield() directly (which would
 	    // suspend the interrupt handler, not the interrupted thread
 	    // which is what we wanted to context switch), we set a flag
@@ -441,27 +1605,125 @@ public class Scheduler {
 	    // if the interrupted thread called yield at the point it is 
 	    // was interrupted.
 	    
-	    CPU currentCPU = CPU.currentCPU();
-	    numCPU100Ticks.put(currentCPU, numCPU100Ticks.get(currentCPU) + 1);
+	    CPU currentCPU = state.cpu;
+	    state.ticks++;
 	    
-	    for (int i = 0; i < sleepingThreads.size(); i++) {
-		extendedNachosThread thread = sleepingThreads.get(i);
-		if (currentCPU == sleepingThreadsCPU.get(i)) {
-		    thread.waitTicks = thread.waitTicks - timer.interval;
-		    	if (thread.waitTicks <= 0) {
-		    	    thread.semSleep.V();
-			}
-		}
+	    wakeSleepers(currentCPU);
+
+	    // An idle CPU with nobody left asleep on it needs no more ticks.
+	    if (state.idle && Nachos.options.TICKLESS_IDLE) {
+		idleLock.acquire();
+		if (state.idle)
+		    stopIdleTimer(state);
+		idleLock.release();
+	    }
+	    
+	    // Busy CPUs balance the load from time to time; idle CPUs
+	    // steal work as soon as it is made ready anyway.
+	    int balanceTicks = Nachos.options.LOAD_BALANCE_TICKS;
+	    if (!state.idle && balanceTicks > 0
+		    && Simulation.cpuLocalTime(currentCPU) - state.nextBalanceTime >= 0) {
+		state.nextBalanceTime = Simulation.cpuLocalTime(currentCPU) + balanceTicks;
+		balance(state);
 	    }
 	    
-	    extendedNachosThread currThread = cpuToThread.get(currentCPU);
+	    extendedNachosThread currThread = state.currentThread;
 	    if (currThread != null) {
-		int quantum = currThread.quantum;
-		if (numCPU100Ticks.get(currentCPU) % (quantum/timer.interval) == 0) {
-		    currThread.currCPUBurst = 2*quantum;
+		if (state.handoff != null) {
+		    Debug.println('t', "Preempting " + currThread.name
+			    + " for " + state.handoff.name + "'s gang");
 		    yieldOnReturn();
+		} else if (state.rescheduleFrom != null) {
+		    Debug.println('t', "Preempting " + currThread.name
+			    + " for a wakeup");
+		    state.numWakeupPreemptions++;
+		    yieldOnReturn();
+		} else if (currThread.isRealTime()) {
+		    // Real-time threads are not time-sliced, but must not
+		    // exceed their budget.
+		    if (chargeRealTime(currThread)) {
+			Debug.println('t', currThread.name + " used up its budget");
+			yieldOnReturn();
+		    }
+		} else if (policy.tick(currThread, state.ticks * timer.interval)) {
+		    currThread.numPreemptions++;
+		    state.numPreemptions++;
+		    yieldOnReturn();
+		}
+	    }
+	}
+
+	/**
+	 * Make ready all threads on this CPU's sleep queue whose wake time
+	 * has arrived.  Only the head of the queue is examined if no thread is due.
+	 *
+	 * @param currentCPU  The CPU this timer belongs to.
+	 */
+	private void wakeSleepers(CPU currentCPU) {
+	    int now = Simulation.cpuLocalTime(currentCPU);
+	    SleepQueue sleepQueue = state.sleepQueue;
+	    if(sleepQueue.nextWakeTime() > now)
+		return;
+	    int n = 0;
+	    sleepQueue.lock.acquire();
+	    extendedNachosThread thread;
+	    while((thread = sleepQueue.pollExpired(now)) != null) {
+		if(thread.waitLock != null) {
+		    // Wait queue locks come before sleep queue locks, so timeouts
+		    // are handled once the sleep queue lock has been released.
+		    // Until the thread is made ready, its wait fields cannot
+		    // change, so they can be captured here.
+		    if(n == timedOut.length)
+			growTimedOut();
+		    timedOut[n] = thread;
+		    timedOutLocks[n] = thread.waitLock;
+		    timedOutQueues[n] = thread.waitQueue;
+		    timedOutWaits[n] = thread.numTimedWaits;
+		    n++;
+		} else {
+		    Debug.println('t', "Waking sleeping thread " + thread.name);
+		    readyToRun(thread);
 		}
 	    }
+	    sleepQueue.lock.release();
+	    for(int i = 0; i < n; i++) {
+		thread = timedOut[i];
+		SpinLock lock = timedOutLocks[i];
+		lock.acquire();
+		// The thread may have been woken, and even started another wait,
+		// since it was taken off the sleep queue.
+		if(thread.numTimedWaits == timedOutWaits[i]
+			&& timedOutQueues[i].remove(thread)) {
+		    Debug.println('t', "Timing out thread " + thread.name);
+		    thread.timedOut = true;
+		    thread.timeoutQueue = null;
+		    readyToRun(thread);
+		}
+		lock.release();
+		timedOut[i] = null;
+		timedOutLocks[i] = null;
+		timedOutQueues[i] = null;
+	    }
+	}
+
+	/**
+	 * Double the capacity of the buffers used to hold the threads whose
+	 * timed waits have timed out.
+	 */
+	private void growTimedOut() {
+	    int length = 2 * timedOut.length;
+	    extendedNachosThread[] threads = new extendedNachosThread[length];
+	    SpinLock[] locks = new SpinLock[length];
+	    Queue<?>[] queues = new Queue<?>[length];
+	    int[] waits = new int[length];
+	    System.arraycopy(timedOut, 0, threads, 0, timedOut.length);
+	    System.arraycopy(timedOutLocks, 0, locks, 0, timedOut.length);
+	    System.arraycopy(timedOutQueues, 0, queues, 0, timedOut.length);
+	    System.arraycopy(timedOutWaits, 0, waits, 0, timedOut.length);
+	    timedOut = threads;
+	    timedOutLocks = locks;
+	    timedOutQueues = queues;
+	    timedOutWaits = waits;
 	}
 
 	/**
@@ -475,17 +1737,7 @@ public class Scheduler {
 	 */
 	private void yieldOnReturn() {
 	    Debug.println('i', "Yield on interrupt return requested");
-	    CPU.setOnInterruptReturn
-	    (new Runnable() {
-		public void run() {
-		    if(NachosThread.currentThread() != null) {
-			Debug.println('t', "Yielding current thread on interrupt return");
-			Nachos.scheduler.yieldThread();
-		    } else {
-			Debug.println('i', "No current thread on interrupt return, skipping yield");
-		    }
-		}
-	    });
+	    CPU.setOnInterruptReturn(yieldOnInterruptReturn);
 	}
 
     }
@@ -0,0 +1,70 @@
+package nachos.kernel.threads;
+
+import nachos.machine.CPU;
+
+/**
+ * A SchedulingPolicy decides which ready thread runs next, and for how long.
+ * The scheduler itself deals only with the mechanics of dispatching threads,
+ * going idle and moving work between CPUs; everything that depends on the
+ * policy is obtained through this interface:
+ *
+ * (1) Enqueue and pick-next decisions are made by the run queues that the
+ * policy creates for each CPU (see RunQueue.enqueue and RunQueue.pickNext).
+ * (2) Quantum decisions are made by quantum(), which gives the length of
+ * time a thread may run before it is preempted.  The scheduler calls it
+ * each time it dispatches a thread, and records the result in the thread's
+ * quantum field.
+ * (3) On each timer interrupt, tick() is called for the running thread,
+ * to do any per-tick accounting and to decide whether to preempt it.
+ * (4) When a thread is made ready, preempts() decides whether it should
+ * preempt a thread running on some CPU, without waiting for a time slice
+ * to end.
+ *
+ * The methods are called with interrupts disabled.  The run queue methods
+ * are also called with the run queue lock held, but quantum() and tick()
+ * are called without any lock, so they should only touch the thread they
+ * are given.
+ */
+public interface SchedulingPolicy {
+
+    /**
+     * Create an empty run queue for a CPU.
+     *
+     * @param cpu  The CPU that will own the run queue.
+     * @return the new run queue.
+     */
+    public RunQueue newRunQueue(CPU cpu);
+
+    /**
+     * Get the time slice of a thread.
+     *
+     * @param thread  The thread.
+     * @return the number of ticks the thread may run before being preempted.
+     */
+    public int quantum(extendedNachosThread thread);
+
+    /**
+     * Called on each timer interrupt with the thread that was interrupted.
+     * A thread's quantum field holds the value quantum() gave when it was
+     * dispatched, so a policy that preempts threads at the end of their
+     * quantum need only compare ranTicks with it.
+     *
+     * @param thread  The thread that is running.
+     * @param ranTicks  The number of ticks for which the thread has run
+     * since it was dispatched.
+     * @return true if the thread should be preempted.
+     */
+    public boolean tick(extendedNachosThread thread, int ranTicks);
+
+    /**
+     * Decide whether a thread that has just been made ready should preempt
+     * a running thread.  This is called without any lock on the running
+     * thread, so it should only look at fields that are not changed while
+     * a thread runs.
+     *
+     * @param ready  The thread that has been made ready.
+     * @param running  A thread that is running on some CPU.
+     * @return true if ready should run in preference to running.
+     */
+    public boolean preempts(extendedNachosThread ready, extendedNachosThread running);
+}
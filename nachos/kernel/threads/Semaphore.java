@@ -21,11 +21,15 @@
 
 package nachos.kernel.threads;
 
+import java.util.Collection;
+
 import nachos.Debug;
 import nachos.kernel.Nachos;
 import nachos.machine.CPU;
 import nachos.machine.NachosThread;
-import nachos.util.FIFOQueue;
+import nachos.machine.Simulation;
+import nachos.util.ArrayQueue;
+import nachos.util.HeapQueue;
 import nachos.util.Queue;
 
 /**
@@ -35,6 +39,19 @@ import nachos.util.Queue;
  *	P() -- waits until value > 0, then decrement.
  *
  *	V() -- increment, waking up a thread waiting in P() if necessary.
+ *
+ * tryP() decrements the value only if that can be done without waiting,
+ * and P(timeout) waits for at most a given number of ticks.  Timeouts are
+ * handled by the CPU timers, so without them (-ps) P(timeout) waits until
+ * the value is > 0, however long that takes.
+ *
+ * V(n) is equivalent to n calls of V(), but makes all the waiters that
+ * it wakes ready as a single batch.  V(wakeups) defers the wakeup to the
+ * caller, so that wakeups on several semaphores can be batched.
+ *
+ * Waiting threads are woken in order of arrival, unless the semaphore is
+ * constructed with a priority function (see ThreadPriority), in which
+ * case they are woken in order of priority.
  * 
  * Note that the interface does *not* allow a thread to read the value of 
  * the semaphore directly -- even if you did read the value, the
@@ -65,6 +82,16 @@ public class Semaphore {
      */
     private final SpinLock spinLock;
 
+    /** Contention statistics for P(), or null if lock profiling is disabled. */
+    private final LockStatistics stats;
+
+    /**
+     * Scratch queue in which V(n) collects the threads to be woken, created
+     * when first needed and emptied after each use, so that waking a batch
+     * does not allocate.  Protected by spinLock.
+     */
+    private ArrayQueue<NachosThread> batch;
+
     /**
      * 	Initialize a semaphore, so that it can be used for synchronization.
      *
@@ -72,10 +99,25 @@ public class Semaphore {
      *	@param initialValue The initial value of the semaphore.
      */
     public Semaphore(String debugName, int initialValue) {
+	this(debugName, initialValue, null);
+    }
+
+    /**
+     * 	Initialize a semaphore whose waiters are woken in order of priority.
+     *
+     *	@param debugName An arbitrary name, useful for debugging.
+     *	@param initialValue The initial value of the semaphore.
+     *	@param priority The priority of waiting threads, or null to wake
+     *	them in order of arrival.
+     */
+    public Semaphore(String debugName, int initialValue,
+	    HeapQueue.Priority<? super NachosThread> priority) {
 	name = debugName;
 	value = initialValue;
-	queue = new FIFOQueue<NachosThread>();
+	queue = (priority == null ? new ArrayQueue<NachosThread>()
+		 : new HeapQueue<NachosThread>(priority));
 	spinLock = new SpinLock(name + " spin lock");
+	stats = LockStatistics.register("semaphore", name, false);
     }
 
     /**
@@ -90,15 +132,20 @@ public class Semaphore {
 	 * Note that Scheduler.Sleep() assumes that interrupts are disabled
 	 * and the scheduler spinLock is held when it is called.
 	 */
+	int startTime = (stats != null ? LockStatistics.now() : 0);
+	boolean contended = false;
 	int oldLevel = CPU.setLevel(CPU.IntOff);	// disable interrupts
 	spinLock.acquire();				// exclude other CPUs
 
 	while (value == 0) {
 	    // semaphore not available, so go to sleep
 	    queue.offer(NachosThread.currentThread());
+	    contended = true;
 	    Nachos.scheduler.sleepThread(spinLock);
 	    spinLock.acquire();				// restore exclusion
 	}
+	if (stats != null)
+	    stats.acquired(startTime, contended);
 	Debug.println('s', "Semaphore " + name + ": value " + value
 		+ " -> " + (value-1));
 	value--; 					// semaphore available, 
@@ -107,6 +154,67 @@ public class Semaphore {
 	CPU.setLevel(oldLevel);				// restore interrupts
     }
 
+    /**
+     * 	If the semaphore value is > 0, decrement it, without waiting.
+     *
+     *	@return true if the value was decremented, false if it was 0.
+     */
+    public boolean tryP() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+
+	boolean acquired = (value > 0);
+	if (acquired) {
+	    if (stats != null)
+		stats.acquired(LockStatistics.now(), false);
+	    Debug.println('s', "Semaphore " + name + ": value " + value
+		    + " -> " + (value-1));
+	    value--;
+	}
+
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+	return acquired;
+    }
+
+    /**
+     * 	Wait for at most a given time until semaphore value > 0,
+     *	then decrement.
+     *
+     *	@param timeoutTicks  The maximum number of ticks to wait.
+     *	@return true if the value was decremented, false if the time ran out.
+     */
+    public boolean P(int timeoutTicks) {
+	int startTime = (stats != null ? LockStatistics.now() : 0);
+	boolean contended = false;
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+
+	int deadline = Simulation.cpuLocalTime(CPU.currentCPU()) + timeoutTicks;
+	while (value == 0) {
+	    // Another thread may take the value before a woken waiter runs,
+	    // so the time left is worked out again each time around.
+	    int remaining = deadline - Simulation.cpuLocalTime(CPU.currentCPU());
+	    queue.offer(NachosThread.currentThread());
+	    contended = true;
+	    if (!Nachos.scheduler.sleepThread(spinLock, queue, remaining)) {
+		Debug.println('s', "Semaphore " + name + ": P timed out");
+		CPU.setLevel(oldLevel);
+		return false;
+	    }
+	    spinLock.acquire();
+	}
+	if (stats != null)
+	    stats.acquired(startTime, contended);
+	Debug.println('s', "Semaphore " + name + ": value " + value
+		+ " -> " + (value-1));
+	value--;
+
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+	return true;
+    }
+
     /**
      * 	Increment semaphore value, waking up a waiter if necessary.
      */
@@ -131,4 +239,55 @@ public class Semaphore {
 	CPU.setLevel(oldLevel);
     }
 
+    /**
+     * 	Increment semaphore value by n, waking up to n waiters,
+     *	all of which are made ready together.
+     *
+     *	@param n  The amount by which to increment the value.
+     */
+    public void V(int n) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();				// exclude other CPUs
+
+	if (batch == null)
+	    batch = new ArrayQueue<NachosThread>();
+	NachosThread thread;
+	while (batch.size() < n && (thread = queue.poll()) != null)
+	    batch.offer(thread);
+	Nachos.scheduler.readyToRunAll(batch);
+	batch.clear();
+
+	Debug.println('s', "Semaphore " + name + ": value " + value
+		+ " -> " + (value+n));
+	value += n;
+
+	spinLock.release();				// release exclusion
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * 	Increment semaphore value, but rather than making a waiting thread
+     *	ready, add it to a collection, so that the caller can make a batch
+     *	of threads ready at once using Scheduler.readyToRunAll().
+     *	Until that is done, the thread remains blocked.
+     *
+     *	@param wakeups  Collection to which to add the thread to be woken,
+     *	if there is one.
+     */
+    public void V(Collection<NachosThread> wakeups) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();				// exclude other CPUs
+
+	NachosThread thread = queue.poll();
+	if (thread != null)
+	    wakeups.add(thread);
+
+	Debug.println('s', "Semaphore " + name + ": value " + value
+		+ " -> " + (value+1));
+	value++;
+
+	spinLock.release();				// release exclusion
+	CPU.setLevel(oldLevel);
+    }
+
 }
@@ -0,0 +1,115 @@
+package nachos.kernel.threads;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import nachos.Debug;
+import nachos.machine.CPU;
+
+/**
+ * A SleepQueue holds the threads that are sleeping until a specified time
+ * on one particular CPU.  The threads are kept in a min-heap ordered by
+ * the absolute simulation time (as seen by that CPU) at which they are to
+ * be woken, so that the timer interrupt handler only has to look at the
+ * head of the heap to find out whether any thread is due, and only touches
+ * the threads that are actually due.
+ *
+ * Each SleepQueue has its own spin lock.  The methods that examine or modify
+ * the heap assume that interrupts are disabled and that the lock is held by
+ * the caller.  The exception is nextWakeTime(), which may be read without
+ * the lock to find out cheaply whether there is anything to do.
+ */
+public class SleepQueue {
+
+    /** The CPU whose timer wakes the threads in this queue. */
+    public final CPU cpu;
+
+    /** Sleeping threads, ordered by wake time. */
+    private final PriorityQueue<extendedNachosThread> heap;
+
+    /**
+     * Wake time of the thread at the head of the heap, or Integer.MAX_VALUE
+     * if the heap is empty.  Updated only with the lock held, but volatile
+     * so that it can be read without the lock.
+     */
+    private volatile int nextWakeTime = Integer.MAX_VALUE;
+
+    /** Spin lock for mutually exclusive access to this sleep queue. */
+    public final SpinLock lock;
+
+    /** Orders threads by wake time. */
+    private static final Comparator<extendedNachosThread> byWakeTime =
+	new Comparator<extendedNachosThread>() {
+	    public int compare(extendedNachosThread t1, extendedNachosThread t2) {
+		return Integer.compare(t1.wakeTime, t2.wakeTime);
+	    }
+	};
+
+    /**
+     * Initialize an empty sleep queue for a specified CPU.
+     *
+     * @param cpu  The CPU whose timer will wake the threads in this queue.
+     */
+    public SleepQueue(CPU cpu) {
+	this.cpu = cpu;
+	heap = new PriorityQueue<extendedNachosThread>(11, byWakeTime);
+	lock = new SpinLock(cpu.name + " sleep queue lock");
+    }
+
+    /**
+     * Add a thread to this sleep queue.  The thread's wakeTime field must
+     * already have been set.  The caller must hold the lock.
+     *
+     * @param thread  The thread to add.
+     */
+    public void offer(extendedNachosThread thread) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && lock.isLocked());
+	heap.offer(thread);
+	nextWakeTime = heap.peek().wakeTime;
+    }
+
+    /**
+     * Remove and return the thread at the head of this sleep queue,
+     * if it is due to be woken at or before a specified time.
+     * The caller must hold the lock.
+     *
+     * @param now  The current time.
+     * @return the thread that was removed, or null if no thread is due.
+     */
+    public extendedNachosThread pollExpired(int now) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && lock.isLocked());
+	if(nextWakeTime > now)
+	    return null;
+	extendedNachosThread thread = heap.poll();
+	extendedNachosThread head = heap.peek();
+	nextWakeTime = (head == null ? Integer.MAX_VALUE : head.wakeTime);
+	return thread;
+    }
+
+    /**
+     * Remove a thread from this sleep queue, if it is there, because it
+     * has been woken before its wake time.  The caller must hold the lock.
+     *
+     * @param thread  The thread to remove.
+     * @return true if the thread was removed, false if it was not in the queue.
+     */
+    public boolean remove(extendedNachosThread thread) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && lock.isLocked());
+	if(!heap.remove(thread))
+	    return false;
+	extendedNachosThread head = heap.peek();
+	nextWakeTime = (head == null ? Integer.MAX_VALUE : head.wakeTime);
+	return true;
+    }
+
+    /**
+     * Get the time at which the next thread in this queue is due to be woken.
+     * This may be called without holding the lock, in which case the result
+     * is only a hint.
+     *
+     * @return the earliest wake time, or Integer.MAX_VALUE if the queue is empty.
+     */
+    public int nextWakeTime() {
+	return nextWakeTime;
+    }
+}
@@ -1,35 +1,162 @@
 package nachos.kernel.threads;
 
 import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.machine.CPU;
 import nachos.machine.Machine;
 import nachos.machine.Releasable;
 import nachos.machine.TestAndSetVariable;
 
 /**
  * This class implements "spin locks" for multiprocessor synchronization.
- * 
+ *
+ * There are three kinds of spin lock, all built from the machine's
+ * test-and-set primitive:
+ *
+ *	TEST_AND_SET -- every waiting CPU repeatedly tests and sets a single
+ *		shared variable.  This is cheap when there is no contention,
+ *		but every attempt hammers the shared variable, and nothing
+ *		stops one CPU from winning the race every time.
+ *
+ *	TICKET -- a CPU takes the next number and waits until the number
+ *		being served reaches it, so the lock is granted in FIFO order.
+ *		Waiting CPUs only read the shared variable.
+ *
+ *	MCS -- waiting CPUs form a queue, and each spins on a flag in its
+ *		own queue node, which its predecessor clears on release, so the
+ *		lock is granted in FIFO order and each waiter spins on a
+ *		different variable.
+ *
+ * The ticket counter and the MCS queue tail are updated under a guard
+ * variable that is held only for a few instructions, since the machine
+ * has no fetch-and-add or swap.  Test-and-set and ticket locks may also
+ * back off exponentially: after each failed attempt a waiting CPU pauses
+ * for twice as long, up to a limit, before looking at the lock again.
+ * MCS waiters spin on their own nodes, so they do not back off.  An MCS
+ * lock has one queue node for each CPU, allocated with the lock, which
+ * a CPU reuses each time it acquires the lock: spin locks are held with
+ * interrupts disabled, so a CPU is never in the queue of a lock twice.
+ *
+ * The default kind and backoff are set with -sl and -bo.
+ *
  * @author Eugene W. Stark
  * @version 20140106
  */
 
 public class SpinLock implements Releasable {
-    
-    /** The underlying shared memory location with an atomic test-and-set operation. */
+
+    /** Kind of spin lock that spins on a single test-and-set variable. */
+    public static final int TEST_AND_SET = 0;
+
+    /** Kind of spin lock that grants the lock in ticket order. */
+    public static final int TICKET = 1;
+
+    /** Kind of spin lock in which the waiters spin on their own queue nodes. */
+    public static final int MCS = 2;
+
+    /** Number of pauses after the first failed attempt, when backing off. */
+    private static final int MIN_BACKOFF = 4;
+
+    /** Largest number of pauses between attempts, when backing off. */
+    private static final int MAX_BACKOFF = 1024;
+
+    /**
+     * The underlying shared memory location with an atomic test-and-set
+     * operation.  For a test-and-set lock this is the lock itself; for the
+     * other kinds it guards the ticket counter or the queue tail.
+     */
     private TestAndSetVariable<Boolean> shared;
-    
+
     /** Name of this lock, for debugging. */
     private final String name;
-    
+
+    /** Which kind of spin lock this is. */
+    private final int kind;
+
+    /** Do waiting CPUs back off exponentially between attempts? */
+    private final boolean backoff;
+
+    /** Next ticket to be issued, for a ticket lock.  Protected by shared. */
+    private int nextTicket;
+
+    /** Ticket of the CPU that holds or may next take a ticket lock. */
+    private volatile int nowServing;
+
+    /** Last node in the queue of an MCS lock, or null if it is free.  Protected by shared. */
+    private volatile Node tail;
+
+    /** Queue node of the CPU that holds an MCS lock. */
+    private Node holder;
+
+    /** Queue node of each CPU, indexed by unit number, for an MCS lock. */
+    private final Node[] nodes;
+
+    /** Contention statistics, or null if lock profiling is disabled. */
+    private final LockStatistics stats;
+
+    /** Time at which the lock was last acquired, if profiling. */
+    private int acquireTime;
+
+    /** Written while pausing, so that the pause loop is not optimized away. */
+    private static volatile int pauseSink;
+
     /**
-     * Initialize a spin lock.
-     * 
+     * Initialize a spin lock of the kind, and with the backoff, set by the
+     * -sl and -bo options.
+     *
      * @param name  Name of the lock, for debugging.
      */
     public SpinLock(String name) {
+	this(name, kindOf(Nachos.options.SPINLOCK_KIND), Nachos.options.SPINLOCK_BACKOFF);
+    }
+
+    /**
+     * Initialize a spin lock.
+     *
+     * @param name  Name of the lock, for debugging.
+     * @param kind  The kind of spin lock: TEST_AND_SET, TICKET or MCS.
+     * @param backoff  Should waiting CPUs back off exponentially?
+     */
+    public SpinLock(String name, int kind, boolean backoff) {
+	Debug.ASSERT(kind == TEST_AND_SET || kind == TICKET || kind == MCS,
+		"Unknown kind of spin lock");
 	this.name = name;
+	this.kind = kind;
+	this.backoff = backoff;
 	shared = new TestAndSetVariable<Boolean>();
+	nodes = (kind == MCS ? new Node[Machine.NUM_CPUS] : null);
+	if(nodes != null) {
+	    for(int i = 0; i < nodes.length; i++)
+		nodes[i] = new Node();
+	}
+	stats = LockStatistics.register("spin lock", name, true);
+    }
+
+    /**
+     * Get the kind of spin lock named by the -sl option.
+     *
+     * @param name  "tas", "ticket" or "mcs".
+     * @return the kind of spin lock: TEST_AND_SET, TICKET or MCS.
+     */
+    public static int kindOf(String name) {
+	if(name.equals("ticket"))
+	    return TICKET;
+	else if(name.equals("mcs"))
+	    return MCS;
+	Debug.ASSERT(name.equals("tas"), "Unknown kind of spin lock: " + name);
+	return TEST_AND_SET;
+    }
+
+    /**
+     * Get the name of a kind of spin lock, as used by the -sl option.
+     *
+     * @param kind  The kind of spin lock: TEST_AND_SET, TICKET or MCS.
+     * @return "tas", "ticket" or "mcs".
+     */
+    public static String nameOf(int kind) {
+	return kind == TICKET ? "ticket" : kind == MCS ? "mcs" : "tas";
     }
-    
+
     /**
      * Acquire this spin lock.
      */
@@ -37,27 +164,138 @@ public class SpinLock implements Releasable {
 	if(Machine.NUM_CPUS > 1) {
 	    Debug.printf('s', "Acquiring spin lock: %s\n", name);
 
-	    while(shared.testAndSet(true) != null)
-		/* spin */;
+	    int startTime = (stats != null ? LockStatistics.now() : 0);
+	    boolean contended = false;
+	    switch(kind) {
+	    case TEST_AND_SET:
+		contended = lockShared();
+		break;
+	    case TICKET:
+		lockShared();
+		int ticket = nextTicket++;
+		shared.reset();
+		int delay = MIN_BACKOFF;
+		contended = (nowServing != ticket);
+		while(nowServing != ticket) {
+		    if(backoff) {
+			pause(delay);
+			delay = Math.min(2 * delay, MAX_BACKOFF);
+		    }
+		}
+		break;
+	    case MCS:
+		Node node = nodeOf(CPU.currentCPU());
+		lockShared();
+		Node pred = tail;
+		tail = node;
+		shared.reset();
+		if(pred != null) {
+		    contended = true;
+		    pred.next = node;
+		    while(node.waiting)
+			/* spin */;
+		}
+		holder = node;
+		break;
+	    }
+	    if(stats != null) {
+		stats.acquired(startTime, contended);
+		acquireTime = LockStatistics.now();
+	    }
 
 	    Debug.printf('s', "Acquired spin lock: %s\n", name);
 	}
     }
-    
+
     /**
      * Release this spin lock.
      */
     public void release() {
 	if(Machine.NUM_CPUS > 1) {
 	    Debug.printf('s', "Releasing spin lock: %s\n", name);
+	    if(stats != null)
+		stats.released(acquireTime);
+
+	    switch(kind) {
+	    case TEST_AND_SET:
+		shared.reset();
+		break;
+	    case TICKET:
+		nowServing = nowServing + 1;
+		break;
+	    case MCS:
+		Node node = holder;
+		holder = null;
+		if(node.next == null) {
+		    lockShared();
+		    boolean last = (tail == node);
+		    if(last)
+			tail = null;
+		    shared.reset();
+		    if(last)
+			break;
+		    // A successor has joined the queue but not yet linked itself in.
+		    while(node.next == null)
+			/* spin */;
+		}
+		node.next.waiting = false;
+		break;
+	    }
+	}
+    }
 
-	    shared.reset();
+    /**
+     * Test and set the shared variable until it is acquired.  Between
+     * attempts, the variable is only read until it looks free (and, if
+     * backing off, for an increasing time), so that waiting CPUs do not
+     * all hammer it with test-and-set operations.
+     *
+     * @return true if the variable was not acquired at the first attempt.
+     */
+    private boolean lockShared() {
+	int delay = MIN_BACKOFF;
+	boolean contended = false;
+	while(shared.testAndSet(true) != null) {
+	    contended = true;
+	    if(backoff) {
+		pause(delay);
+		delay = Math.min(2 * delay, MAX_BACKOFF);
+	    }
+	    while(shared.getValue() != null)
+		/* spin */;
 	}
+	return contended;
     }
-    
+
+    /**
+     * Get the queue node of a CPU for this MCS lock, ready to join the queue.
+     *
+     * @param cpu  The CPU, or null when called from a host thread before
+     * the CPUs start, which is given a node of its own.
+     * @return the node.
+     */
+    private Node nodeOf(CPU cpu) {
+	if(cpu == null)
+	    return new Node();
+	Node node = nodes[cpu.unit];
+	node.next = null;
+	node.waiting = true;
+	return node;
+    }
+
+    /**
+     * Pause for a while without touching any shared variable.
+     *
+     * @param n  The number of iterations to pause for.
+     */
+    private static void pause(int n) {
+	for(int i = 0; i < n; i++)
+	    pauseSink = i;
+    }
+
     /**
      * Determine if this spin lock is currently locked.
-     * 
+     *
      * @return true if this spin lock is currently locked, false otherwise.
      * Note that a return value of true does not imply that the currently executing
      * activity is the one that acquired the spin lock, only that the spin lock was
@@ -71,10 +309,29 @@ public class SpinLock implements Releasable {
      */
     public boolean isLocked() {
 	if(Machine.NUM_CPUS > 1) {
-	    return shared.getValue() != null;
+	    switch(kind) {
+	    case TICKET:
+		return nowServing != nextTicket;
+	    case MCS:
+		return tail != null;
+	    default:
+		return shared.getValue() != null;
+	    }
 	} else {
 	    return true;
 	}
     }
 
+    /**
+     * A node in the queue of CPUs waiting for an MCS lock.
+     */
+    private static class Node {
+
+	/** Set until the predecessor in the queue releases the lock. */
+	volatile boolean waiting = true;
+
+	/** The next node in the queue, once it has linked itself in. */
+	volatile Node next;
+    }
+
 }
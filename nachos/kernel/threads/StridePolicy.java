@@ -0,0 +1,117 @@
+package nachos.kernel.threads;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import nachos.Debug;
+import nachos.machine.CPU;
+
+/**
+ * Stride scheduling.  Each thread has a number of tickets, and a stride
+ * inversely proportional to its tickets.  The thread with the smallest pass
+ * value is run next, and its pass is advanced by its stride each time it is
+ * dispatched, so over time each thread receives quanta in proportion to its
+ * tickets, deterministically.
+ *
+ * Each run queue keeps its ready threads in a min-heap ordered by pass.
+ * A thread that has been asleep, or has moved from another CPU, may have a
+ * pass that is far behind the threads already in the queue; to stop it from
+ * monopolizing the CPU while it catches up, its pass is advanced to that of
+ * the thread most recently picked from the queue.
+ */
+public class StridePolicy implements SchedulingPolicy {
+
+    /** Stride of a thread holding a single ticket. */
+    public static final int STRIDE1 = 1 << 20;
+
+    /** The quantum given to every thread. */
+    private final int quantum;
+
+    /** Orders threads by pass. */
+    private static final Comparator<extendedNachosThread> byPass =
+	new Comparator<extendedNachosThread>() {
+	    public int compare(extendedNachosThread t1, extendedNachosThread t2) {
+		return Long.compare(t1.pass, t2.pass);
+	    }
+	};
+
+    /**
+     * Initialize a stride scheduling policy.
+     *
+     * @param quantum  The quantum given to every thread.
+     */
+    public StridePolicy(int quantum) {
+	Debug.ASSERT(quantum > 0, "Run queue quantum must be positive");
+	this.quantum = quantum;
+    }
+
+    public RunQueue newRunQueue(CPU cpu) {
+	return new StrideRunQueue(cpu);
+    }
+
+    public int quantum(extendedNachosThread thread) {
+	return quantum;
+    }
+
+    public boolean tick(extendedNachosThread thread, int ranTicks) {
+	return ranTicks >= thread.quantum;
+    }
+
+    /**
+     * Passes are only comparable within a run queue, so a wakeup never
+     * preempts; the thread waits for the end of the current quantum.
+     */
+    public boolean preempts(extendedNachosThread ready, extendedNachosThread running) {
+	return false;
+    }
+
+    /**
+     * Run queue for one CPU, ordered by pass.
+     */
+    private static class StrideRunQueue extends RunQueue {
+
+	/** Ready threads, ordered by pass. */
+	private final PriorityQueue<extendedNachosThread> heap =
+	    new PriorityQueue<extendedNachosThread>(11, byPass);
+
+	/** Pass of the thread most recently picked from this queue. */
+	private long pass;
+
+	StrideRunQueue(CPU cpu) {
+	    super(cpu, 1);
+	}
+
+	protected int enqueue(extendedNachosThread thread) {
+	    if(thread.pass < pass)
+		thread.pass = pass;
+	    heap.offer(thread);
+	    return 0;
+	}
+
+	protected extendedNachosThread pickNext() {
+	    extendedNachosThread thread = heap.poll();
+	    pass = thread.pass;
+	    thread.pass += STRIDE1 / Math.max(1, thread.tickets);
+	    return thread;
+	}
+
+	protected void dequeue(extendedNachosThread thread) {
+	    heap.remove(thread);
+	}
+
+	/**
+	 * The heap is not in pass order, so all of it is searched for the
+	 * allowed thread with the smallest pass.
+	 */
+	protected extendedNachosThread pickFor(int unit) {
+	    extendedNachosThread result = null;
+	    for(extendedNachosThread thread : heap) {
+		if(thread.mayRunOn(unit) && (result == null || thread.pass < result.pass))
+		    result = thread;
+	    }
+	    if(result != null)
+		heap.remove(result);
+	    return result;
+	}
+    }
+}
@@ -1,38 +1,70 @@
 package nachos.kernel.threads;
 
-import nachos.util.FIFOQueue;
-import nachos.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import nachos.util.ArrayQueue;
 import nachos.Debug;
 import nachos.kernel.Nachos;
 import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
 
 /**
  * This class provides a facility for scheduling work to be performed
  * "in the background" by "child" threads and safely communicating the
  * results back to a "parent" thread.  It is loosely modeled after the
- * AsyncTask facility provided in the Android API.
+ * AsyncTask facility provided in the Android API, and the ExecutorService
+ * facility provided in the Java API.
  *
- * The class is provided in skeletal form.  It is your job to
- * complete the implementation of this class in conformance with the
- * Javadoc specifications provided for each method.  The method
- * signatures specified below must not be changed.  However, the
- * implementation will likely require additional private methods as well
- * as (private) instance variables.  Also, it is essential to provide
- * proper synchronization for any data that can be accessed concurrently.
- * You may use any combination of semaphores, locks, and conditions
- * for this purpose.
+ * Each TaskManager has its own pool of worker threads and a bounded queue
+ * of work waiting for them.  Workers are created as work arrives, up to a
+ * fixed number, and finish when they find no more work, so a TaskManager
+ * that is no longer used leaves no threads behind, even if it is never
+ * shut down.  A thread that submits work while the
+ * queue is full waits until a worker has taken some out, so that a parent
+ * cannot run arbitrarily far ahead of its children.  Work is submitted
+ * either as a Callable, with submit(), which returns a Future through which
+ * the result can be waited for or the work cancelled, or as a Task, whose
+ * onCompletion() or onCancellation() method is then run by the parent
+ * thread when it calls processRequests().  Requests for the parent are
+ * queued on the TaskManager that made them, so several parents can each
+ * use their own TaskManager.
  *
- * NOTE: You may NOT disable interrupts or use spinlocks.
+ * The workers are shared by all the work submitted to a TaskManager, so
+ * a piece of work should not wait for the result of other work submitted
+ * to the same TaskManager, which might be queued behind it.
  */
 public class TaskManager {
-    
-    NachosThread parent;
-    private int numChild;
-    private int count;
-    private static Queue<Runnable> requestQueue;
-    private Lock mutex;
-    private Condition request;
-    
+
+    /** Default number of Runnables that may wait for a worker, per worker. */
+    private static final int QUEUE_PER_WORKER = 2;
+
+    /** The thread that may call processRequests(). */
+    private final NachosThread parent;
+
+    /** The workers, and the queue of work waiting for them. */
+    private final ThreadPool pool;
+
+    /** Protects the state of the requests and of every Future. */
+    private final Lock mutex;
+
+    /** Signalled when a request is posted or the last Task finishes. */
+    private final Condition request;
+
+    /**
+     * Signalled when the work of any Future is finished or cancelled.
+     * Each waiter checks the state of its own Future.
+     */
+    private final Condition finished;
+
+    /** Requests waiting to be run by the parent thread. */
+    private final ArrayQueue<Runnable> requestQueue;
+
+    /** Number of Tasks executed whose completion has not yet been posted. */
+    private int numOutstanding;
+
     /**
      * Initialize a new TaskManager object, and register the
      * calling thread as the "parent" thread.  The parent thread is
@@ -40,16 +72,60 @@ public class TaskManager {
      * calling its execute() method) for calling processRequests() to
      * track the completion of "child" threads and process onCompletion()
      * or onCancellation() requests on their behalf.
+     *
+     * @param numChild  The number of tasks the parent expects to have
+     * running at once.  This many workers are used, up to the maximum
+     * size of the kernel thread pool (-tx).
      */
     public TaskManager(int numChild) {
-	this.parent = NachosThread.currentThread();
-	this.numChild = numChild;
-	this.count = 0;
-	TaskManager.requestQueue = new FIFOQueue<Runnable>();
-	this.mutex = new Lock("mutex");
-	this.request = new Condition("request",mutex);
+	this(Math.max(1, Math.min(numChild, Nachos.options.POOL_MAX_THREADS)),
+		QUEUE_PER_WORKER * Math.max(1, Math.min(numChild, Nachos.options.POOL_MAX_THREADS)));
+    }
+
+    /**
+     * Initialize a new TaskManager object with a given number of workers
+     * and queue capacity, and register the calling thread as the "parent"
+     * thread.
+     *
+     * @param numWorkers  The maximum number of worker threads.
+     * @param queueCapacity  The maximum number of pieces of work waiting
+     * for a worker, beyond which submitting work waits.
+     */
+    public TaskManager(int numWorkers, int queueCapacity) {
+	Debug.ASSERT(numWorkers > 0 && queueCapacity > 0,
+		"TaskManager needs at least one worker and a queue capacity of at least one");
+	parent = NachosThread.currentThread();
+	pool = new ThreadPool("TaskManager " + parent.name, 0, numWorkers,
+		queueCapacity);
+	mutex = new Lock("TaskManager mutex");
+	request = new Condition("TaskManager request", mutex);
+	finished = new Condition("TaskManager finished", mutex);
+	requestQueue = new ArrayQueue<Runnable>();
     }
-    
+
+    /**
+     * Submit a Callable to be run by one of the workers, first waiting
+     * for space in the queue if it is full.  This method must be called
+     * from a thread context.
+     *
+     * @param callable  The Callable to run.
+     * @return a Future through which the result can be obtained.
+     * @throws IllegalStateException  if this TaskManager has been shut down.
+     */
+    public <T> Future<T> submit(Callable<T> callable) {
+	Future<T> future = new Future<T>(callable, null);
+	pool.execute(future.job);
+	return future;
+    }
+
+    /**
+     * Stop accepting work.  Work already submitted is still run, after
+     * which the workers finish.
+     */
+    public void shutdown() {
+	pool.shutdown();
+    }
+
     /**
      * Posts a request for a Runnable to be executed by the parent thread.
      * Such a Runnable might consist of a call to <CODE>onCompletion()</CODE>
@@ -57,13 +133,16 @@ public class TaskManager {
      * being performed by a child thread, or it might consist of
      * completely unrelated work (such as responding to user interface
      * events) for the parent thread to perform.
-     * 
+     *
      * NOTE: This method should be safely callable by any thread.
      *
      * @param runnable  Runnable to be executed by the parent thread.
      */
-    public static void postRequest(Runnable runnable) {
+    public void postRequest(Runnable runnable) {
+	mutex.acquire();
 	requestQueue.offer(runnable);
+	request.signal();
+	mutex.release();
     }
 
     /**
@@ -80,20 +159,215 @@ public class TaskManager {
      * registered as the parent thread for this TaskManager.
      */
     public void processRequests() throws IllegalStateException {
-	mutex.acquire();
-	if (NachosThread.currentThread() != this.parent)
+	if (NachosThread.currentThread() != parent)
 	    throw new IllegalStateException();
-	do {
-	    if (requestQueue.isEmpty())	// conditional wait till queue is empty
+	mutex.acquire();
+	while (!requestQueue.isEmpty() || numOutstanding > 0) {
+	    Runnable work = requestQueue.poll();
+	    if (work == null) {
 		request.await();
-	    while (!requestQueue.isEmpty()) {
-		Runnable work = requestQueue.poll();
-		work.run();		// Run all the queued tasks
+		continue;
 	    }
-	} while (count < numChild);	// Repeat the process until all the child threads are done
+	    // Run the request without the mutex, so that it may itself
+	    // post requests, execute tasks or cancel them.
+	    mutex.release();
+	    work.run();
+	    mutex.acquire();
+	}
 	mutex.release();
     }
 
+    /**
+     * A handle on work submitted to a TaskManager, through which its
+     * result can be waited for, or the work cancelled.
+     */
+    public class Future<T> {
+
+	/** The work has not yet been taken by a worker. */
+	private static final int PENDING = 0;
+
+	/** The work is being run by a worker. */
+	private static final int RUNNING = 1;
+
+	/** The work has finished. */
+	private static final int DONE = 2;
+
+	/** The work was cancelled before it finished. */
+	private static final int CANCELLED = 3;
+
+	/** The work to do. */
+	private final Callable<T> callable;
+
+	/** Run when the work is finished or cancelled, or null. */
+	private final Runnable onFinish;
+
+	/** What the worker runs. */
+	private final Runnable job;
+
+	/** PENDING, RUNNING, DONE or CANCELLED. */
+	private int state;
+
+	/** The result of the Callable. */
+	private T result;
+
+	/** The exception thrown by the Callable, or null. */
+	private Exception exception;
+
+	/**
+	 * Initialize a Future for a piece of work.
+	 *
+	 * @param callable  The work to do.
+	 * @param onFinish  Run, exactly once, by whichever thread finds the
+	 * work finished or cancelled for good, or null.
+	 */
+	private Future(Callable<T> callable, Runnable onFinish) {
+	    this.callable = callable;
+	    this.onFinish = onFinish;
+	    job = new Runnable() {
+		public void run() {
+		    runJob();
+		}
+	    };
+	}
+
+	/**
+	 * Run the work in a worker, unless it has been cancelled.
+	 */
+	private void runJob() {
+	    mutex.acquire();
+	    boolean cancelled = (state == CANCELLED);
+	    if (!cancelled)
+		state = RUNNING;
+	    mutex.release();
+	    if (!cancelled) {
+		T value = null;
+		Exception thrown = null;
+		try {
+		    value = callable.call();
+		} catch (Exception e) {
+		    thrown = e;
+		}
+		mutex.acquire();
+		if (state == RUNNING) {
+		    state = DONE;
+		    result = value;
+		    exception = thrown;
+		    finished.broadcast();
+		}
+		mutex.release();
+	    }
+	    if (onFinish != null)
+		onFinish.run();
+	}
+
+	/**
+	 * Wait until the work is finished, and get its result.
+	 *
+	 * @return the result of the work.
+	 * @throws ExecutionException  if the work threw an exception.
+	 * @throws CancellationException  if the work was cancelled.
+	 */
+	public T get() throws ExecutionException {
+	    mutex.acquire();
+	    while (state == PENDING || state == RUNNING)
+		finished.await();
+	    return report();
+	}
+
+	/**
+	 * Wait for at most a given time until the work is finished, and get
+	 * its result.  Timeouts are handled by the CPU timers, so without
+	 * them (-ps) this waits until the work is finished.
+	 *
+	 * @param timeoutTicks  The maximum number of ticks to wait.
+	 * @return the result of the work.
+	 * @throws ExecutionException  if the work threw an exception.
+	 * @throws CancellationException  if the work was cancelled.
+	 * @throws TimeoutException  if the time ran out first.
+	 */
+	public T get(int timeoutTicks) throws ExecutionException, TimeoutException {
+	    int deadline = Simulation.currentTime() + timeoutTicks;
+	    mutex.acquire();
+	    // Other Futures' work finishing also wakes us, so wait again
+	    // for whatever time is left.
+	    while ((state == PENDING || state == RUNNING)
+		    && finished.await(deadline - Simulation.currentTime()))
+		continue;
+	    if (state == PENDING || state == RUNNING) {
+		mutex.release();
+		throw new TimeoutException();
+	    }
+	    return report();
+	}
+
+	/**
+	 * Release the mutex and report the outcome of finished work.
+	 *
+	 * @return the result of the work.
+	 * @throws ExecutionException  if the work threw an exception.
+	 * @throws CancellationException  if the work was cancelled.
+	 */
+	private T report() throws ExecutionException {
+	    int s = state;
+	    mutex.release();
+	    if (s == CANCELLED)
+		throw new CancellationException();
+	    if (exception != null)
+		throw new ExecutionException(exception);
+	    return result;
+	}
+
+	/**
+	 * Cancel the work, if it has not already finished.  Work that has
+	 * not yet started will not be run.  Work that is running is left to
+	 * run, but should call isCancelled() periodically so that it can
+	 * stop early, and its result is discarded.
+	 *
+	 * @return true if the work was cancelled, false if it had already
+	 * finished or been cancelled.
+	 */
+	public boolean cancel() {
+	    mutex.acquire();
+	    if (state == DONE || state == CANCELLED) {
+		mutex.release();
+		return false;
+	    }
+	    boolean pending = (state == PENDING);
+	    state = CANCELLED;
+	    finished.broadcast();
+	    mutex.release();
+	    // If a worker has already taken the work, it will see that it
+	    // has been cancelled, and run onFinish itself.
+	    if (pending && pool.remove(job) && onFinish != null)
+		onFinish.run();
+	    return true;
+	}
+
+	/**
+	 * Determine whether the work has finished or been cancelled.
+	 *
+	 * @return true if get() would not wait.
+	 */
+	public boolean isDone() {
+	    mutex.acquire();
+	    boolean done = (state == DONE || state == CANCELLED);
+	    mutex.release();
+	    return done;
+	}
+
+	/**
+	 * Determine whether the work has been cancelled.
+	 *
+	 * @return true if the work was cancelled before it finished.
+	 */
+	public boolean isCancelled() {
+	    mutex.acquire();
+	    boolean cancelled = (state == CANCELLED);
+	    mutex.release();
+	    return cancelled;
+	}
+    }
+
     /**
      * Inner class representing a task to be executed in the background
      * by a child thread.  This class must be subclassed in order to
@@ -101,51 +375,60 @@ public class TaskManager {
      * onCompletion() and onCancellation() methods.
      */
     public class Task {
-	
-	public String taskStatus = "INITIALIZED";	
+
+	/** The handle on the background work, once execute() has been called. */
+	private Future<Void> future;
+
+	/** Was the task cancelled before execute() was called? */
+	private boolean cancelledEarly;
+
 	/**
-	 * Cause the current task to be executed by a new child thread.
-	 * In more detail, a new child thread is created, the child
-	 * thread runs the doInBackground() method and upon termination
+	 * Cause the current task to be executed by a child thread.
+	 * In more detail, the task is handed to one of the TaskManager's
+	 * workers, which runs the doInBackground() method and upon termination
 	 * of that method a request is posted for the parent thread to
 	 * run either onCancellation() or onCompletion(), respectively,
 	 * depending on	whether or not the task was cancelled.
+	 * If the queue of work is full, this waits until there is room.
 	 */
 	public void execute() {
-	    
-	    this.taskStatus = "InProgress";		// represents the status of child thread
-	    
-	    Runnable childTask = new Runnable() {	// Runnable for child
-		public void run() {
+	    Future<Void> f = new Future<Void>(new Callable<Void>() {
+		public Void call() {
 		    doInBackground();
-		    Runnable onComplete = new Runnable() {
-			public void run() {
-			    onCompletion();
-			}
-		    };
-		    Runnable onCancel = new Runnable() {
-			public void run() {
-			    onCancellation();
-			}
-		    };
-		    if (isCancelled()) {	// check the result of child thread
-			postRequest(onCancel);	// post task in queue
-			mutex.acquire();
-			request.signal();	// signal the conditional lock to release once we have posted task in queue
-			mutex.release();
-		    } else {
-			postRequest(onComplete);// post task in queue
-			mutex.acquire();
-			request.signal();	// signal the conditional lock to release once we have posted task in queue
-			mutex.release();
-		    }
-		    Nachos.scheduler.finishThread();
+		    return null;
 		}
-	    };
+	    }, new Runnable() {
+		public void run() {
+		    finish();
+		}
+	    });
 	    mutex.acquire();
-	    NachosThread thread = new NachosThread ("Child Thread " + count, childTask );
-	    Nachos.scheduler.readyToRun(thread);	// execute the child
-	    count += 1;					// count tells the number of child threads in completed/cancelled state
+	    Debug.ASSERT(future == null, "A Task may only be executed once");
+	    future = f;
+	    numOutstanding++;
+	    if (cancelledEarly)
+		f.state = Future.CANCELLED;
+	    mutex.release();
+	    pool.execute(f.job);
+	}
+
+	/**
+	 * Post the request for onCompletion() or onCancellation(), once the
+	 * background work has finished or been cancelled.
+	 */
+	private void finish() {
+	    final boolean cancelled = isCancelled();
+	    mutex.acquire();
+	    requestQueue.offer(new Runnable() {
+		public void run() {
+		    if (cancelled)
+			onCancellation();
+		    else
+			onCompletion();
+		}
+	    });
+	    numOutstanding--;
+	    request.signal();
 	    mutex.release();
 	}
 
@@ -160,12 +443,16 @@ public class TaskManager {
 	 * otherwise false.
 	 */
 	public boolean cancel() {
-	    if (this.taskStatus != "COMPLETED" && this.taskStatus != "CANCELLED") {
-		this.taskStatus = "CANCELLED";
-		return true;
-	    } else {
-		return false;
+	    mutex.acquire();
+	    Future<Void> f = future;
+	    if (f == null) {
+		boolean cancelled = !cancelledEarly;
+		cancelledEarly = true;
+		mutex.release();
+		return cancelled;
 	    }
+	    mutex.release();
+	    return f.cancel();
 	}
 
 	/**
@@ -175,10 +462,11 @@ public class TaskManager {
 	 * @return true if this Task has been cancelled, false otherwise.
 	 */
 	public boolean isCancelled() {
-	    if (this.taskStatus == "CANCELLED")
-		return true;
-	    else
-		return false;
+	    mutex.acquire();
+	    Future<Void> f = future;
+	    boolean cancelled = (f == null ? cancelledEarly : f.state == Future.CANCELLED);
+	    mutex.release();
+	    return cancelled;
 	}
 
 	/**
@@ -197,7 +485,7 @@ public class TaskManager {
 	/**
 	 * Method to be executed by the main thread upon termination of
 	 * of doInBackground().  Will not be executed if the task was
-	 * cancelled.  This method should not be called directly; 
+	 * cancelled.  This method should not be called directly;
 	 * rather, it will be called indirectly as a result of a call to
 	 * the execute() method.
 	 */
@@ -211,7 +499,7 @@ public class TaskManager {
 	 */
 	protected void onCancellation() {
 	}
-	
+
 	/**
 	 * This method can be called to simulate "doing work".
 	 * Each time it is called it gives control to the NACHOS
@@ -11,7 +11,7 @@ public class TaskManagerDemo extends TaskManager{
 
     public static void demo() {
 	int numBackground = 5;
-	TaskManager mgr = new TaskManager(numBackground);
+	final TaskManager mgr = new TaskManager(numBackground);
 	for(int i = 0; i < numBackground; i++) {
 	    final int tn = i;
 	    Task task = mgr.new Task() {
@@ -28,7 +28,7 @@ public class TaskManagerDemo extends TaskManager{
 					Debug.println('1', "Thread " + NachosThread.currentThread().name + " is finishing task " + tn);
 				    }
 				};
-				postRequest(postReqToParent);
+				mgr.postRequest(postReqToParent);
 			    }
 			    if (tn == 3) {
 				cancel();
@@ -54,6 +54,7 @@ public class TaskManagerDemo extends TaskManager{
 	    task.execute();
 	}
 	mgr.processRequests();
+	mgr.shutdown();
 	Debug.println('1', "Demo terminating");
     }
 }
\ No newline at end of file
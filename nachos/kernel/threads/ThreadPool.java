@@ -0,0 +1,403 @@
+package nachos.kernel.threads;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.machine.Simulation;
+import nachos.util.ArrayQueue;
+import nachos.util.BoundedArrayQueue;
+
+/**
+ * A pool of kernel worker threads that run short pieces of kernel work,
+ * submitted as Runnables, so that the cost of creating and destroying a
+ * NachosThread (a host thread and its stack) is not paid for each one.
+ *
+ * Work is queued in FIFO order.  When work is submitted and no worker is
+ * parked waiting for it, a new worker is created, up to the maximum size of
+ * the pool; beyond that, the work waits in the queue until a worker becomes
+ * free.  A worker that finds the queue empty parks on a condition variable
+ * if the pool has no more than its minimum number of workers, and otherwise
+ * finishes, so that a burst of work does not leave surplus threads behind.
+ * A pool whose minimum and maximum sizes are equal keeps a fixed set of
+ * workers once they have been created.
+ *
+ * The queue may be bounded, in which case a thread that submits work while
+ * it is full waits until a worker has taken some out, so that a producer
+ * cannot run arbitrarily far ahead of the workers.  Work that is still in
+ * the queue can be withdrawn with remove().  After shutdown(), no more work
+ * is accepted, and the workers finish once the queue is empty.
+ *
+ * Since the workers are shared, a Runnable must not call finishThread(),
+ * and should not block waiting for other work submitted to the same pool,
+ * which might be queued behind it.
+ *
+ * The pool keeps counts of the work it has done and of the time its workers
+ * have spent busy, from which its utilization is computed.  If scheduler
+ * metrics are enabled with -sm, these are printed for every pool when the
+ * simulation stops.
+ */
+public class ThreadPool {
+
+    /**
+     * Every pool created, in order of creation, if scheduler metrics are
+     * enabled, so that their metrics can be printed by a single shutdown
+     * hook; otherwise null.
+     */
+    private static ArrayList<ThreadPool> allPools;
+
+    /** Printable name useful for debugging. */
+    public final String name;
+
+    /** Number of workers kept parked when there is no work. */
+    private final int minThreads;
+
+    /** Maximum number of workers. */
+    private final int maxThreads;
+
+    /** Protects the state of the pool. */
+    private final Lock mutex;
+
+    /** Signalled to wake a parked worker when work is submitted. */
+    private final Condition workAvailable;
+
+    /** Signalled when a worker takes work out of a full queue. */
+    private final Condition spaceAvailable;
+
+    /** Maximum length of the work queue, or zero if it is unbounded. */
+    private final int queueCapacity;
+
+    /** Has the pool been shut down? */
+    private boolean shutdown;
+
+    /** Work waiting for a worker. */
+    private final ArrayQueue<Work> workQueue;
+
+    /** Number of workers, busy or parked. */
+    private int numWorkers;
+
+    /** Number of workers that are parked and have not yet been signalled. */
+    private int numParked;
+
+    /** Number of workers currently running a Runnable. */
+    private int numBusy;
+
+    /** Largest number of workers there have ever been at once. */
+    private int peakWorkers;
+
+    /** Number of workers created. */
+    private int numCreated;
+
+    /** Number of Runnables submitted. */
+    private long numSubmitted;
+
+    /** Number of Runnables that have been run to completion. */
+    private long numCompleted;
+
+    /** Total time Runnables have spent in the queue before being run. */
+    private long totalQueueTicks;
+
+    /** Total time workers have spent running Runnables. */
+    private long totalBusyTicks;
+
+    /** Total lifetime of the workers that have finished. */
+    private long finishedWorkerTicks;
+
+    /** Sum of the start times of the workers that are still alive. */
+    private long liveWorkerStartTicks;
+
+    /**
+     * Initialize a thread pool with an unbounded queue.  Workers are
+     * created on demand.
+     *
+     * @param debugName  An arbitrary name, useful for debugging.
+     * @param minThreads  The number of workers kept parked when there is
+     * no work.
+     * @param maxThreads  The maximum number of workers.
+     */
+    public ThreadPool(String debugName, int minThreads, int maxThreads) {
+	this(debugName, minThreads, maxThreads, 0);
+    }
+
+    /**
+     * Initialize a thread pool.  Workers are created on demand.
+     *
+     * @param debugName  An arbitrary name, useful for debugging.
+     * @param minThreads  The number of workers kept parked when there is
+     * no work.
+     * @param maxThreads  The maximum number of workers.
+     * @param queueCapacity  The maximum number of Runnables waiting for a
+     * worker, or zero for no limit.
+     */
+    public ThreadPool(String debugName, int minThreads, int maxThreads, int queueCapacity) {
+	Debug.ASSERT(minThreads >= 0 && maxThreads > 0 && minThreads <= maxThreads,
+		"Thread pool needs 0 <= minThreads <= maxThreads and maxThreads > 0");
+	Debug.ASSERT(queueCapacity >= 0, "Thread pool queue capacity must not be negative");
+	name = debugName;
+	this.minThreads = minThreads;
+	this.maxThreads = maxThreads;
+	this.queueCapacity = queueCapacity;
+	mutex = new Lock(name + " mutex");
+	workAvailable = new Condition(name + " work available", mutex);
+	spaceAvailable = new Condition(name + " space available", mutex);
+	workQueue = (queueCapacity > 0 ? new BoundedArrayQueue<Work>(queueCapacity)
+		     : new ArrayQueue<Work>());
+
+	if(Nachos.options.SCHED_METRICS)
+	    register(this);
+    }
+
+    /**
+     * Add a pool to the pools whose metrics are printed when the simulation
+     * stops.  The first call installs the shutdown hook that prints them:
+     * Simulation.stop() exits the JVM, so the metrics are reported from a
+     * shutdown hook, as the scheduler does.
+     *
+     * @param pool  The pool.
+     */
+    private static synchronized void register(ThreadPool pool) {
+	if(allPools == null) {
+	    allPools = new ArrayList<ThreadPool>();
+	    Runtime.getRuntime().addShutdownHook(new Thread() {
+		public void run() {
+		    printAllStatistics();
+		}
+	    });
+	}
+	allPools.add(pool);
+    }
+
+    /**
+     * Print the metrics of every pool, in order of creation.
+     */
+    private static synchronized void printAllStatistics() {
+	for(ThreadPool pool : allPools)
+	    pool.printStatistics();
+    }
+
+    /**
+     * Submit a Runnable to be run by one of the workers, first waiting for
+     * space in the queue if it is bounded and full.  This method must
+     * be called from a thread context.
+     *
+     * @param runnable  The Runnable to run.
+     * @throws IllegalStateException  if the pool has been shut down.
+     */
+    public void execute(Runnable runnable) {
+	mutex.acquire();
+	while(!shutdown && queueCapacity > 0 && workQueue.size() >= queueCapacity)
+	    spaceAvailable.await();
+	if(shutdown) {
+	    mutex.release();
+	    throw new IllegalStateException("Thread pool " + name + " has been shut down");
+	}
+	workQueue.offer(new Work(runnable, Simulation.currentTime()));
+	numSubmitted++;
+	if(numParked > 0) {
+	    numParked--;
+	    workAvailable.signal();
+	} else if(numWorkers < maxThreads) {
+	    startWorker();
+	}
+	mutex.release();
+    }
+
+    /**
+     * Create a new worker and make it ready to run.
+     * The caller must hold the mutex.
+     */
+    private void startWorker() {
+	numWorkers++;
+	numCreated++;
+	if(numWorkers > peakWorkers)
+	    peakWorkers = numWorkers;
+	final int startTime = Simulation.currentTime();
+	liveWorkerStartTicks += startTime;
+	Debug.println('t', "Starting " + name + " worker " + numCreated);
+	Nachos.scheduler.readyToRun(new extendedNachosThread(name + " worker " + numCreated,
+		new Runnable() {
+		    public void run() {
+			work(startTime);
+		    }
+		}));
+    }
+
+    /**
+     * Body of each worker: repeatedly take work from the queue and run it,
+     * parking while the queue is empty, until the worker is surplus.
+     *
+     * @param startTime  The time at which the worker was created.
+     */
+    private void work(int startTime) {
+	mutex.acquire();
+	while(true) {
+	    Work work = workQueue.poll();
+	    if(work == null) {
+		if(numWorkers > minThreads || shutdown)
+		    break;
+		numParked++;
+		workAvailable.await();
+		continue;
+	    }
+	    if(queueCapacity > 0)
+		spaceAvailable.signal();
+	    int start = Simulation.currentTime();
+	    totalQueueTicks += start - work.submitTime;
+	    numBusy++;
+	    mutex.release();
+
+	    work.runnable.run();
+
+	    mutex.acquire();
+	    numBusy--;
+	    numCompleted++;
+	    totalBusyTicks += Simulation.currentTime() - start;
+	}
+	numWorkers--;
+	finishedWorkerTicks += Simulation.currentTime() - startTime;
+	liveWorkerStartTicks -= startTime;
+	mutex.release();
+	Nachos.scheduler.finishThread();
+    }
+
+    /**
+     * Withdraw a Runnable that is still waiting in the queue.
+     *
+     * @param runnable  The Runnable, as it was submitted.
+     * @return true if it was removed, false if a worker has already taken
+     * it, or it was never submitted.
+     */
+    public boolean remove(Runnable runnable) {
+	mutex.acquire();
+	boolean removed = false;
+	Iterator<Work> queued = workQueue.iterator();
+	while(queued.hasNext()) {
+	    if(queued.next().runnable == runnable) {
+		queued.remove();
+		removed = true;
+		break;
+	    }
+	}
+	if(removed && queueCapacity > 0)
+	    spaceAvailable.signal();
+	mutex.release();
+	return removed;
+    }
+
+    /**
+     * Stop accepting work.  Work already in the queue is still run, after
+     * which the workers finish.  Threads waiting for space in the queue
+     * give up with IllegalStateException.
+     */
+    public void shutdown() {
+	mutex.acquire();
+	shutdown = true;
+	numParked = 0;
+	workAvailable.broadcast();
+	spaceAvailable.broadcast();
+	mutex.release();
+    }
+
+    /**
+     * Get the maximum number of workers.
+     *
+     * @return the maximum number of workers in the pool.
+     */
+    public int getMaxThreads() {
+	return maxThreads;
+    }
+
+    /**
+     * Get the number of workers kept parked when there is no work.
+     *
+     * @return the minimum number of workers retained by the pool.
+     */
+    public int getMinThreads() {
+	return minThreads;
+    }
+
+    /**
+     * Get the current number of workers.
+     *
+     * @return the number of workers, busy or parked.
+     */
+    public int getPoolSize() {
+	return numWorkers;
+    }
+
+    /**
+     * Get the number of workers that are running a Runnable.
+     *
+     * @return the number of busy workers.
+     */
+    public int getActiveCount() {
+	return numBusy;
+    }
+
+    /**
+     * Get the number of Runnables waiting for a worker.
+     *
+     * @return the length of the work queue.
+     */
+    public int getQueueSize() {
+	mutex.acquire();
+	int size = workQueue.size();
+	mutex.release();
+	return size;
+    }
+
+    /**
+     * Get the number of Runnables that have been run to completion.
+     *
+     * @return the number of completed Runnables.
+     */
+    public long getCompletedCount() {
+	return numCompleted;
+    }
+
+    /**
+     * Get the utilization of the pool: the fraction of the lifetime of its
+     * workers, up to the current time, that was spent running Runnables.
+     *
+     * @return the utilization, in percent.
+     */
+    public int getUtilization() {
+	long lifetime = finishedWorkerTicks
+		+ (long)numWorkers * Simulation.currentTime() - liveWorkerStartTicks;
+	return (lifetime > 0 ? (int)(100 * totalBusyTicks / lifetime) : 0);
+    }
+
+    /**
+     * Print the pool metrics: the work submitted and completed, its average
+     * time in the queue, the number of workers created and their peak,
+     * and the utilization of the workers.
+     */
+    public void printStatistics() {
+	System.out.println("Thread pool " + name + " (" + minThreads + ".."
+		+ maxThreads + " workers):");
+	System.out.println("  submitted " + numSubmitted + ", completed " + numCompleted
+		+ ", average queue wait "
+		+ (numCompleted > 0 ? totalQueueTicks / numCompleted : 0) + " ticks");
+	System.out.println("  workers created " + numCreated + ", current " + numWorkers
+		+ ", peak " + peakWorkers + ", busy " + numBusy
+		+ ", utilization " + getUtilization() + "%");
+    }
+
+    /**
+     * A Runnable waiting in the queue, with the time it was submitted.
+     */
+    private static class Work {
+
+	/** The Runnable to run. */
+	final Runnable runnable;
+
+	/** The time at which it was submitted. */
+	final int submitTime;
+
+	Work(Runnable runnable, int submitTime) {
+	    this.runnable = runnable;
+	    this.submitTime = submitTime;
+	}
+    }
+}
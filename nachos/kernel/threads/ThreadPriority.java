@@ -0,0 +1,51 @@
+package nachos.kernel.threads;
+
+import nachos.machine.NachosThread;
+import nachos.util.HeapQueue;
+
+/**
+ * Priority functions for queues of waiting threads.  A Semaphore,
+ * Condition or Lock constructed with one of these wakes its waiters in
+ * order of priority, rather than in order of arrival, so that an urgent
+ * thread does not queue behind batch threads for a shared lock.  Threads
+ * of equal priority are still woken in order of arrival.
+ *
+ * A thread's priority is taken when it starts to wait, and is not changed
+ * by anything that happens to the thread while it is waiting.
+ */
+public final class ThreadPriority {
+
+    /**
+     * Order by the run queue level at which each thread was last made
+     * ready: under the multilevel feedback policy, interactive threads
+     * at the top levels come before CPU-bound threads at the bottom.
+     * Under the other policies every thread is at level 0, so the order
+     * is the order of arrival.
+     */
+    public static final HeapQueue.Priority<NachosThread> MLFQ_LEVEL =
+	new HeapQueue.Priority<NachosThread>() {
+	    public long priorityOf(NachosThread thread) {
+		if(!(thread instanceof extendedNachosThread))
+		    return Long.MAX_VALUE;
+		return ((extendedNachosThread)thread).level;
+	    }
+	};
+
+    /**
+     * Order real-time threads by the deadlines of their current periods,
+     * earliest first, ahead of all other threads, which follow in order
+     * of arrival.
+     */
+    public static final HeapQueue.Priority<NachosThread> DEADLINE =
+	new HeapQueue.Priority<NachosThread>() {
+	    public long priorityOf(NachosThread thread) {
+		if(!(thread instanceof extendedNachosThread)
+			|| ((extendedNachosThread)thread).rtPeriod == 0)
+		    return Long.MAX_VALUE;
+		return ((extendedNachosThread)thread).rtDeadline;
+	    }
+	};
+
+    /** This class only holds constants. */
+    private ThreadPriority() { }
+}
@@ -2,15 +2,163 @@ package nachos.kernel.threads;
 
 import nachos.machine.NachosThread;
 import nachos.machine.Timer;
-import nachos.kernel.threads.Semaphore;
+import nachos.util.Queue;
 
 public class extendedNachosThread extends NachosThread {
 
-    public Semaphore semSleep;
-    public int waitTicks;
+    /** Simulation time at which a sleeping thread is to be woken. */
+    public int wakeTime;
+
+    // Timed waits (Scheduler.sleepThread with a timeout).  The thread is
+    // both in a wait queue, protected by a spin lock, and in a sleep queue;
+    // whichever of the waker and the timer takes it off the wait queue first,
+    // with the spin lock held, is the one that makes it ready.
+
+    /**
+     * Sleep queue holding the timeout of the timed wait in which the thread
+     * is blocked, or null if there is none.  Protected by waitLock.
+     */
+    public SleepQueue timeoutQueue;
+
+    /** Spin lock protecting the wait queue of the thread's timed wait. */
+    public SpinLock waitLock;
+
+    /** Queue in which the thread is blocked in a timed wait. */
+    public Queue<? extends NachosThread> waitQueue;
+
+    /** Number of timed waits so far, to tell a stale timeout from a current one. */
+    public int numTimedWaits;
+
+    /** Did the thread's most recent timed wait time out? */
+    public boolean timedOut;
+
+    /**
+     * Number of ticks the thread may run before being preempted, as given
+     * by the scheduling policy when the thread was last dispatched.
+     */
     public int quantum;
+
+    /** Length of the thread's most recent CPU burst, in ticks. */
     public int currCPUBurst;
+
+    /** Exponentially weighted average of the thread's CPU bursts. */
     public int avgCPUBurst;
+
+    /** Local time of the CPU the thread is running on, when its current burst began. */
+    public int burstStart;
+
+    /** Default number of tickets held by a thread. */
+    public static final int DEFAULT_TICKETS = 100;
+
+    /**
+     * Number of tickets held by the thread, which determines its share of
+     * the CPU under the stride and lottery policies.  This should not be
+     * changed while the thread is on a run queue.
+     */
+    public int tickets;
+
+    /** Virtual time used to order the thread under the stride policy. */
+    public long pass;
+
+    /**
+     * Time at which the thread joined the back of its level under the
+     * multilevel feedback policy, which ages the threads of each level
+     * in this order.
+     */
+    public int levelTime;
+
+    /** Run queue in which the thread is waiting, or null if it is not in one. */
+    public RunQueue runQueue;
+
+    /** Gang with which the thread is co-scheduled, or null if it has none. */
+    public Gang gang;
+
+    /** Affinity mask that allows a thread to run on any CPU. */
+    public static final long ALL_CPUS = -1L;
+
+    /**
+     * Bit mask of the CPUs on which the thread may run: bit i stands for the
+     * CPU with unit number i.  This is set by Scheduler.setAffinity.
+     */
+    public long affinity;
+
+    /** Unit number of the CPU the thread last ran on, or -1 if it has not run. */
+    public int lastCPU;
+
+    /** Fork-join pool worker that the thread is, or null if it is not one. */
+    public ForkJoinPool.Worker forkJoinWorker;
+
+    /** Largest number of reader-writer locks a thread may hold for reading at once. */
+    public static final int MAX_READ_LOCKS = 8;
+
+    /**
+     * Reader-writer locks that the thread holds for reading, in the first
+     * numReadLocks entries.  Maintained by ReadWriteLock, under the spin
+     * lock of the reader-writer lock concerned.
+     */
+    public final ReadWriteLock[] readLocks = new ReadWriteLock[MAX_READ_LOCKS];
+
+    /** Number of read holds of each of the locks in readLocks. */
+    public final int[] readHolds = new int[MAX_READ_LOCKS];
+
+    /** Number of reader-writer locks that the thread holds for reading. */
+    public int numReadLocks;
+
+    /** Is the thread waiting for a reader-writer lock for writing, rather than for reading? */
+    public boolean waitingToWrite;
+
+    // Real-time (EDF) scheduling attributes, all times in simulation ticks.
+    // These are set by Scheduler.setRealTime, which performs admission control.
+
+    /** Period of a real-time thread, or zero if the thread is not real-time. */
+    public int rtPeriod;
+
+    /** CPU time the thread is entitled to in each period. */
+    public int rtBudget;
+
+    /** Absolute deadline of the thread's current period. */
+    public int rtDeadline;
+
+    /** Budget remaining in the current period. */
+    public int rtBudgetLeft;
+
+    /** Local time of the CPU the thread is running on, up to which its budget has been charged. */
+    public int rtChargedUntil;
+
+    /** Unit number of the CPU against whose capacity the thread was admitted. */
+    public int rtCPU;
+
+    /** Number of times the thread has used up its budget before its deadline. */
+    public int numBudgetOverruns;
+
+    /** Number of times the thread has been found running past its deadline. */
+    public int numDeadlineMisses;
+
+    // Scheduler metrics, all times in simulation ticks.
+
+    /** Run queue level at which the thread was last made ready. */
+    public int level;
+
+    /** Time at which the thread was last made ready. */
+    public int readyTime;
+
+    /** Time at which the thread was last dispatched onto a CPU. */
+    public int dispatchTime;
+
+    /** Total time spent waiting in run queues. */
+    public long totalWaitTicks;
+
+    /** Total time spent running on a CPU. */
+    public long totalRunTicks;
+
+    /** Number of times the thread has been dispatched onto a CPU. */
+    public int numDispatches;
+
+    /** Number of times the thread has been preempted at the end of its quantum. */
+    public int numPreemptions;
+
+    /** Number of times the thread has been dispatched on a CPU other than the one it last ran on. */
+    public int numMigrations;
     
     /**
      * Initialize a new user thread.
@@ -23,9 +171,30 @@ public class extendedNachosThread extends NachosThread {
      */
     public extendedNachosThread(String name, Runnable runObj) {
 	super(name, runObj);
-	semSleep = new Semaphore("semaphore for thread sleep",0);
 	quantum = Timer.DefaultInterval;
 	currCPUBurst = 0;
 	avgCPUBurst = 0;
+	tickets = DEFAULT_TICKETS;
+	affinity = ALL_CPUS;
+	lastCPU = -1;
+    }
+
+    /**
+     * Determine whether this thread is in the real-time scheduling class.
+     *
+     * @return true if the thread has been admitted as a real-time thread.
+     */
+    public boolean isRealTime() {
+	return rtPeriod > 0;
+    }
+
+    /**
+     * Determine whether this thread's affinity mask allows it to run on a CPU.
+     *
+     * @param unit  The unit number of the CPU.
+     * @return true if the thread may run on that CPU.
+     */
+    public boolean mayRunOn(int unit) {
+	return (affinity & (1L << unit)) != 0;
     }
 }
@@ -0,0 +1,237 @@
+package nachos.kernel.threads.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.CyclicBarrier;
+import nachos.kernel.threads.CyclicBarrier.BrokenBarrierException;
+import nachos.kernel.threads.Semaphore;
+import nachos.kernel.threads.SpinLock;
+import nachos.kernel.threads.extendedNachosThread;
+import nachos.machine.CPU;
+import nachos.machine.Machine;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+
+/**
+ * This class is a phase-completion benchmark for cyclic barriers.  For
+ * several numbers of parties, one kernel thread per party repeatedly does
+ * a little work and waits at a shared barrier, and this is timed for three
+ * barriers: the semaphore-based barrier that CyclicBarrier used to be,
+ * in which every party goes through a mutex semaphore twice and then
+ * waits for everybody else to get through a second semaphore, the
+ * generation-based CyclicBarrier, and the generation-based barrier in
+ * combining-tree mode.  The results are the simulated time per phase and
+ * the release latency, which is the time from the last arrival at the
+ * barrier until the last party has left it, averaged over the phases.
+ *
+ * The differences show up best with several CPUs (-ncpu) and timers (-ps).
+ */
+public class BarrierBenchmark implements Runnable {
+
+    /** Number of phases measured for each barrier. */
+    private static final int PHASES = 20;
+
+    /** Work done by each party in each phase, in interrupt enable/disable pairs. */
+    private static final int WORK = 10;
+
+    /** Fan-in of the barrier in combining-tree mode. */
+    private static final int FAN_IN = 4;
+
+    /**
+     * Run the benchmark, printing one line of results for each barrier
+     * and number of parties.
+     */
+    public void run() {
+	int[] sizes = {4, 16, 64};
+	for(int parties : sizes) {
+	    measure("semaphores", parties, 0);
+	    measure("generation", parties, parties);
+	    measure("combining tree", parties, FAN_IN);
+	}
+	Nachos.scheduler.finishThread();
+    }
+
+    /**
+     * Measure and print the phase time and release latency of a barrier.
+     *
+     * @param label  Label for the line of results.
+     * @param parties  The number of parties.
+     * @param fanIn  The fan-in of the CyclicBarrier, or zero to measure
+     * the semaphore-based barrier.
+     */
+    private static void measure(String label, final int parties, int fanIn) {
+	final Timing timing = new Timing();
+	Runnable action = new Runnable() {
+	    public void run() {
+		timing.trip();
+	    }
+	};
+	final Barrier barrier = (fanIn == 0 ? new SemaphoreBarrier(parties, action)
+		: new GenerationBarrier(new CyclicBarrier(parties, action, fanIn)));
+	int start = Simulation.currentTime();
+	BenchmarkThreads.runAll("BarrierBenchmark", parties, new Runnable() {
+	    public void run() {
+		for(int k = 0; k < PHASES; k++) {
+		    BenchmarkThreads.work(WORK);
+		    barrier.await();
+		    timing.leave();
+		}
+	    }
+	});
+	timing.endPhase();
+	Debug.ASSERT(timing.phases == PHASES,
+		"BarrierBenchmark: wrong number of phases");
+	Debug.printf('+', "BarrierBenchmark: %s, %d parties, %d CPUs: %d ticks per phase, %d ticks release latency\n",
+		new Object[] {label, parties, Machine.NUM_CPUS,
+			      (Simulation.currentTime() - start) / PHASES,
+			      timing.totalLatency / PHASES});
+    }
+
+    /**
+     * Release times of the phases, recorded by the barrier action and by
+     * each party as it leaves the barrier.
+     */
+    private static class Timing {
+
+	/** Guards the times. */
+	private final SpinLock lock = new SpinLock("BarrierBenchmark timing");
+
+	/** Number of phases tripped. */
+	int phases;
+
+	/** Time at which the current phase tripped. */
+	int tripTime;
+
+	/** Latest time at which a party left the barrier in the current phase. */
+	int lastLeave;
+
+	/** Sum of the release latencies of the completed phases. */
+	long totalLatency;
+
+	/**
+	 * Record that the barrier has tripped, completing the previous phase.
+	 */
+	void trip() {
+	    endPhase();
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    lock.acquire();
+	    phases++;
+	    tripTime = lastLeave = Simulation.currentTime();
+	    lock.release();
+	    CPU.setLevel(oldLevel);
+	}
+
+	/**
+	 * Record that a party has left the barrier.
+	 */
+	void leave() {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    lock.acquire();
+	    lastLeave = Math.max(lastLeave, Simulation.currentTime());
+	    lock.release();
+	    CPU.setLevel(oldLevel);
+	}
+
+	/**
+	 * Add the latency of the current phase, if any, to the total.  A
+	 * phase ends when the next one trips, by which time every party
+	 * has left the barrier.
+	 */
+	void endPhase() {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    lock.acquire();
+	    if(phases > 0)
+		totalLatency += lastLeave - tripTime;
+	    tripTime = lastLeave = 0;
+	    lock.release();
+	    CPU.setLevel(oldLevel);
+	}
+    }
+
+    /**
+     * A barrier being measured.
+     */
+    private interface Barrier {
+
+	/** Wait for all the parties to arrive. */
+	void await();
+    }
+
+    /**
+     * A CyclicBarrier being measured.
+     */
+    private static class GenerationBarrier implements Barrier {
+
+	/** The barrier. */
+	private final CyclicBarrier barrier;
+
+	GenerationBarrier(CyclicBarrier barrier) {
+	    this.barrier = barrier;
+	}
+
+	public void await() {
+	    try {
+		barrier.await();
+	    } catch(BrokenBarrierException e) {
+		Debug.ASSERT(false, "BarrierBenchmark: barrier broken");
+	    }
+	}
+    }
+
+    /**
+     * The semaphore-based barrier that CyclicBarrier used to be, kept as
+     * the baseline.  The last party to arrive lets the others through a
+     * first semaphore, and nobody leaves until everybody is through it,
+     * so that a fast party cannot come round again and take another's turn.
+     */
+    private static class SemaphoreBarrier implements Barrier {
+
+	/** Number of parties. */
+	private final int parties;
+
+	/** Action run by the last party to arrive. */
+	private final Runnable barrierAction;
+
+	/** Protects the count. */
+	private final Semaphore mutex = new Semaphore("BarrierBenchmark mutex", 1);
+
+	/** Where the parties wait for the last to arrive. */
+	private final Semaphore semWait = new Semaphore("BarrierBenchmark wait", 0);
+
+	/** Where the parties wait for everybody to get through semWait. */
+	private final Semaphore semExit = new Semaphore("BarrierBenchmark exit", 0);
+
+	/** Number of parties that have arrived and not yet got through semWait. */
+	private int waitingCount;
+
+	SemaphoreBarrier(int parties, Runnable barrierAction) {
+	    this.parties = parties;
+	    this.barrierAction = barrierAction;
+	}
+
+	public void await() {
+	    mutex.P();
+	    if(++waitingCount == parties) {
+		barrierAction.run();
+		semWait.V(parties);
+	    }
+	    mutex.V();
+	    semWait.P();
+	    mutex.P();
+	    if(--waitingCount == 0)
+		semExit.V(parties);
+	    mutex.V();
+	    semExit.P();
+	}
+    }
+
+    /**
+     * Entry point for the benchmark.
+     */
+    public static void start() {
+	Debug.println('+', "Entering BarrierBenchmark");
+	NachosThread thread = new extendedNachosThread("Barrier benchmark",
+		new BarrierBenchmark());
+	Nachos.scheduler.readyToRun(thread);
+    }
+}
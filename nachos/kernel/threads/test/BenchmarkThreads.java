@@ -0,0 +1,51 @@
+package nachos.kernel.threads.test;
+
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.Semaphore;
+import nachos.kernel.threads.extendedNachosThread;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+
+/**
+ * This class holds the code shared by the benchmarks that simulate work
+ * and run it in a number of kernel threads.
+ */
+class BenchmarkThreads {
+
+    /**
+     * Let time pass by repeatedly disabling and enabling interrupts.
+     *
+     * @param n  The number of times to do so.
+     */
+    static void work(int n) {
+	for(int i = 0; i < n; i++) {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    CPU.setLevel(oldLevel);
+	}
+    }
+
+    /**
+     * Run the same body in a number of new kernel threads, and wait for
+     * them all to finish.
+     *
+     * @param name  Prefix for the names of the threads.
+     * @param n  The number of threads.
+     * @param body  The code run by each thread.
+     */
+    static void runAll(String name, int n, final Runnable body) {
+	final Semaphore done = new Semaphore(name + " done", 0);
+	for(int i = 0; i < n; i++) {
+	    NachosThread thread = new extendedNachosThread(name + " " + i,
+		    new Runnable() {
+			public void run() {
+			    body.run();
+			    done.V();
+			    Nachos.scheduler.finishThread();
+			}
+		    });
+	    Nachos.scheduler.readyToRun(thread);
+	}
+	for(int i = 0; i < n; i++)
+	    done.P();
+    }
+}
@@ -0,0 +1,152 @@
+package nachos.kernel.threads.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.ForkJoinPool;
+import nachos.kernel.threads.ForkJoinTask;
+import nachos.kernel.threads.Semaphore;
+import nachos.kernel.threads.SpinLock;
+import nachos.kernel.threads.extendedNachosThread;
+import nachos.machine.CPU;
+import nachos.machine.Machine;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+
+/**
+ * This class is a parallel recursion benchmark for the fork-join pool.
+ * The same divide-and-conquer computation, which walks a complete binary
+ * tree and does a little work at each leaf, is run in two ways: as
+ * ForkJoinTasks in a pool with one worker per CPU, and with one kernel
+ * thread per task, where each node of the tree creates a thread for its
+ * right subtree, does its left subtree itself, and waits on a semaphore
+ * for the thread to finish.  The results are the simulated time taken,
+ * the number of threads created and, for the pool, the number of tasks
+ * that were stolen.
+ *
+ * The differences show up best with several CPUs (-ncpu).
+ */
+public class ForkJoinBenchmark implements Runnable {
+
+    /** Depths of the trees walked. */
+    private static final int[] DEPTHS = {4, 6, 8};
+
+    /** Work done at each leaf, in interrupt enable/disable pairs. */
+    private static final int WORK = 20;
+
+    /** Number of threads created by the one-thread-per-task walks. */
+    private static int threadsCreated;
+
+    /** Guards the count of threads created. */
+    private static final SpinLock countLock = new SpinLock("ForkJoinBenchmark count");
+
+    /**
+     * Run the benchmark, printing one line of results for each way of
+     * walking each tree.
+     */
+    public void run() {
+	ForkJoinPool pool = new ForkJoinPool("ForkJoinBenchmark");
+	for(int depth : DEPTHS) {
+	    int start = Simulation.currentTime();
+	    long stealsBefore = pool.getStealCount();
+	    int leaves = pool.invoke(new Walk(depth));
+	    Debug.ASSERT(leaves == 1 << depth, "ForkJoinBenchmark: wrong result");
+	    Debug.printf('+', "ForkJoinBenchmark: fork-join, depth %d, %d CPUs: %d ticks, %d threads, %d steals\n",
+		    new Object[] {depth, Machine.NUM_CPUS,
+				  Simulation.currentTime() - start, Machine.NUM_CPUS,
+				  pool.getStealCount() - stealsBefore});
+
+	    start = Simulation.currentTime();
+	    threadsCreated = 0;
+	    ThreadWalk walk = new ThreadWalk(depth);
+	    walk.run();
+	    Debug.ASSERT(walk.leaves == 1 << depth, "ForkJoinBenchmark: wrong result");
+	    Debug.printf('+', "ForkJoinBenchmark: thread per task, depth %d, %d CPUs: %d ticks, %d threads\n",
+		    new Object[] {depth, Machine.NUM_CPUS,
+				  Simulation.currentTime() - start, threadsCreated});
+	}
+	pool.shutdown();
+	Nachos.scheduler.finishThread();
+    }
+
+    /**
+     * A walk of a subtree as a fork-join task, whose result is the
+     * number of leaves.
+     */
+    private static class Walk extends ForkJoinTask<Integer> {
+
+	/** Depth of the subtree. */
+	private final int depth;
+
+	Walk(int depth) {
+	    this.depth = depth;
+	}
+
+	protected Integer compute() {
+	    if(depth == 0) {
+		BenchmarkThreads.work(WORK);
+		return 1;
+	    }
+	    Walk left = new Walk(depth - 1);
+	    Walk right = new Walk(depth - 1);
+	    right.fork();
+	    int leaves = left.compute();
+	    return leaves + right.join();
+	}
+    }
+
+    /**
+     * A walk of a subtree with one thread per task.
+     */
+    private static class ThreadWalk implements Runnable {
+
+	/** Depth of the subtree. */
+	private final int depth;
+
+	/** Number of leaves found. */
+	int leaves;
+
+	/** Signalled when the walk is done. */
+	final Semaphore done = new Semaphore("ForkJoinBenchmark done", 0);
+
+	ThreadWalk(int depth) {
+	    this.depth = depth;
+	}
+
+	public void run() {
+	    if(depth == 0) {
+		BenchmarkThreads.work(WORK);
+		leaves = 1;
+		return;
+	    }
+	    ThreadWalk left = new ThreadWalk(depth - 1);
+	    final ThreadWalk right = new ThreadWalk(depth - 1);
+	    NachosThread thread = new extendedNachosThread("ForkJoinBenchmark walk",
+		    new Runnable() {
+			public void run() {
+			    right.run();
+			    right.done.V();
+			    Nachos.scheduler.finishThread();
+			}
+		    });
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    countLock.acquire();
+	    threadsCreated++;
+	    countLock.release();
+	    CPU.setLevel(oldLevel);
+	    Nachos.scheduler.readyToRun(thread);
+	    left.run();
+	    right.done.P();
+	    leaves = left.leaves + right.leaves;
+	}
+    }
+
+    /**
+     * Entry point for the benchmark.
+     */
+    public static void start() {
+	Debug.println('+', "Entering ForkJoinBenchmark");
+	NachosThread thread = new extendedNachosThread("Fork-join benchmark",
+		new ForkJoinBenchmark());
+	Nachos.scheduler.readyToRun(thread);
+    }
+}
@@ -0,0 +1,94 @@
+package nachos.kernel.threads.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.Lock;
+import nachos.kernel.threads.extendedNachosThread;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+
+/**
+ * This class is a contention benchmark for locks, in the style of SMPTest.
+ * A number of kernel threads repeatedly acquire a shared lock, "waste
+ * time" inside the critical section by enabling and disabling interrupts,
+ * release it, and waste some more time outside.  The measurement is made
+ * for each combination of blocking or adaptive (spin-then-block) acquisition
+ * and barging or direct handoff on release, and reports the simulated time
+ * taken, the number of times a thread blocked (each of which costs a pair of
+ * context switches), and the number of acquisitions made by spinning.
+ *
+ * Spinning only pays off when there are several CPUs (-ncpu), and the
+ * differences between the policies show up best with timers enabled (-ps).
+ * A context switch costs almost no simulated time, so the number of blocks
+ * is a better guide than the ticks to the cost on real hardware.
+ */
+public class LockBenchmark implements Runnable {
+
+    /** Number of threads contending for the lock. */
+    private static final int NUM_THREADS = 8;
+
+    /** Number of times each thread acquires the lock. */
+    private static final int ITERATIONS = 50;
+
+    /** Length of the critical section, in interrupt enable/disable pairs. */
+    private static final int CRITICAL_WORK = 10;
+
+    /** Length of the work done outside the critical section. */
+    private static final int OUTSIDE_WORK = 20;
+
+    /** Spin time used for the adaptive measurements. */
+    private static final int SPIN_TICKS = 50;
+
+    /**
+     * Run the benchmark, printing one line of results for each combination
+     * of acquisition and release policy.
+     */
+    public void run() {
+	measure("blocking, barging", 0, false);
+	measure("blocking, handoff", 0, true);
+	measure("adaptive, barging", SPIN_TICKS, false);
+	measure("adaptive, handoff", SPIN_TICKS, true);
+	Nachos.scheduler.finishThread();
+    }
+
+    /**
+     * Measure and print the cost of contention on a lock with a specified
+     * spin time and release policy.
+     *
+     * @param label  Label for the line of results.
+     * @param spinTicks  The lock's spin time.
+     * @param handoff  Does the lock hand off directly to waiters?
+     */
+    private static void measure(String label, int spinTicks, boolean handoff) {
+	final Lock lock = new Lock("LockBenchmark lock", spinTicks, handoff);
+	final int[] counter = new int[1];
+	int start = Simulation.currentTime();
+	BenchmarkThreads.runAll("LockBenchmark", NUM_THREADS, new Runnable() {
+	    public void run() {
+		for(int k = 0; k < ITERATIONS; k++) {
+		    lock.acquire();
+		    counter[0]++;
+		    BenchmarkThreads.work(CRITICAL_WORK);
+		    lock.release();
+		    BenchmarkThreads.work(OUTSIDE_WORK);
+		}
+	    }
+	});
+	Debug.ASSERT(counter[0] == NUM_THREADS * ITERATIONS,
+		"LockBenchmark: lost updates under the lock");
+	Debug.printf('+', "LockBenchmark: %s: %d ticks, %d blocks, %d spin acquisitions, %d handoffs\n",
+		new Object[] {label, Simulation.currentTime() - start,
+			      lock.getBlockCount(), lock.getSpinAcquireCount(),
+			      lock.getHandoffCount()});
+    }
+
+    /**
+     * Entry point for the benchmark.
+     */
+    public static void start() {
+	Debug.println('+', "Entering LockBenchmark");
+	NachosThread thread = new extendedNachosThread("Lock benchmark",
+		new LockBenchmark());
+	Nachos.scheduler.readyToRun(thread);
+    }
+}
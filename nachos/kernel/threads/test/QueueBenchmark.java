@@ -0,0 +1,84 @@
+package nachos.kernel.threads.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.extendedNachosThread;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.util.ArrayQueue;
+import nachos.util.BoundedArrayQueue;
+import nachos.util.FIFOQueue;
+import nachos.util.Queue;
+
+/**
+ * This class is an offer/poll throughput benchmark for the queue classes
+ * in nachos.util: FIFOQueue, which allocates a list node for every element
+ * offered, and ArrayQueue and BoundedArrayQueue, which keep their elements
+ * in a circular array.  For several queue lengths, a queue is filled to
+ * that length and then elements are repeatedly polled from the head and
+ * offered at the tail, which is how wait queues and ready queues are used.
+ *
+ * Since the costs being compared are those of the host, which simulated
+ * time does not see, the results are in host microseconds for a million
+ * offer/poll pairs.  Interrupts are disabled while each queue is measured,
+ * so that the thread is not preempted.  Every measurement is done twice,
+ * and the first, which warms up the host's compiler, is not reported.
+ */
+public class QueueBenchmark implements Runnable {
+
+    /** Lengths at which the queues are measured. */
+    private static final int[] LENGTHS = {1, 16, 256};
+
+    /** Number of offer/poll pairs measured for each queue and length. */
+    private static final int OPERATIONS = 1000000;
+
+    /**
+     * Run the benchmark, printing one line of results for each queue
+     * and length.
+     */
+    public void run() {
+	for(int round = 0; round < 2; round++) {
+	    for(int length : LENGTHS) {
+		long fifo = measure(new FIFOQueue<Object>(), length);
+		long array = measure(new ArrayQueue<Object>(), length);
+		long bounded = measure(new BoundedArrayQueue<Object>(length), length);
+		if(round == 1) {
+		    Debug.printf('+', "QueueBenchmark: length %d: FIFOQueue %d us, ArrayQueue %d us, BoundedArrayQueue %d us per %d offer/poll pairs\n",
+			    new Object[] {length, fifo, array, bounded, OPERATIONS});
+		}
+	    }
+	}
+	Nachos.scheduler.finishThread();
+    }
+
+    /**
+     * Measure the offer/poll throughput of a queue.
+     *
+     * @param queue  The queue, initially empty.
+     * @param length  The length at which to keep the queue.
+     * @return the time taken by the offer/poll pairs, in host microseconds.
+     */
+    private static long measure(Queue<Object> queue, int length) {
+	Object element = new Object();
+	for(int i = 0; i < length; i++)
+	    queue.offer(element);
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	long start = System.nanoTime();
+	for(int i = 0; i < OPERATIONS; i++)
+	    queue.offer(queue.poll());
+	long elapsed = System.nanoTime() - start;
+	CPU.setLevel(oldLevel);
+	Debug.ASSERT(queue.peek() == element, "QueueBenchmark: queue lost its elements");
+	return elapsed / 1000;
+    }
+
+    /**
+     * Entry point for the benchmark.
+     */
+    public static void start() {
+	Debug.println('+', "Entering QueueBenchmark");
+	NachosThread thread = new extendedNachosThread("Queue benchmark",
+		new QueueBenchmark());
+	Nachos.scheduler.readyToRun(thread);
+    }
+}
@@ -2,6 +2,7 @@ package nachos.kernel.threads.test;
 
 import nachos.Debug;
 import nachos.kernel.Nachos;
+import nachos.kernel.threads.extendedNachosThread;
 import nachos.machine.CPU;
 import nachos.machine.NachosThread;
 
@@ -24,7 +25,7 @@ public class SMPTest {
 	Debug.println('+', "Entering SMPTest");
 	for(int i = 0; i < 8; i++) {
 	    NachosThread looper =
-		    new NachosThread
+		    new extendedNachosThread
 		    ("SMP" + i,
 		     new Runnable() {
 			public void run() {
@@ -0,0 +1,181 @@
+package nachos.kernel.threads.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.LotteryPolicy;
+import nachos.kernel.threads.MultilevelFeedbackPolicy;
+import nachos.kernel.threads.RoundRobinPolicy;
+import nachos.kernel.threads.RunQueue;
+import nachos.kernel.threads.SchedulingPolicy;
+import nachos.kernel.threads.StridePolicy;
+import nachos.kernel.threads.extendedNachosThread;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+
+/**
+ * This class is a microbenchmark for the scheduler's run queues.
+ * For an increasing number of multilevel feedback queue levels, it measures
+ * the host time taken to enqueue a set of threads at the lowest-priority
+ * level and then pick them off again.  Since a nonempty-level bitmap is used
+ * to find the next thread to run, the cost per operation should stay roughly
+ * flat as the number of levels grows.  The same measurement is then made
+ * for the other scheduling policies, for comparison.
+ *
+ * Note that the times reported are host (wall-clock) times, not simulated
+ * ticks, and are therefore only meaningful relative to each other.
+ *
+ * Finally, the shares given by the stride and lottery policies are checked:
+ * threads holding different numbers of tickets are repeatedly picked from
+ * a run queue and put back, as if each ran for a quantum, and the number
+ * of times each was picked is printed.  These should be in proportion to
+ * the tickets, exactly for stride and on average for lottery.
+ */
+public class SchedulerBenchmark implements Runnable {
+
+    /** Number of threads placed in the run queue on each round. */
+    private static final int NUM_THREADS = 8;
+
+    /** Number of rounds to time for each number of levels. */
+    private static final int ROUNDS = 200000;
+
+    /** Number of untimed rounds used to warm up the JVM. */
+    private static final int WARMUP_ROUNDS = 20000;
+
+    /** Tickets given to the threads whose shares are checked. */
+    private static final int[] SHARE_TICKETS = {100, 200, 400};
+
+    /** Number of quanta handed out when checking shares. */
+    private static final int SHARE_PICKS = 7000;
+
+    /**
+     * Run the benchmark, printing one line of results for each number
+     * of levels.
+     */
+    public void run() {
+	extendedNachosThread[] threads = new extendedNachosThread[NUM_THREADS];
+	for(int i = 0; i < NUM_THREADS; i++) {
+	    threads[i] = new extendedNachosThread("Benchmark dummy " + i,
+		    new Runnable() {
+			public void run() {
+			    Nachos.scheduler.finishThread();
+			}
+		    });
+	    // A very long CPU burst puts the thread at the lowest-priority level.
+	    threads[i].currCPUBurst = Integer.MAX_VALUE;
+	    threads[i].avgCPUBurst = Integer.MAX_VALUE;
+	}
+
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	for(int numLevels = 1; numLevels <= MultilevelFeedbackPolicy.MAX_LEVELS;
+		numLevels *= 2) {
+	    report(numLevels + " levels",
+		    new MultilevelFeedbackPolicy(numLevels, 1), threads);
+	}
+	report("round-robin", new RoundRobinPolicy(1), threads);
+	report("stride", new StridePolicy(1), threads);
+	report("lottery", new LotteryPolicy(1), threads);
+
+	extendedNachosThread[] shared = new extendedNachosThread[SHARE_TICKETS.length];
+	for(int i = 0; i < shared.length; i++) {
+	    shared[i] = threads[i];
+	    Nachos.scheduler.setTickets(shared[i], SHARE_TICKETS[i]);
+	}
+	reportShares("stride", new StridePolicy(1), shared);
+	reportShares("lottery", new LotteryPolicy(1), shared);
+	CPU.setLevel(oldLevel);
+
+	// The dummy threads were never run; let them run and finish.
+	for(int i = 0; i < NUM_THREADS; i++)
+	    Nachos.scheduler.readyToRun(threads[i]);
+	Nachos.scheduler.finishThread();
+    }
+
+    /**
+     * Measure and print the cost of enqueueing and picking threads on
+     * a run queue created by a specified policy.
+     * Assumes that interrupts are disabled.
+     *
+     * @param label  Label for the line of results.
+     * @param policy  The policy whose run queue is measured.
+     * @param threads  The threads to enqueue.
+     */
+    private static void report(String label, SchedulingPolicy policy,
+	    extendedNachosThread[] threads) {
+	RunQueue runQueue = policy.newRunQueue(CPU.currentCPU());
+	runQueue.lock.acquire();
+	time(runQueue, threads, WARMUP_ROUNDS);
+	long elapsed = time(runQueue, threads, ROUNDS);
+	runQueue.lock.release();
+	Debug.printf('+', "SchedulerBenchmark: %s: %d ns per enqueue/pick\n",
+		label, elapsed / ((long)ROUNDS * threads.length));
+    }
+
+    /**
+     * Check and print the shares that a policy gives to threads holding
+     * different numbers of tickets.
+     * Assumes that interrupts are disabled.
+     *
+     * @param label  Label for the line of results.
+     * @param policy  The policy whose run queue is used.
+     * @param threads  The threads, none of which is on a run queue.
+     */
+    private static void reportShares(String label, SchedulingPolicy policy,
+	    extendedNachosThread[] threads) {
+	RunQueue runQueue = policy.newRunQueue(CPU.currentCPU());
+	int[] picks = new int[threads.length];
+	runQueue.lock.acquire();
+	for(int i = 0; i < threads.length; i++) {
+	    threads[i].pass = 0;
+	    runQueue.offer(threads[i]);
+	}
+	for(int n = 0; n < SHARE_PICKS; n++) {
+	    extendedNachosThread thread = runQueue.poll();
+	    for(int i = 0; i < threads.length; i++) {
+		if(threads[i] == thread)
+		    picks[i]++;
+	    }
+	    runQueue.offer(thread);
+	}
+	while(runQueue.poll() != null)
+	    ;
+	runQueue.lock.release();
+	StringBuffer line = new StringBuffer();
+	for(int i = 0; i < threads.length; i++) {
+	    line.append(i == 0 ? "" : ", ");
+	    line.append(threads[i].tickets + " tickets " + picks[i]);
+	}
+	Debug.printf('+', "SchedulerBenchmark: %s shares: %s of %d quanta\n",
+		label, line.toString(), SHARE_PICKS);
+    }
+
+    /**
+     * Time a number of rounds, each of which enqueues all the given threads
+     * and then picks them all off the run queue again.
+     *
+     * @param runQueue  The run queue to use, whose lock must be held.
+     * @param threads  The threads to enqueue.
+     * @param rounds  The number of rounds.
+     * @return the elapsed host time in nanoseconds.
+     */
+    private static long time(RunQueue runQueue, extendedNachosThread[] threads,
+	    int rounds) {
+	long start = System.nanoTime();
+	for(int r = 0; r < rounds; r++) {
+	    for(int i = 0; i < threads.length; i++)
+		runQueue.offer(threads[i]);
+	    for(int i = 0; i < threads.length; i++)
+		runQueue.poll();
+	}
+	return System.nanoTime() - start;
+    }
+
+    /**
+     * Entry point for the benchmark.
+     */
+    public static void start() {
+	Debug.println('+', "Entering SchedulerBenchmark");
+	NachosThread thread = new extendedNachosThread("Scheduler benchmark",
+		new SchedulerBenchmark());
+	Nachos.scheduler.readyToRun(thread);
+    }
+}
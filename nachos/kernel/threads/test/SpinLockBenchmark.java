@@ -0,0 +1,196 @@
+package nachos.kernel.threads.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.Semaphore;
+import nachos.kernel.threads.SpinLock;
+import nachos.kernel.threads.extendedNachosThread;
+import nachos.machine.CPU;
+import nachos.machine.Machine;
+import nachos.machine.NachosThread;
+
+/**
+ * This class is a contention benchmark for spin locks.  For each kind of
+ * spin lock, with and without backoff, and for 1, 2, 4, ... up to NUM_CPUS
+ * contending CPUs, one kernel thread is pinned to each CPU, and the threads
+ * then take turns acquiring a shared spin lock, with interrupts disabled,
+ * until it has been acquired a fixed number of times in all.  The results
+ * are the host time per acquisition and the smallest and largest number of
+ * acquisitions made by any one CPU, which show how fairly the lock was shared.
+ *
+ * Waiting on a spin lock does not advance simulated time, so the host time
+ * is the measure of cost here, and the results depend on the number of host
+ * processors available to run the simulated CPUs.  The benchmark should be
+ * run on its own, since each contending CPU must be free to run its thread.
+ */
+public class SpinLockBenchmark implements Runnable {
+
+    /** Number of acquisitions made by all the CPUs together. */
+    private static final int ACQUISITIONS = 2000;
+
+    /** Length of the critical section, in writes to a shared variable. */
+    private static final int CRITICAL_WORK = 20;
+
+    /** Length of the work done outside the critical section. */
+    private static final int OUTSIDE_WORK = 20;
+
+    /** Written while doing work, so that the work is not optimized away. */
+    private static volatile int workSink;
+
+    /**
+     * Run the benchmark, printing one line of results for each kind of
+     * spin lock, backoff setting and number of CPUs.  MCS waiters do not
+     * back off, so MCS locks are measured only once.  A first, unreported
+     * measurement warms up the host before the results are taken.
+     */
+    public void run() {
+	measure(SpinLock.TEST_AND_SET, false, 1, false);
+	int[] kinds = {SpinLock.TEST_AND_SET, SpinLock.TICKET, SpinLock.MCS};
+	for(int kind : kinds) {
+	    for(int b = 0; b < (kind == SpinLock.MCS ? 1 : 2); b++) {
+		for(int n = 1; n < Machine.NUM_CPUS; n *= 2)
+		    measure(kind, b == 1, n, true);
+		measure(kind, b == 1, Machine.NUM_CPUS, true);
+	    }
+	}
+	Nachos.scheduler.finishThread();
+    }
+
+    /**
+     * Measure and print the cost and fairness of contention on a spin lock.
+     *
+     * @param kind  The kind of spin lock.
+     * @param backoff  Should the waiters back off?
+     * @param numCPUs  The number of CPUs contending for the lock.
+     * @param report  Should the results be printed?
+     */
+    private static void measure(int kind, boolean backoff, final int numCPUs,
+	    boolean report) {
+	final SpinLock lock = new SpinLock("SpinLockBenchmark lock", kind, backoff);
+	final Round round = new Round(numCPUs);
+	final Semaphore done = new Semaphore("SpinLockBenchmark done", 0);
+	for(int i = 0; i < numCPUs; i++) {
+	    final int id = i;
+	    extendedNachosThread thread = new extendedNachosThread("SpinLockBenchmark " + i,
+		    new Runnable() {
+			public void run() {
+			    int oldLevel = CPU.setLevel(CPU.IntOff);
+			    round.arrive();
+			    while(round.arrived < numCPUs)
+				/* wait for the other CPUs */;
+			    long start = System.nanoTime();
+			    int mine = 0;
+			    while(true) {
+				lock.acquire();
+				boolean more = round.count < ACQUISITIONS;
+				if(more) {
+				    round.count++;
+				    mine++;
+				    work(CRITICAL_WORK);
+				}
+				lock.release();
+				if(!more)
+				    break;
+				work(OUTSIDE_WORK);
+			    }
+			    round.finish(id, mine, start, System.nanoTime());
+			    CPU.setLevel(oldLevel);
+			    done.V();
+			    Nachos.scheduler.finishThread();
+			}
+		    });
+	    Nachos.scheduler.setAffinity(thread, 1L << i);
+	    Nachos.scheduler.readyToRun(thread);
+	}
+	for(int i = 0; i < numCPUs; i++)
+	    done.P();
+	Debug.ASSERT(round.count == ACQUISITIONS,
+		"SpinLockBenchmark: lost updates under the spin lock");
+	if(!report)
+	    return;
+	int min = ACQUISITIONS;
+	int max = 0;
+	for(int share : round.shares) {
+	    min = Math.min(min, share);
+	    max = Math.max(max, share);
+	}
+	Debug.printf('+', "SpinLockBenchmark: %s%s, %d CPUs: %d ns per acquisition, %d to %d acquisitions per CPU\n",
+		new Object[] {SpinLock.nameOf(kind), backoff ? " with backoff" : "",
+			      numCPUs, (round.end - round.start) / ACQUISITIONS,
+			      min, max});
+    }
+
+    /**
+     * Do some work by writing repeatedly to a shared variable.
+     *
+     * @param n  The number of writes.
+     */
+    private static void work(int n) {
+	for(int i = 0; i < n; i++)
+	    workSink = i;
+    }
+
+    /**
+     * State shared by the threads taking part in one measurement.
+     */
+    private static class Round {
+
+	/** Guards the arrival count and the results. */
+	private final SpinLock gate = new SpinLock("SpinLockBenchmark gate",
+		SpinLock.TEST_AND_SET, false);
+
+	/** Number of threads that are ready to start. */
+	volatile int arrived;
+
+	/** Number of acquisitions so far, protected by the lock being measured. */
+	int count;
+
+	/** Number of acquisitions made by each thread. */
+	final int[] shares;
+
+	/** Host time at which the first thread started. */
+	long start = Long.MAX_VALUE;
+
+	/** Host time at which the last thread finished. */
+	long end = Long.MIN_VALUE;
+
+	Round(int numCPUs) {
+	    shares = new int[numCPUs];
+	}
+
+	/**
+	 * Record that a thread is ready to start.
+	 */
+	void arrive() {
+	    gate.acquire();
+	    arrived++;
+	    gate.release();
+	}
+
+	/**
+	 * Record the results of a thread.
+	 *
+	 * @param id  The thread's index.
+	 * @param mine  The number of acquisitions it made.
+	 * @param start  The host time at which it started.
+	 * @param end  The host time at which it finished.
+	 */
+	void finish(int id, int mine, long start, long end) {
+	    gate.acquire();
+	    shares[id] = mine;
+	    this.start = Math.min(this.start, start);
+	    this.end = Math.max(this.end, end);
+	    gate.release();
+	}
+    }
+
+    /**
+     * Entry point for the benchmark.
+     */
+    public static void start() {
+	Debug.println('+', "Entering SpinLockBenchmark");
+	NachosThread thread = new extendedNachosThread("Spin lock benchmark",
+		new SpinLockBenchmark());
+	Nachos.scheduler.readyToRun(thread);
+    }
+}
@@ -51,6 +51,9 @@ public class AddrSpace {
   /** Page table that describes a virtual-to-physical address mapping. */
   public TranslationEntry pageTable[];
   public int pid;
+
+  /** Pid of the process at the root of this process's fork lineage. */
+  public int gangRoot;
   public static int runningProcess = 0;
   public Semaphore semJoin;
   
@@ -71,6 +74,7 @@ public class AddrSpace {
       this.pageTableLock = new Lock("pageTableLock");
       this.codeDataLock = new Lock("codeDataLock");
       this.pid = ProcessManager.getNextpid();
+      this.gangRoot = this.pid;
       this.semJoin = new Semaphore("Join Semaphore",0);
       runningProcess++;
   }
@@ -172,7 +176,9 @@ public class AddrSpace {
 				      // separate pages, we could set code 
 				      // pages to be read-only
     }
+    Syscall.processTableLock.acquireWrite();
     ProcessManager.processTable.put(pid,this);
+    Syscall.processTableLock.releaseWrite();
     pageTableLock.release();
 
     codeDataLock.acquire();
@@ -106,6 +106,12 @@ public class ExceptionHandler implements nachos.machine.ExceptionHandler {
 		String rmpath = ProcessManager.getCurrentSpace().copyinString(CPU.readRegister(4));
 		Syscall.rmdir(rmpath);
 		break;
+	    case Syscall.SC_RealTime:
+		CPU.writeRegister(2,Syscall.realTime(CPU.readRegister(4),CPU.readRegister(5)));
+		break;
+	    case Syscall.SC_SetAffinity:
+		CPU.writeRegister(2,Syscall.setAffinity(CPU.readRegister(4)));
+		break;
 	    }
 
 	    // Update the program counter to point to the next instruction
@@ -3,28 +3,69 @@ package nachos.kernel.userprog;
 import java.util.HashMap;
 import java.util.LinkedList;
 
-import nachos.kernel.threads.Lock;
+import nachos.kernel.threads.Gang;
+import nachos.kernel.threads.ReadWriteLock;
+import nachos.kernel.threads.extendedNachosThread;
 import nachos.machine.NachosThread;
 
 public class ProcessManager {
     private static int pid = 0;
-    static Lock processLock = new Lock("process lock");
+    static ReadWriteLock processLock = new ReadWriteLock("process lock");
     static HashMap<Integer, AddrSpace> processTable = new HashMap<Integer, AddrSpace>();
     static HashMap<Integer, LinkedList<Integer>> waitingPID = new HashMap<Integer, LinkedList<Integer>>();
     static HashMap<Integer, Integer> exitStatus = new HashMap<Integer, Integer>();
     static HashMap<Integer, LinkedList<Integer>> forkedPID = new HashMap<Integer, LinkedList<Integer>>();
+    static HashMap<Integer, Gang> gangs = new HashMap<Integer, Gang>();
     
     public static int getNextpid() {
-	processLock.acquire();
-	pid += 1;
-	processLock.release();
-	return pid;
+	processLock.acquireWrite();
+	int nextpid = ++pid;
+	processLock.releaseWrite();
+	return nextpid;
     }
     
     public static AddrSpace getCurrentSpace() {
-	processLock.acquire();
-	AddrSpace currSpace = ((UserThread)NachosThread.currentThread()).space;
-	processLock.release();
-	return currSpace;
+	// A thread's own space is never changed by anyone else, so no lock is needed.
+	return ((UserThread)NachosThread.currentThread()).space;
     }
-}
\ No newline at end of file
+    
+    /**
+     * Get the gang for the threads of a process and of all the processes
+     * related to it by fork.  The gang is keyed on the pid of the process
+     * at the root of the fork lineage, which each process records when it
+     * is forked, and is created if necessary.
+     *
+     * @param space  The address space of a process.
+     * @return the gang of that process's fork lineage.
+     */
+    public static Gang getGang(AddrSpace space) {
+	int root = space.gangRoot;
+	processLock.acquireRead();
+	Gang gang = gangs.get(root);
+	processLock.releaseRead();
+	if (gang == null) {
+	    processLock.acquireWrite();
+	    gang = gangs.get(root);
+	    if (gang == null) {
+		gang = new Gang(root);
+		gangs.put(root, gang);
+	    }
+	    processLock.releaseWrite();
+	}
+	return gang;
+    }
+
+    /**
+     * Take a thread out of its gang, and forget the gang if that was its
+     * last member, so that a fork lineage's gang goes away with it.
+     *
+     * @param thread  A thread that is in a gang.
+     */
+    public static void leaveGang(extendedNachosThread thread) {
+	Gang gang = thread.gang;
+	processLock.acquireWrite();
+	if (gang.leave(thread) == 0 && gangs.get(gang.id) == gang)
+	    gangs.remove(gang.id);
+	processLock.releaseWrite();
+    }
+}
@@ -6,15 +6,15 @@
 
 package nachos.kernel.userprog;
 
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
 
 import nachos.Debug;
 import nachos.kernel.Nachos;
 import nachos.kernel.filesys.OpenFile;
+import nachos.kernel.threads.Gang;
 import nachos.kernel.threads.Lock;
-import nachos.kernel.threads.Scheduler;
+import nachos.kernel.threads.ReadWriteLock;
 import nachos.kernel.threads.extendedNachosThread;
 import nachos.machine.CPU;
 import nachos.machine.MIPS;
@@ -81,10 +81,18 @@ public class Syscall {
     public static final int SC_Mkdir = 14;
     
     public static final int SC_Rmdir = 15;
+    
+    /** Integer code identifying the "RealTime" system call. */
+    public static final int SC_RealTime = 16;
+
+    /** Integer code identifying the "SetAffinity" system call. */
+    public static final int SC_SetAffinity = 17;
 
-    public static Lock processTableLock = new Lock("processTableLock");
+    // forkedPIDLock and waitingPIDLock are each taken before exitStatusLock,
+    // never after it, and never together.
+    public static ReadWriteLock processTableLock = new ReadWriteLock("processTableLock");
     public static Lock waitingPIDLock = new Lock("waitingPIDLock");
-    public static Lock exitStatusLock = new Lock("exitStatusLock");
+    public static ReadWriteLock exitStatusLock = new ReadWriteLock("exitStatusLock");
     public static Lock forkedPIDLock = new Lock("forkedPIDLock");
     public static Lock runningProcessLock = new Lock("runningProcessLock");
     
@@ -113,7 +121,8 @@ public class Syscall {
 	int currPID = currSpace.pid;
 	TranslationEntry[] currPageTable = currSpace.pageTable;
 	
-	
+	forkedPIDLock.acquire();
+	exitStatusLock.acquireRead();
 	if (ProcessManager.forkedPID.containsKey(currPID))
 	{
 	    LinkedList<Integer> forkedProcesses = ProcessManager.forkedPID.get(currPID);
@@ -124,11 +133,10 @@ public class Syscall {
 		}
 	    }
 	} else {
-	    Iterator it = ProcessManager.forkedPID.entrySet().iterator();
-	    hashMapLoop : while (it.hasNext()) {
-		Map.Entry pair = (Map.Entry)it.next();
-		int parentPID = (int) pair.getKey();
-		LinkedList<Integer> forkedProcesses = (LinkedList<Integer>) pair.getValue();
+	    hashMapLoop : for (Map.Entry<Integer, LinkedList<Integer>> pair
+		    : ProcessManager.forkedPID.entrySet()) {
+		int parentPID = pair.getKey();
+		LinkedList<Integer> forkedProcesses = pair.getValue();
 		if (forkedProcesses.contains(currPID)) {
 		    if (!ProcessManager.exitStatus.containsKey(parentPID)) {
 			isLastThread = false;
@@ -143,6 +151,8 @@ public class Syscall {
 	        }
 	    }
 	}
+	exitStatusLock.releaseRead();
+	forkedPIDLock.release();
 	
 	if (isLastThread) {
 	    for (int i = 0; i < currPageTable.length; i++) {
@@ -161,17 +171,29 @@ public class Syscall {
 	AddrSpace.runningProcess--;
 	runningProcessLock.release();
 	
-	exitStatusLock.acquire();
+	// Record the exit status and take the list of joiners together, so
+	// that each joiner either sees the status or is on the list.
+	waitingPIDLock.acquire();
+	exitStatusLock.acquireWrite();
 	ProcessManager.exitStatus.put(currPID,status);
-	exitStatusLock.release();
+	exitStatusLock.releaseWrite();
+	LinkedList<Integer> waitingProcesses = ProcessManager.waitingPID.remove(currPID);
+	waitingPIDLock.release();
 	
-	LinkedList<Integer> waitingProcesses = new LinkedList<Integer>();
-	if (ProcessManager.waitingPID.containsKey(currPID)) {
-	    waitingProcesses = ProcessManager.waitingPID.get(currPID);
+	// Wake all the joiners as a single batch.
+	if (waitingProcesses != null) {
+	    LinkedList<NachosThread> joiners = new LinkedList<NachosThread>();
+	    processTableLock.acquireRead();
 	    while (waitingProcesses.size() > 0) {
-		ProcessManager.processTable.get(waitingProcesses.removeFirst()).semJoin.V();	
+		ProcessManager.processTable.get(waitingProcesses.removeFirst()).semJoin.V(joiners);
 	    }
+	    processTableLock.releaseRead();
+	    Nachos.scheduler.readyToRunAll(joiners);
 	}
+	
+	extendedNachosThread current = (extendedNachosThread)NachosThread.currentThread();
+	if (current.gang != null)
+	    ProcessManager.leaveGang(current);
 	Nachos.scheduler.finishThread();
     }
 
@@ -192,9 +214,9 @@ public class Syscall {
 			if((executable = Nachos.fileSystem.open(execName)) == null) {
 			    Debug.println('+', "Unable to open executable file: " + execName);
 			    
-			    exitStatusLock.acquire();
+			    exitStatusLock.acquireWrite();
 			    ProcessManager.exitStatus.put(space.pid,-1);
-			    exitStatusLock.release();
+			    exitStatusLock.releaseWrite();
 			    
 			    runningProcessLock.acquire();
 			    AddrSpace.runningProcess--;
@@ -208,9 +230,9 @@ public class Syscall {
 			if(space.exec(executable) == -1) {
 			    Debug.println('+', "Unable to read executable file: " + execName);
 			    
-			    exitStatusLock.acquire();
+			    exitStatusLock.acquireWrite();
 			    ProcessManager.exitStatus.put(space.pid,-1);
-			    exitStatusLock.release();
+			    exitStatusLock.releaseWrite();
 			    
 			    runningProcessLock.acquire();
 			    AddrSpace.runningProcess--;
@@ -239,24 +261,33 @@ public class Syscall {
      * @return the exit status of the specified program.
      */
     public static int join(int id) {	
-	if (!ProcessManager.exitStatus.containsKey(id)) {
-	    AddrSpace currSpace = ProcessManager.getCurrentSpace();
-		
-	    LinkedList<Integer> waitingProcesses = new LinkedList<Integer>();
-	    if (ProcessManager.waitingPID.containsKey(id)) {
-		waitingProcesses = ProcessManager.waitingPID.get(id);
+	AddrSpace currSpace = ProcessManager.getCurrentSpace();
+	
+	// Check for the exit status and join the list of waiters together,
+	// so that exit() cannot slip in between and miss this joiner.
+	waitingPIDLock.acquire();
+	exitStatusLock.acquireRead();
+	boolean exited = ProcessManager.exitStatus.containsKey(id);
+	exitStatusLock.releaseRead();
+	if (!exited) {
+	    LinkedList<Integer> waitingProcesses = ProcessManager.waitingPID.get(id);
+	    if (waitingProcesses == null) {
+		waitingProcesses = new LinkedList<Integer>();
+		ProcessManager.waitingPID.put(id,waitingProcesses);
 	    }
 	    waitingProcesses.add(currSpace.pid);
-		
-	    waitingPIDLock.acquire();
-	    ProcessManager.waitingPID.put(id,waitingProcesses);
-	    waitingPIDLock.release();
-	    
+	}
+	waitingPIDLock.release();
+	
+	if (!exited) {
 	    System.out.println("pid: " + currSpace.pid + " waiting");
 	    currSpace.semJoin.P();
 	    System.out.println("pid: " + currSpace.pid + " done waiting");
 	}
-	return ProcessManager.exitStatus.get(id);
+	exitStatusLock.acquireRead();
+	int status = ProcessManager.exitStatus.get(id);
+	exitStatusLock.releaseRead();
+	return status;
     }
 
 
@@ -375,22 +406,23 @@ public class Syscall {
 	final int functionAdr = func;
 	
 	final AddrSpace space = new AddrSpace();
-	space.pageTable =  ProcessManager.getCurrentSpace().newPageTable();
+	AddrSpace parentSpace = ProcessManager.getCurrentSpace();
+	space.pageTable =  parentSpace.newPageTable();
+	space.gangRoot = parentSpace.gangRoot;
 	
-	int parentPID = ProcessManager.getCurrentSpace().pid;
-	LinkedList<Integer> forkedProcesses = new LinkedList<Integer>();
-	if (ProcessManager.forkedPID.containsKey(parentPID)) {
-	    forkedProcesses = ProcessManager.forkedPID.get(parentPID);
+	int parentPID = parentSpace.pid;
+	forkedPIDLock.acquire();
+	LinkedList<Integer> forkedProcesses = ProcessManager.forkedPID.get(parentPID);
+	if (forkedProcesses == null) {
+	    forkedProcesses = new LinkedList<Integer>();
+	    ProcessManager.forkedPID.put(parentPID,forkedProcesses);
 	}
 	forkedProcesses.add(space.pid);
-	
-	forkedPIDLock.acquire();
-	ProcessManager.forkedPID.put(parentPID,forkedProcesses);
 	forkedPIDLock.release();
 	
-	processTableLock.acquire();
+	processTableLock.acquireWrite();
 	ProcessManager.processTable.put(space.pid,space);
-	processTableLock.release();
+	processTableLock.releaseWrite();
 	
 	Runnable execute = new Runnable() {
 		public void run() {
@@ -400,6 +432,12 @@ public class Syscall {
 		}
 	};
 	UserThread t = new UserThread("forked thread-" + space.pid, execute, space);
+	if (Nachos.options.GANG_SCHEDULING) {
+	    // Co-schedule the new thread with the rest of its fork lineage.
+	    Gang gang = ProcessManager.getGang(parentSpace);
+	    gang.join((UserThread)NachosThread.currentThread());
+	    gang.join(t);
+	}
 	Nachos.scheduler.readyToRun(t);
 }
 
@@ -416,14 +454,34 @@ public class Syscall {
     }
 
     public static void sleep(int ticks) {
-	extendedNachosThread currThread = (extendedNachosThread) NachosThread.currentThread();
-	CPU currentCPU = CPU.currentCPU();
-	currThread.waitTicks = ticks;
-	Scheduler.sleepingThreads.add(currThread);
-	Scheduler.sleepingThreadsCPU.add(currentCPU);
-	currThread.semSleep.P();
-	Scheduler.sleepingThreads.remove(currThread);
-	Scheduler.sleepingThreadsCPU.remove(currentCPU);
+	Nachos.scheduler.sleepTicks(ticks);
+    }
+    
+    /**
+     * Request that the current thread be scheduled as a real-time thread,
+     * with a reservation of budget ticks of CPU time in every period of
+     * period ticks, or return it to normal scheduling if period is zero.
+     *
+     * @param period  The period, in ticks, or zero.
+     * @param budget  The CPU time reserved in each period, in ticks.
+     * @return 0 if the request was granted, or -1 if it was invalid or
+     * the reservation could not be admitted.
+     */
+    public static int realTime(int period, int budget) {
+	extendedNachosThread currentThread = (extendedNachosThread)NachosThread.currentThread();
+	return Nachos.scheduler.setRealTime(currentThread, period, budget) ? 0 : -1;
+    }
+
+    /**
+     * Restrict the current thread to a set of CPUs.
+     *
+     * @param mask  The affinity mask: bit i allows the thread to run on CPU i.
+     * @return 0 if the mask was set, or -1 if it includes no CPU, or
+     * excludes the CPU against which a real-time thread was admitted.
+     */
+    public static int setAffinity(int mask) {
+	extendedNachosThread currentThread = (extendedNachosThread)NachosThread.currentThread();
+	return Nachos.scheduler.setAffinity(currentThread, mask & 0xffffffffL) ? 0 : -1;
     }
     
     public static void mkdir(String path) {
@@ -452,11 +510,9 @@ public class Syscall {
 		     if (!Nachos.fileSystem.makeDir(currPath, dirname)) {
 			    Debug.printf('+', "Can't create %s directory\n", dirname);
 			}
-		     Nachos.scheduler.finishThread();
 		 }
 	    };
-	    extendedNachosThread thread = new extendedNachosThread("mkdir thread", execute);
-	    Nachos.scheduler.readyToRun(thread);
+	    Nachos.threadPool.execute(execute);
 	}
     }
     
@@ -486,11 +542,9 @@ public class Syscall {
 		     if (!Nachos.fileSystem.rmDir(currPath, dirname)) {
 			    Debug.printf('+', "Can't delete %s directory\n", dirname);
 			}
-		     Nachos.scheduler.finishThread();
 		 }
 	    };
-	    extendedNachosThread thread = new extendedNachosThread("rmDir thread", execute);
-	    Nachos.scheduler.readyToRun(thread);
+	    Nachos.threadPool.execute(execute);
 	}
 
     }
@@ -0,0 +1,211 @@
+package nachos.util;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Implementation of the Queue interface as a circular buffer in an array,
+ * giving a queue with first-in, first-out behavior.  Unlike FIFOQueue,
+ * which allocates a list node for every element offered, this allocates
+ * nothing except when the array has to grow, which it does by doubling.
+ * Elements are removed from the middle, by remove(Object) or through an
+ * iterator, by shifting the later elements down, so this is best suited
+ * to queues from which elements are mostly taken at the head.
+ * Null elements are not permitted.
+ */
+public class ArrayQueue<T> extends AbstractQueue<T> implements Queue<T> {
+
+    /** Capacity of a queue for which none is specified. */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /** The elements, starting at head and wrapping around. */
+    private Object[] elements;
+
+    /** Index of the head element. */
+    private int head;
+
+    /** Number of elements. */
+    private int count;
+
+    /** Is the capacity fixed, rather than grown when the array is full? */
+    private final boolean fixed;
+
+    /**
+     * Initialize an empty queue with the default initial capacity.
+     */
+    public ArrayQueue() {
+	this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Initialize an empty queue.
+     *
+     * @param initialCapacity  The number of elements the queue can hold
+     * before it has to grow.
+     */
+    public ArrayQueue(int initialCapacity) {
+	this(initialCapacity, false);
+    }
+
+    /**
+     * Initialize an empty queue.
+     *
+     * @param capacity  The number of elements the queue can hold before
+     * it has to grow.
+     * @param fixed  If true, the queue never grows, and offer() fails when
+     * it is full.
+     */
+    protected ArrayQueue(int capacity, boolean fixed) {
+	if(capacity < 1)
+	    throw new IllegalArgumentException("Queue capacity must be positive");
+	elements = new Object[capacity];
+	this.fixed = fixed;
+    }
+
+    public boolean offer(T e) {
+	if(e == null)
+	    throw new NullPointerException();
+	if(count == elements.length) {
+	    if(fixed)
+		return false;
+	    grow();
+	}
+	elements[index(count)] = e;
+	count++;
+	return true;
+    }
+
+    public T peek() {
+	return (count == 0 ? null : get(0));
+    }
+
+    public T poll() {
+	if(count == 0)
+	    return null;
+	T e = get(0);
+	elements[head] = null;
+	head = index(1);
+	count--;
+	return e;
+    }
+
+    public int size() {
+	return count;
+    }
+
+    public boolean isEmpty() {
+	return count == 0;
+    }
+
+    public boolean remove(Object o) {
+	for(int i = 0; i < count; i++) {
+	    if(elements[index(i)].equals(o)) {
+		removeAt(i);
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    public void clear() {
+	for(int i = 0; i < count; i++)
+	    elements[index(i)] = null;
+	head = 0;
+	count = 0;
+    }
+
+    public Iterator<T> iterator() {
+	return new Iterator<T>() {
+
+	    /** Position of the next element to return. */
+	    private int next;
+
+	    /** Position of the element last returned, or -1 if it has been removed. */
+	    private int last = -1;
+
+	    public boolean hasNext() {
+		return next < count;
+	    }
+
+	    public T next() {
+		if(next >= count)
+		    throw new NoSuchElementException();
+		last = next++;
+		return get(last);
+	    }
+
+	    public void remove() {
+		if(last < 0)
+		    throw new IllegalStateException();
+		removeAt(last);
+		next = last;
+		last = -1;
+	    }
+	};
+    }
+
+    /**
+     * Get the number of elements the queue can hold before it is full,
+     * or before it has to grow.
+     *
+     * @return the length of the array.
+     */
+    public int capacity() {
+	return elements.length;
+    }
+
+    /**
+     * Get an element, by its position in the queue.  Together with
+     * removeAt(), this lets a caller search the queue without allocating
+     * an iterator.
+     *
+     * @param i  The position, counting from zero at the head.
+     * @return the element.
+     * @throws IndexOutOfBoundsException  if there is no such position.
+     */
+    @SuppressWarnings("unchecked")
+    public T get(int i) {
+	if(i < 0 || i >= count)
+	    throw new IndexOutOfBoundsException("Position " + i + " of " + count);
+	return (T)elements[index(i)];
+    }
+
+    /**
+     * Translate a position in the queue into an index in the array.
+     *
+     * @param i  The position, counting from zero at the head.
+     * @return the index.
+     */
+    private int index(int i) {
+	int j = head + i;
+	return (j >= elements.length ? j - elements.length : j);
+    }
+
+    /**
+     * Remove the element at a position in the queue, shifting the elements
+     * behind it forward.
+     *
+     * @param i  The position, counting from zero at the head.
+     * @throws IndexOutOfBoundsException  if there is no such position.
+     */
+    public void removeAt(int i) {
+	if(i < 0 || i >= count)
+	    throw new IndexOutOfBoundsException("Position " + i + " of " + count);
+	for(int j = i; j < count - 1; j++)
+	    elements[index(j)] = elements[index(j + 1)];
+	elements[index(count - 1)] = null;
+	count--;
+    }
+
+    /**
+     * Double the length of the array, moving the head to index zero.
+     */
+    private void grow() {
+	Object[] grown = new Object[2 * elements.length];
+	for(int i = 0; i < count; i++)
+	    grown[i] = elements[index(i)];
+	elements = grown;
+	head = 0;
+    }
+}
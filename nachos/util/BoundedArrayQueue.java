@@ -0,0 +1,28 @@
+package nachos.util;
+
+/**
+ * An ArrayQueue with a fixed capacity: its array is allocated once, when
+ * it is created, and offer() returns false instead of growing it when the
+ * queue is full.  This suits queues whose length has a known bound, such
+ * as a queue of CPUs, or a queue of requests that is limited on purpose.
+ */
+public class BoundedArrayQueue<T> extends ArrayQueue<T> {
+
+    /**
+     * Initialize an empty queue.
+     *
+     * @param capacity  The greatest number of elements the queue can hold.
+     */
+    public BoundedArrayQueue(int capacity) {
+	super(capacity, true);
+    }
+
+    /**
+     * Get the number of elements that can be added before the queue is full.
+     *
+     * @return the remaining capacity.
+     */
+    public int remainingCapacity() {
+	return capacity() - size();
+    }
+}
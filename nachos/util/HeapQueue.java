@@ -0,0 +1,280 @@
+package nachos.util;
+
+/**
+ * Implementation of the Queue interface as a d-ary heap, giving a queue
+ * in which the element with the highest priority, that is, the smallest
+ * priority value, is always at the head.  Elements with equal priorities
+ * are kept in first-in, first-out order, so a HeapQueue whose elements
+ * all have the same priority behaves exactly like a FIFOQueue.
+ *
+ * The priority of an element is computed by a pluggable Priority function
+ * when the element is offered, and is kept with it, so it does not matter
+ * if the priority would be different by the time the element is polled.
+ * A heap of arity d has height log_d(n), so a higher arity makes offer()
+ * cheaper and poll() compare more children at each level; an arity of
+ * 4 suits the short queues in which threads wait.  The heap is kept in
+ * arrays that grow by doubling, and nothing else is allocated.
+ * Null elements are not permitted.
+ */
+public class HeapQueue<T> implements Queue<T> {
+
+    /** Arity of a queue for which none is specified. */
+    public static final int DEFAULT_ARITY = 4;
+
+    /** Initial capacity of a queue. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** The priority function, or null if all elements have equal priority. */
+    private final Priority<? super T> priority;
+
+    /** Number of children of each node of the heap. */
+    private final int arity;
+
+    /** The elements, in heap order: the children of i are d*i+1 to d*i+d. */
+    private Object[] elements;
+
+    /** Priority of each element, recorded when it was offered. */
+    private long[] priorities;
+
+    /** Arrival order of each element, which breaks ties in priority. */
+    private long[] arrivals;
+
+    /** Number of elements. */
+    private int count;
+
+    /** Arrival number to give the next element offered. */
+    private long nextArrival;
+
+    /** Arrival number to give the next element added with addFirst(). */
+    private long nextEarlyArrival = -1;
+
+    /**
+     * Initialize an empty queue of the default arity.
+     *
+     * @param priority  The priority function, or null to keep the elements
+     * in first-in, first-out order.
+     */
+    public HeapQueue(Priority<? super T> priority) {
+	this(priority, DEFAULT_ARITY);
+    }
+
+    /**
+     * Initialize an empty queue.
+     *
+     * @param priority  The priority function, or null to keep the elements
+     * in first-in, first-out order.
+     * @param arity  The number of children of each node of the heap.
+     */
+    public HeapQueue(Priority<? super T> priority, int arity) {
+	if(arity < 2)
+	    throw new IllegalArgumentException("Heap arity must be at least 2");
+	this.priority = priority;
+	this.arity = arity;
+	elements = new Object[INITIAL_CAPACITY];
+	priorities = new long[INITIAL_CAPACITY];
+	arrivals = new long[INITIAL_CAPACITY];
+    }
+
+    public boolean offer(T e) {
+	insert(e, nextArrival++);
+	return true;
+    }
+
+    /**
+     * Add an element ahead of all the elements of equal priority, as if it
+     * had arrived before any of them.  This is used to put back a thread
+     * that was woken but has to wait again, without losing its place.
+     *
+     * @param e  The element to add.
+     */
+    public void addFirst(T e) {
+	insert(e, nextEarlyArrival--);
+    }
+
+    @SuppressWarnings("unchecked")
+    public T peek() {
+	return (count == 0 ? null : (T)elements[0]);
+    }
+
+    @SuppressWarnings("unchecked")
+    public T poll() {
+	if(count == 0)
+	    return null;
+	T e = (T)elements[0];
+	removeAt(0);
+	return e;
+    }
+
+    public boolean isEmpty() {
+	return count == 0;
+    }
+
+    /**
+     * Get the number of elements in the queue.
+     *
+     * @return the number of elements.
+     */
+    public int size() {
+	return count;
+    }
+
+    public boolean remove(Object o) {
+	for(int i = 0; i < count; i++) {
+	    if(elements[i].equals(o)) {
+		removeAt(i);
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Add an element to the heap.
+     *
+     * @param e  The element.
+     * @param arrival  The arrival number to give it.
+     */
+    private void insert(T e, long arrival) {
+	if(e == null)
+	    throw new NullPointerException();
+	if(count == elements.length)
+	    grow();
+	elements[count] = e;
+	priorities[count] = (priority == null ? 0 : priority.priorityOf(e));
+	arrivals[count] = arrival;
+	siftUp(count++);
+    }
+
+    /**
+     * Remove the element at an index of the heap, filling the hole with
+     * the last element and moving that to where it belongs.
+     *
+     * @param i  The index.
+     */
+    private void removeAt(int i) {
+	int last = --count;
+	if(i != last) {
+	    move(last, i);
+	    if(siftUp(i) == i)
+		siftDown(i);
+	}
+	elements[last] = null;
+    }
+
+    /**
+     * Determine whether the element at one index should be nearer the
+     * head than the element at another.
+     *
+     * @param i  One index.
+     * @param j  The other index.
+     * @return true if the element at i has a higher priority, or the same
+     * priority and an earlier arrival.
+     */
+    private boolean before(int i, int j) {
+	if(priorities[i] != priorities[j])
+	    return priorities[i] < priorities[j];
+	return arrivals[i] < arrivals[j];
+    }
+
+    /**
+     * Move the element at an index towards the root until its parent
+     * comes before it.
+     *
+     * @param i  The index.
+     * @return the index at which the element ends up.
+     */
+    private int siftUp(int i) {
+	while(i > 0) {
+	    int parent = (i - 1) / arity;
+	    if(!before(i, parent))
+		break;
+	    swap(i, parent);
+	    i = parent;
+	}
+	return i;
+    }
+
+    /**
+     * Move the element at an index away from the root until it comes
+     * before all its children.
+     *
+     * @param i  The index.
+     */
+    private void siftDown(int i) {
+	while(true) {
+	    int first = arity * i + 1;
+	    if(first >= count)
+		break;
+	    int best = first;
+	    int end = Math.min(first + arity, count);
+	    for(int child = first + 1; child < end; child++) {
+		if(before(child, best))
+		    best = child;
+	    }
+	    if(!before(best, i))
+		break;
+	    swap(i, best);
+	    i = best;
+	}
+    }
+
+    /**
+     * Exchange the elements at two indices.
+     *
+     * @param i  One index.
+     * @param j  The other index.
+     */
+    private void swap(int i, int j) {
+	Object e = elements[i];
+	elements[i] = elements[j];
+	elements[j] = e;
+	long p = priorities[i];
+	priorities[i] = priorities[j];
+	priorities[j] = p;
+	long a = arrivals[i];
+	arrivals[i] = arrivals[j];
+	arrivals[j] = a;
+    }
+
+    /**
+     * Copy the element at one index to another.
+     *
+     * @param from  The index to copy from.
+     * @param to  The index to copy to.
+     */
+    private void move(int from, int to) {
+	elements[to] = elements[from];
+	priorities[to] = priorities[from];
+	arrivals[to] = arrivals[from];
+    }
+
+    /**
+     * Double the length of the arrays.
+     */
+    private void grow() {
+	int length = 2 * elements.length;
+	Object[] newElements = new Object[length];
+	long[] newPriorities = new long[length];
+	long[] newArrivals = new long[length];
+	System.arraycopy(elements, 0, newElements, 0, count);
+	System.arraycopy(priorities, 0, newPriorities, 0, count);
+	System.arraycopy(arrivals, 0, newArrivals, 0, count);
+	elements = newElements;
+	priorities = newPriorities;
+	arrivals = newArrivals;
+    }
+
+    /**
+     * A function giving the priority of an element of a HeapQueue.
+     */
+    public interface Priority<T> {
+
+	/**
+	 * Compute the priority of an element.
+	 *
+	 * @param e  The element.
+	 * @return the priority, smaller values being nearer the head.
+	 */
+	public long priorityOf(T e);
+    }
+}
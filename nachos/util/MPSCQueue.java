@@ -0,0 +1,158 @@
+package nachos.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded first-in, first-out queue for handing elements from any number
+ * of producers to a single consumer without locking: multiple-producer,
+ * single-consumer.  It is meant for interrupt handlers that pass data to
+ * threads, and is safe for producers running with interrupts disabled on
+ * any CPU, because a producer never waits for the consumer or for another
+ * producer: offer() either claims a slot, by advancing the tail with a
+ * compare-and-set of the host, or finds the queue full and returns false.
+ * The elements live in a circular array allocated when the queue is
+ * created, so handing one over allocates nothing.
+ *
+ * Each slot has a sequence number saying whose turn it is: the producer
+ * that claimed position p of the queue may fill the slot when its sequence
+ * number is p, and publishes the element by setting it to p+1, after which
+ * the consumer may take it and hand the slot on to position p+capacity.
+ * A producer that has claimed a slot but not yet filled it holds up the
+ * consumer, which sees the queue as empty until the element is published;
+ * producers that run with interrupts disabled keep this window short.
+ *
+ * Only one thread at a time may call poll() and peek(); callers that may
+ * consume concurrently must serialize themselves, for example with a Lock.
+ * Elements can only be taken from the head, so this is not a Queue: it
+ * cannot stand in for one that has elements removed from the middle.
+ * Null elements are not permitted.
+ */
+public class MPSCQueue<T> {
+
+    /** The elements, indexed by position modulo the capacity. */
+    private final Object[] elements;
+
+    /** Sequence number of each slot, as described above. */
+    private final AtomicLongArray sequences;
+
+    /** Mask giving the index of a position, the capacity being a power of two. */
+    private final int mask;
+
+    /** Next position to be claimed by a producer. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Next position to be taken by the consumer; only the consumer changes it. */
+    private volatile long head;
+
+    /**
+     * Initialize an empty queue.
+     *
+     * @param capacity  The greatest number of elements the queue can hold,
+     * which is rounded up to a power of two.
+     */
+    public MPSCQueue(int capacity) {
+	if(capacity < 1 || capacity > (1 << 30))
+	    throw new IllegalArgumentException("Queue capacity out of range");
+	int length = Integer.highestOneBit(capacity);
+	if(length < capacity)
+	    length <<= 1;
+	elements = new Object[length];
+	sequences = new AtomicLongArray(length);
+	for(int i = 0; i < length; i++)
+	    sequences.set(i, i);
+	mask = length - 1;
+    }
+
+    /**
+     * Add an element at the tail of the queue, if it is not full.
+     * This may be called by any number of producers at once, with
+     * interrupts enabled or disabled.
+     *
+     * @param e  The element to add.
+     * @return true if the element was added, false if the queue was full.
+     */
+    public boolean offer(T e) {
+	if(e == null)
+	    throw new NullPointerException();
+	while(true) {
+	    long position = tail.get();
+	    int index = (int)position & mask;
+	    long sequence = sequences.get(index);
+	    if(sequence == position) {
+		if(tail.compareAndSet(position, position + 1)) {
+		    elements[index] = e;
+		    sequences.set(index, position + 1);
+		    return true;
+		}
+	    } else if(sequence < position) {
+		// The slot still holds the element from a lap ago.
+		return false;
+	    }
+	    // Another producer claimed the position first; try the next one.
+	}
+    }
+
+    /**
+     * Get the element at the head of the queue without removing it.
+     * Only the consumer may call this.
+     *
+     * @return the element at the head, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public T peek() {
+	int index = (int)head & mask;
+	if(sequences.get(index) != head + 1)
+	    return null;
+	return (T)elements[index];
+    }
+
+    /**
+     * Remove and return the element at the head of the queue.
+     * Only the consumer may call this.
+     *
+     * @return the element at the head, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+	long position = head;
+	int index = (int)position & mask;
+	if(sequences.get(index) != position + 1)
+	    return null;
+	T e = (T)elements[index];
+	elements[index] = null;
+	head = position + 1;
+	sequences.set(index, position + elements.length);
+	return e;
+    }
+
+    /**
+     * Test whether the queue is empty.  Only the consumer gets an answer
+     * that stays true until it next takes an element.
+     *
+     * @return true if no element is ready to be taken.
+     */
+    public boolean isEmpty() {
+	return peek() == null;
+    }
+
+    /**
+     * Get the number of elements in the queue, including any whose
+     * producers have claimed a slot but not yet filled it.
+     *
+     * @return the number of elements, which may be out of date by the
+     * time it is returned.
+     */
+    public int size() {
+	return (int)Math.max(0, tail.get() - head);
+    }
+
+    /**
+     * Get the greatest number of elements the queue can hold.
+     *
+     * @return the capacity.
+     */
+    public int capacity() {
+	return elements.length;
+    }
+}
@@ -43,4 +43,14 @@ public interface Queue<T> {
      */
     public boolean isEmpty();
     
+    /**
+     * Removes a single instance of an element from this queue, if it is present.
+     * This is used to take a thread whose wait has timed out off the queue
+     * it was waiting in, and need not be fast.
+     * 
+     * @param o  The element to remove.
+     * @return true if the element was found and removed.
+     */
+    public boolean remove(Object o);
+    
 }
@@ -171,6 +171,22 @@ Rmdir:
 	j	$31
 	.end Rmdir
 
+	.globl RealTime
+	.ent	RealTime
+RealTime:
+	addiu   $2,$0,SC_RealTime
+	syscall
+	j	$31
+	.end RealTime
+
+	.globl SetAffinity
+	.ent	SetAffinity
+SetAffinity:
+	addiu   $2,$0,SC_SetAffinity
+	syscall
+	j	$31
+	.end SetAffinity
+
 /* dummy function to keep gcc happy */
         .globl  __main
         .ent    __main
@@ -34,6 +34,8 @@
 #define SC_Sleep	13
 #define SC_Mkdir	14
 #define SC_Rmdir	15
+#define SC_RealTime	16
+#define SC_SetAffinity	17
 
 #ifndef IN_ASM
 
@@ -140,6 +142,20 @@ void Mkdir(char *name);
 
 void Rmdir(char *name);
 
+/* Ask for the calling thread to be scheduled as a real-time thread,
+ * entitled to "budget" ticks of CPU time in every "period" ticks, with its
+ * deadline at the end of each period.  A period of 0 returns the thread to
+ * normal scheduling.  Returns 0 on success, or -1 if the request is invalid
+ * or there is not enough spare CPU capacity to admit it.
+ */
+int RealTime(int period, int budget);
+
+/* Restrict the calling thread to a set of CPUs: bit i of "mask" allows it to
+ * run on CPU i.  Returns 0 on success, or -1 if the mask includes no CPU,
+ * or excludes the CPU against which a real-time thread was admitted.
+ */
+int SetAffinity(int mask);
+
 #endif /* IN_ASM */
 
 #endif /* SYSCALL_H */